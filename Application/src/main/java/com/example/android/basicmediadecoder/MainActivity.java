@@ -19,6 +19,7 @@ package com.example.android.basicmediadecoder;
 
 import android.animation.TimeAnimator;
 import android.app.Activity;
+import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
 import android.graphics.ImageFormat;
 import android.graphics.YuvImage;
@@ -26,6 +27,7 @@ import android.media.Image;
 import android.media.ImageReader;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
+import android.media.MediaFormat;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
@@ -33,6 +35,7 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -41,8 +44,27 @@ import android.view.TextureView;
 import android.view.View;
 import android.widget.TextView;
 
+import com.example.android.common.media.AsyncCodecEngine;
+import com.example.android.common.media.AudioPipeline;
+import com.example.android.common.media.CodecEngine;
+import com.example.android.common.media.CodecPool;
+import com.example.android.common.media.DecodeProfile;
+import com.example.android.common.media.DemuxStage;
+import com.example.android.common.media.FeedBudget;
+import com.example.android.common.media.FrameBuffer;
+import com.example.android.common.media.FrameBufferOutputStream;
+import com.example.android.common.media.FrameBufferPool;
+import com.example.android.common.media.FrameEncoder;
 import com.example.android.common.media.ImageUtil;
+import com.example.android.common.media.JpegEncoder;
+import com.example.android.common.media.MasterClock;
 import com.example.android.common.media.MediaCodecWrapper;
+import com.example.android.common.media.MediaSeeker;
+import com.example.android.common.media.PipelineMetrics;
+import com.example.android.common.media.PresentationScheduler;
+import com.example.android.common.media.SampleIndex;
+import com.example.android.common.media.SeekIndex;
+import com.example.android.common.media.SystemMasterClock;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -64,10 +86,68 @@ public class MainActivity extends Activity {
     private TimeAnimator mTimeAnimator = new TimeAnimator();
     private  static int count = 0;
 
+    // When set, the codec runs in callback mode on its own thread instead of being polled from
+    // the animator tick.
+    private static final boolean USE_ASYNC_CODEC = true;
+
+    // When set, the video decoder is tuned and fed for the lowest latency per frame, rendering
+    // frames as soon as they are decoded instead of at their presentation time. Otherwise it
+    // decodes as fast as it can ahead of the frames being shown.
+    private static final boolean LOW_LATENCY_DECODE = false;
+
+    // Number of samples the demux stage reads ahead of the decoder.
+    private static final int PREFETCH_SAMPLES = 8;
+
+    // Audio samples are much shorter than video frames, so more are kept ready.
+    private static final int AUDIO_PREFETCH_SAMPLES = 32;
+
+    // Longest time a tick may spend queueing samples, a quarter of a 60 Hz frame.
+    private static final long FEED_BUDGET_NS = 4000000;
+
+    // Decoders kept across playback sessions, so that coming back to the activity doesn't pay
+    // for creating a codec again. Two is plenty for one video track. Emptied once the UI is
+    // hidden or the activity finishes, so idle codecs don't hold on to decoder resources in
+    // the background.
+    private static final CodecPool sCodecPool = new CodecPool(2);
+
     // A utility that wraps up the underlying input and output buffer processing operations
     // into an east to use API.
-    private MediaCodecWrapper mCodecWrapper;
+    private CodecEngine mCodecWrapper;
     private MediaExtractor mExtractor = new MediaExtractor();
+    private DemuxStage mDemuxStage;
+
+    // Built in the background once playback starts; seeking is possible once it's there.
+    private volatile SeekIndex mSeekIndex;
+    private MediaSeeker mSeeker;
+    private final FeedBudget mFeedBudget = new FeedBudget();
+
+    // Per-frame latency and throughput of the whole pipeline, logged when playback ends.
+    private final PipelineMetrics mMetrics = new PipelineMetrics();
+
+    // How the video decoder is tuned; keeps the decode-to-present latency of its sessions.
+    private final DecodeProfile mDecodeProfile = LOW_LATENCY_DECODE
+            ? DecodeProfile.lowLatency() : DecodeProfile.throughput();
+
+    // Decodes and plays the first audio track, if there is one, on threads of its own. Video
+    // follows its clock.
+    private AudioPipeline mAudioPipeline;
+    private MediaExtractor mAudioExtractor;
+
+    // Without audio, frames are presented against the system clock, started when the first
+    // one is decoded.
+    private final SystemMasterClock mClock = new SystemMasterClock();
+    private PresentationScheduler mScheduler;
+
+    // Tells the scheduler when vsyncs happen so render timestamps can be aligned with them.
+    private final Choreographer.FrameCallback mVsyncCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mScheduler.onVsync(frameTimeNanos);
+        }
+    };
+
+    // Metadata of the decoded sample at the head of the codec's queue, refreshed every tick.
+    private final MediaCodec.BufferInfo mOutputBufferInfo = new MediaCodec.BufferInfo();
     TextView mAttribView = null;
     private Surface mReaderSurface;
     private HandlerThread mHandlerThread;
@@ -86,7 +166,7 @@ public class MainActivity extends Activity {
         mHandlerThread = new HandlerThread(TAG);
         mHandlerThread.start();
         mHandler = new Handler(mHandlerThread.getLooper());
-        mImageListener = new ImageListener();
+        mImageListener = new ImageListener(mMetrics);
         count = 0;
         metrics = getResources().getDisplayMetrics();
     }
@@ -106,9 +186,27 @@ public class MainActivity extends Activity {
         }
 
         if (mCodecWrapper != null ) {
+            mDemuxStage.stop();
             mCodecWrapper.stopAndRelease();
+            mCodecWrapper = null;
             mExtractor.release();
         }
+        if (mAudioPipeline != null) {
+            mAudioPipeline.release();
+            mAudioExtractor.release();
+            mAudioPipeline = null;
+        }
+        if (isFinishing()) {
+            sCodecPool.clear();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            sCodecPool.clear();
+        }
     }
 
     @Override
@@ -131,6 +229,14 @@ public class MainActivity extends Activity {
 
         try {
 
+            // A sample index saved by an earlier run tells which tracks are video and how
+            // large their samples get, without probing the container or trying codecs.
+            final File sidecar = new File(getCacheDir(), "vid_bigbuckbunny.sidx");
+            final long mediaSize = rawResourceLength(R.raw.vid_bigbuckbunny);
+            // Raw resources only change with the APK.
+            final long mediaLastModified = new File(getPackageCodePath()).lastModified();
+            SampleIndex sampleIndex = SampleIndex.open(sidecar, mediaSize, mediaLastModified);
+
             // BEGIN_INCLUDE(initialize_extractor)
             mExtractor.setDataSource(this, videoUri, null);
             int nTracks = mExtractor.getTrackCount();
@@ -146,6 +252,9 @@ public class MainActivity extends Activity {
             // it's possible that the stream would contain multiple tracks, but this
             // sample assumes that we just want to play the first one.
             for (int i = 0; i < nTracks; ++i) {
+                if (sampleIndex != null && !sampleIndex.getMimeType(i).startsWith("video/")) {
+                    continue;
+                }
                 // Try to create a video codec for this track. This call will return null if the
                 // track is not a video track, or not a recognized video format. Once it returns
                 // a valid MediaCodecWrapper, we can break out of the loop.
@@ -154,17 +263,44 @@ public class MainActivity extends Activity {
                 mReaderSurface = mImgReader.getSurface();
                 mImgReader.setOnImageAvailableListener(mImageListener, mHandler);
 
-                mCodecWrapper = MediaCodecWrapper.fromVideoFormat(mExtractor.getTrackFormat(i),
-                        mReaderSurface);
+                if (USE_ASYNC_CODEC) {
+                    mCodecWrapper = AsyncCodecEngine.fromVideoFormat(
+                            mExtractor.getTrackFormat(i), mReaderSurface, sCodecPool,
+                            mDecodeProfile);
+                } else {
+                    mCodecWrapper = MediaCodecWrapper.fromVideoFormat(
+                            mExtractor.getTrackFormat(i), mReaderSurface, sCodecPool,
+                            mDecodeProfile);
+                }
                 if (mCodecWrapper != null) {
+                    mCodecWrapper.setPipelineMetrics(mMetrics);
                     mExtractor.selectTrack(i);
+                    int maxSampleSize = sampleIndex != null
+                            ? sampleIndex.getMaxSampleSize(i) : 0;
+                    if (maxSampleSize <= 0) {
+                        maxSampleSize = DemuxStage.maxSampleSize(mExtractor.getTrackFormat(i));
+                    }
+                    mDemuxStage = new DemuxStage(mExtractor, PREFETCH_SAMPLES, maxSampleSize);
+                    loadSeekIndex(videoUri, i, sampleIndex, sidecar, mediaSize,
+                            mediaLastModified);
                     break;
                 }
             }
             // END_INCLUDE(initialize_extractor)
 
+            startAudio(videoUri, sampleIndex);
+            mScheduler = new PresentationScheduler(
+                    mAudioPipeline != null ? mAudioPipeline.getClock() : mClock);
+            mDecodeProfile.configure(mScheduler);
+            mImageListener.setScheduler(mScheduler);
 
+            // Reading and advancing through the file are blocking operations, so they run on
+            // the demux stage's own thread from here on.
+            mDemuxStage.start();
+            mFeedBudget.setMaxTimeNs(FEED_BUDGET_NS);
 
+            float refreshRate = getWindowManager().getDefaultDisplay().getRefreshRate();
+            mScheduler.setVsyncPeriodNs((long) (1000000000L / refreshRate));
 
             // By using a {@link TimeAnimator}, we can sync our media rendering commands with
             // the system display frame rendering. The animator ticks as the {@link Choreographer}
@@ -175,37 +311,54 @@ public class MainActivity extends Activity {
                                          final long totalTime,
                                          final long deltaTime) {
 
-                    boolean isEos = ((mExtractor.getSampleFlags() & MediaCodec
-                            .BUFFER_FLAG_END_OF_STREAM) == MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-
                     // BEGIN_INCLUDE(write_sample)
-                    if (!isEos) {
-                        // Try to submit the sample to the codec and if successful advance the
-                        // extractor to the next available sample to read.
-                        boolean result = mCodecWrapper.writeSample(mExtractor, false,
-                                mExtractor.getSampleTime(), mExtractor.getSampleFlags());
-
-                        if (result) {
-                            // Advancing the extractor is a blocking operation and it MUST be
-                            // executed outside the main thread in real applications.
-                            mExtractor.advance();
-                        }
+                    // Submit every prefetched sample the codec has room for, not just one per
+                    // vsync, so decoding isn't capped at the display rate. The demux stage
+                    // has already read them, so this never touches storage.
+                    try {
+                        mDemuxStage.feed(mCodecWrapper, mFeedBudget);
+                    } catch (MediaCodecWrapper.WriteException e) {
+                        Log.e(TAG, "Unable to queue sample", e);
                     }
+                    boolean isEos = mDemuxStage.isEndOfStream();
+                    mMetrics.setQueueDepth(PipelineMetrics.QUEUE_DEMUX,
+                            mDemuxStage.available());
                     // END_INCLUDE(write_sample)
 
-                    // Examine the sample at the head of the queue to see if its ready to be
-                    // rendered and is not zero sized End-of-Stream record.
-                    MediaCodec.BufferInfo out_bufferInfo = new MediaCodec.BufferInfo();
-                    mCodecWrapper.peekSample(out_bufferInfo);
+                    // After an exact seek, frames before the target are decoded but never shown.
+                    final MediaCodec.BufferInfo out_bufferInfo = mOutputBufferInfo;
+                    if (mSeeker != null) {
+                        mSeeker.discardUntilTarget(out_bufferInfo);
+                    }
+
+                    // The clock starts at the first decoded frame, so codec start-up latency
+                    // doesn't make the first frames late. The audio clock starts by itself.
+                    if (mAudioPipeline == null && !mClock.isRunning()
+                            && mCodecWrapper.peekSample(out_bufferInfo)) {
+                        mClock.start(out_bufferInfo.presentationTimeUs);
+                    }
+                    Choreographer.getInstance().postFrameCallback(mVsyncCallback);
 
                     // BEGIN_INCLUDE(render_sample)
-                    if (out_bufferInfo.size <= 0 && isEos) {
+                    // Send every frame that is due to the {@link Surface}, each with the time
+                    // it should be shown at, and drop the ones that are too late. This leaves
+                    // the metadata of the next buffer in out_bufferInfo. Now that the end of
+                    // stream is actually queued to the codec, wait for it to come out the
+                    // other side rather than stopping while frames are still being decoded,
+                    // including a last frame that carries the end-of-stream flag itself.
+                    mScheduler.drain(mCodecWrapper, out_bufferInfo);
+                    if (isEos && out_bufferInfo.size == 0 && (out_bufferInfo.flags
+                            & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                         mTimeAnimator.end();
+                        mDemuxStage.stop();
                         mCodecWrapper.stopAndRelease();
+                        // onPause() has nothing left to release.
+                        mCodecWrapper = null;
                         mExtractor.release();
-                    } else if (out_bufferInfo.presentationTimeUs / 1000 < totalTime) {
-                        // Pop the sample off the queue and send it to {@link Surface}
-                        mCodecWrapper.popSample(true);
+                        Log.i(TAG, "Pipeline metrics:\n" + mMetrics.summary());
+                        Log.i(TAG, "Presentation: " + mScheduler.summary());
+                        Log.i(TAG, "Decode profile " + mDecodeProfile.summary());
+                        Log.i(TAG, "Codec pool: " + sCodecPool.summary());
                     }
                     // END_INCLUDE(render_sample)
 
@@ -220,18 +373,182 @@ public class MainActivity extends Activity {
         }
     }
 
+    /**
+     * Moves playback to {@code timeUs}. Does nothing until the seek index is available.
+     *
+     * @param mode {@link MediaSeeker#MODE_CLOSEST_SYNC} or {@link MediaSeeker#MODE_EXACT}.
+     * @return False if seeking isn't possible yet.
+     */
+    public boolean seekTo(long timeUs, int mode) {
+        if (mSeeker == null) {
+            if (mSeekIndex == null || mDemuxStage == null) {
+                return false;
+            }
+            mSeeker = new MediaSeeker(mSeekIndex, mDemuxStage, mCodecWrapper);
+        }
+        long targetUs = mSeeker.seekTo(timeUs, mode);
+        if (mAudioPipeline != null) {
+            // Audio picks up where the video lands; its clock stops until then.
+            mAudioPipeline.seekTo(targetUs);
+        } else {
+            // The clock is restarted by the animator tick at the first frame after the seek.
+            mClock.pause();
+        }
+        return true;
+    }
+
+    // Starts decoding and playing the first audio track with an extractor of its own, so that
+    // neither pipeline ever waits for the other's reads. Playback goes on without sound if
+    // that fails.
+    private void startAudio(Uri videoUri, SampleIndex sampleIndex) {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(this, videoUri, null);
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                CodecEngine codec = MediaCodecWrapper.fromAudioFormat(format);
+                if (codec == null) {
+                    continue;
+                }
+                extractor.selectTrack(i);
+                int maxSampleSize = sampleIndex != null ? sampleIndex.getMaxSampleSize(i) : 0;
+                if (maxSampleSize <= 0) {
+                    maxSampleSize = DemuxStage.maxSampleSize(format);
+                }
+                DemuxStage demuxStage =
+                        new DemuxStage(extractor, AUDIO_PREFETCH_SAMPLES, maxSampleSize);
+                AudioPipeline pipeline = new AudioPipeline(codec, demuxStage, format);
+                pipeline.setErrorListener(new AudioPipeline.ErrorListener() {
+                    @Override
+                    public void onAudioError(final AudioPipeline sender, Throwable error) {
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                onAudioFailed(sender);
+                            }
+                        });
+                    }
+                });
+                pipeline.start();
+                mAudioPipeline = pipeline;
+                mAudioExtractor = extractor;
+                return;
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Unable to play audio", e);
+        }
+        extractor.release();
+    }
+
+    // Hands presentation back to the system clock, continuing from where the audio stopped,
+    // and lets video play on without audio.
+    private void onAudioFailed(AudioPipeline pipeline) {
+        if (pipeline != mAudioPipeline) {
+            // Already released.
+            return;
+        }
+        long timeUs = pipeline.getClock().getMediaTimeUs(System.nanoTime());
+        mAudioPipeline.release();
+        mAudioExtractor.release();
+        mAudioPipeline = null;
+        // Otherwise the clock is started at the next decoded frame.
+        if (timeUs != MasterClock.TIME_UNSET) {
+            mClock.start(timeUs);
+        }
+        if (mScheduler != null) {
+            mScheduler.setClock(mClock);
+        }
+        Log.w(TAG, "Audio playback failed, playing video only");
+    }
+
+    // Derives the seek index from the sample index. Without a sample index from an earlier
+    // run, indexes every track with a separate extractor first and saves the result.
+    private void loadSeekIndex(final Uri videoUri, final int track,
+            final SampleIndex sampleIndex, final File sidecar, final long mediaSize,
+            final long mediaLastModified) {
+        if (sampleIndex != null) {
+            mSeekIndex = sampleIndex.toSeekIndex(track);
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                MediaExtractor extractor = new MediaExtractor();
+                try {
+                    extractor.setDataSource(MainActivity.this, videoUri, null);
+                    for (int i = 0; i < extractor.getTrackCount(); i++) {
+                        extractor.selectTrack(i);
+                    }
+                    SampleIndex index = SampleIndex.openOrBuild(sidecar, extractor, mediaSize,
+                            mediaLastModified);
+                    mSeekIndex = index.toSeekIndex(track);
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to index " + videoUri, e);
+                } finally {
+                    extractor.release();
+                }
+            }
+        }, "SampleIndex").start();
+    }
+
+    private long rawResourceLength(int id) throws IOException {
+        AssetFileDescriptor fd = getResources().openRawResourceFd(id);
+        try {
+            return fd.getLength();
+        } finally {
+            fd.close();
+        }
+    }
+
     private static class ImageListener implements ImageReader.OnImageAvailableListener {
         private final LinkedBlockingQueue<Image> mQueue =
                 new LinkedBlockingQueue<Image>();
+
+        // Frame buffers are recycled between callbacks so the steady-state conversion path
+        // doesn't allocate. The listener always runs on the same handler thread, which is what
+        // makes sharing the output stream safe.
+        private final FrameBufferPool mFramePool = new FrameBufferPool();
+        private final FrameBufferOutputStream mFrameStream =
+                new FrameBufferOutputStream(mFramePool);
+        private final FrameEncoder mEncoder =
+                new JpegEncoder(100, JpegEncoder.SUBSAMPLING_420);
+        private final PipelineMetrics mMetrics;
+        // Maps render timestamps back to presentation times; set on the UI thread.
+        private volatile PresentationScheduler mScheduler;
+
+        ImageListener(PipelineMetrics metrics) {
+            mMetrics = metrics;
+        }
+
+        void setScheduler(PresentationScheduler scheduler) {
+            mScheduler = scheduler;
+        }
+
         @Override
         public void onImageAvailable(ImageReader reader) {
             Image img = null;
             try {
                 img = reader.acquireLatestImage();
                 if (img != null) {
-                    final byte[] bytes = ImageUtil.imageToByteArray(img);
-
-
+                    // Frames rendered by a codec carry their render timestamp if they were
+                    // released with one, and their presentation time in nanoseconds
+                    // otherwise. Metrics are keyed by presentation time.
+                    long presentationTimeUs = MasterClock.TIME_UNSET;
+                    PresentationScheduler scheduler = mScheduler;
+                    if (scheduler != null) {
+                        presentationTimeUs = scheduler.getPresentationTimeUs(img.getTimestamp());
+                    }
+                    if (presentationTimeUs == MasterClock.TIME_UNSET) {
+                        presentationTimeUs = img.getTimestamp() / 1000;
+                    }
+                    mMetrics.record(PipelineMetrics.STAGE_IMAGE_AVAILABLE, presentationTimeUs);
+                    final FrameBuffer frame = ImageUtil.imageToFrame(img, mEncoder,
+                            mFrameStream);
+                    if (frame != null) {
+                        frame.release();
+                        mMetrics.record(PipelineMetrics.STAGE_CONVERSION_DONE,
+                                presentationTimeUs);
+                    }
                 }
             } catch (Exception e) {
                 e.printStackTrace();
@@ -242,6 +559,13 @@ public class MainActivity extends Activity {
 
             }
         }
+        /**
+         * @return The pool backing the converted frames, e.g. to inspect its hit/miss counters.
+         */
+        public FrameBufferPool getFramePool() {
+            return mFramePool;
+        }
+
         /**
          * Get an image from the image reader.
          *
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The subset of an asynchronous {@code MediaCodec} that {@link AsyncCodecBuffers} moves
+ * buffers through, kept free of Android types. {@link MediaCodecAsyncAdapter} implements it on
+ * top of a real codec; a scripted fake can implement it to exercise the buffer handling of
+ * {@link AsyncCodecEngine} on a desktop JVM.
+ */
+public interface AsyncCodec {
+
+    /**
+     * Codec events. All callbacks are delivered on a single thread owned by the codec.
+     */
+    interface Callback {
+        void onInputBufferAvailable(int index);
+
+        void onOutputBufferAvailable(int index, int offset, int size, long presentationTimeUs,
+                int flags);
+
+        void onError(Exception error);
+    }
+
+    /**
+     * Registers {@code callback} and starts the codec. Buffers are announced through the
+     * callback from then on.
+     */
+    void start(Callback callback);
+
+    ByteBuffer getInputBuffer(int index);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    void releaseOutputBuffer(int index, boolean render);
+
+    /**
+     * Renders the output buffer at {@code renderTimestampNs}, a {@link System#nanoTime()}
+     * value, and releases it.
+     */
+    void releaseOutputBuffer(int index, long renderTimestampNs);
+
+    /**
+     * Flushes the codec and returns once every callback it issued before the flush has been
+     * delivered; those refer to buffers that are no longer valid. The codec stays idle until
+     * {@link #resume()}. Must not be called from a callback.
+     */
+    void flush();
+
+    /**
+     * Resumes a flushed codec. Input buffers are announced through the callback again.
+     */
+    void resume();
+
+    /**
+     * Stops the codec and releases every resource it holds.
+     */
+    void release();
+}
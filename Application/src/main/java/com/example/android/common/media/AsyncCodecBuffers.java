@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+/**
+ * The buffer bookkeeping behind {@link AsyncCodecEngine}, free of Android types so it can be
+ * run against a fake {@link AsyncCodec} on a desktop JVM.
+ *
+ * The codec announces free input buffers and filled output buffers on its own thread. Their
+ * indices (and the metadata of output buffers) are pushed into lock-free queues which the
+ * consumer takes them from, so the consumer never waits on the codec. Apart from the
+ * {@link AsyncCodec.Callback} methods and {@link #releaseOutputBuffer}, every method must be
+ * called from the same consumer thread.
+ */
+final class AsyncCodecBuffers implements AsyncCodec.Callback {
+
+    /** Returned when no buffer is available. */
+    static final int NO_BUFFER = SpscIntQueue.EMPTY;
+
+    /** Passed as a render timestamp when a buffer is to be rendered as soon as possible. */
+    static final long NO_RENDER_TIMESTAMP = -1;
+
+    // Number of buffers on either port that the bookkeeping is sized for up front. Codec buffer
+    // indices are used directly as indices into mOutputBufferInfo, which grows, like the
+    // queues, if the codec hands out a higher one.
+    private static final int INITIAL_BUFFERS = 64;
+
+    // How long the codec may sit at the in-flight limit without output before the limit is
+    // lifted.
+    private static final long IN_FLIGHT_STALL_NS = 100000000;
+
+    private final AsyncCodec mCodec;
+
+    // Grown on the codec thread, which is the producer of both.
+    private final SpscIntQueue mAvailableInputBuffers = new SpscIntQueue(INITIAL_BUFFERS);
+    private final SpscIntQueue mAvailableOutputBuffers = new SpscIntQueue(INITIAL_BUFFERS);
+
+    // Metadata of each output buffer, by index. An entry is written, and the table grown, on
+    // the codec thread before its index is published through mAvailableOutputBuffers, which
+    // makes both visible to the consumer.
+    private final OutputBufferTable mOutputBufferInfo = new OutputBufferTable(INITIAL_BUFFERS);
+
+    private volatile Exception mError;
+    private volatile PipelineMetrics mMetrics;
+    // Set while flushing; callbacks for buffers from before the flush are ignored meanwhile.
+    private volatile boolean mFlushing;
+
+    // Limit on samples queued since the codec last output one, 0 for none. Counting from the
+    // last output rather than matching inputs to outputs keeps the count from drifting when
+    // the codec drops samples without output.
+    private final int mMaxSamplesInFlight;
+    // Set to render every frame as soon as it is released, ignoring render timestamps.
+    private final boolean mImmediateRelease;
+    // Metrics kept by the decode profile, recorded alongside mMetrics. May be null.
+    private final PipelineMetrics mProfileMetrics;
+
+    // Samples queued so far, written on the consumer thread only.
+    private volatile long mSamplesQueued;
+    // mSamplesQueued as the codec thread saw it when it last output a buffer. Written on the
+    // consumer thread only while flushing, when the codec thread is quiet.
+    private volatile long mSamplesQueuedAtOutput;
+    // Buffers output so far, written on the codec thread only. Published after
+    // mSamplesQueuedAtOutput, so a consumer seeing a new count sees the matching sample count.
+    private volatile long mOutputCount;
+
+    // Consumer thread only.
+    private long mOutputCountSeen;
+    // Set when the codec needs more samples than the limit before it outputs one, e.g. to
+    // reorder frames. The limit is lifted until the next output.
+    private boolean mInFlightLimitLifted;
+    // Time the consumer last queued a sample or saw one decoded.
+    private long mLastProgressNs;
+
+    AsyncCodecBuffers(AsyncCodec codec) {
+        this(codec, 0, false, null);
+    }
+
+    /**
+     * @param maxSamplesInFlight Most samples queued since the codec last output one, or 0 for
+     * no limit. See {@link #inFlightLimitReached()}.
+     * @param immediateRelease Whether to render frames as soon as they are released, ignoring
+     * render timestamps.
+     * @param profileMetrics Metrics to record to besides those set with
+     * {@link #setPipelineMetrics}, or null.
+     */
+    AsyncCodecBuffers(AsyncCodec codec, int maxSamplesInFlight, boolean immediateRelease,
+            PipelineMetrics profileMetrics) {
+        mCodec = codec;
+        mMaxSamplesInFlight = maxSamplesInFlight;
+        mImmediateRelease = immediateRelease;
+        mProfileMetrics = profileMetrics;
+    }
+
+    /**
+     * Starts the codec, with this as its callback.
+     */
+    void start() {
+        mCodec.start(this);
+    }
+
+    /**
+     * Rethrows an error reported on the codec thread on the caller's thread.
+     *
+     * @throws IllegalStateException if the codec reported an error.
+     */
+    void checkError() {
+        Exception error = mError;
+        if (error != null) {
+            throw new IllegalStateException("Codec failed", error);
+        }
+    }
+
+    /**
+     * @return The index of the next free input buffer, or {@link #NO_BUFFER}. It stays queued.
+     */
+    int peekInputBuffer() {
+        return mAvailableInputBuffers.peek();
+    }
+
+    /**
+     * @return The index of the next free input buffer, or {@link #NO_BUFFER}. The caller must
+     * queue it.
+     */
+    int pollInputBuffer() {
+        return mAvailableInputBuffers.poll();
+    }
+
+    /**
+     * Queues the input buffer at {@code index}, taken with {@link #pollInputBuffer()}.
+     */
+    void queueInputBuffer(int index, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+        recordQueueIn(presentationTimeUs);
+    }
+
+    /**
+     * Reports a sample the caller queued to the codec itself to the metrics.
+     */
+    void recordQueueIn(long presentationTimeUs) {
+        mSamplesQueued++;
+        mLastProgressNs = System.nanoTime();
+        PipelineMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.record(PipelineMetrics.STAGE_QUEUE_IN, presentationTimeUs);
+            metrics.setQueueDepth(PipelineMetrics.QUEUE_CODEC_INPUT,
+                    mAvailableInputBuffers.size());
+        }
+        if (mProfileMetrics != null) {
+            mProfileMetrics.record(PipelineMetrics.STAGE_QUEUE_IN, presentationTimeUs);
+        }
+    }
+
+    /**
+     * @return True if no more samples should be queued until the codec has output some. The
+     * end of stream should be queued regardless.
+     */
+    boolean inFlightLimitReached() {
+        if (mMaxSamplesInFlight <= 0) {
+            return false;
+        }
+        long outputCount = mOutputCount;
+        if (outputCount != mOutputCountSeen) {
+            mOutputCountSeen = outputCount;
+            mInFlightLimitLifted = false;
+            mLastProgressNs = System.nanoTime();
+        }
+        if (mInFlightLimitLifted
+                || mSamplesQueued - mSamplesQueuedAtOutput < mMaxSamplesInFlight) {
+            return false;
+        }
+        if (mAvailableOutputBuffers.isEmpty()
+                && System.nanoTime() - mLastProgressNs > IN_FLIGHT_STALL_NS) {
+            // The codec holds on to more samples before it outputs one. Let it have them
+            // rather than stall, until it does.
+            mInFlightLimitLifted = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The index of the oldest filled output buffer, or {@link #NO_BUFFER}. It stays
+     * queued.
+     */
+    int peekOutputBuffer() {
+        return mAvailableOutputBuffers.peek();
+    }
+
+    /**
+     * @return The index of the oldest filled output buffer, or {@link #NO_BUFFER}. The caller
+     * must release it with {@link #releaseOutputBuffer}.
+     */
+    int pollOutputBuffer() {
+        return mAvailableOutputBuffers.poll();
+    }
+
+    /**
+     * @return Metadata of the output buffers, valid for indices taken from the output queue
+     * until they are released.
+     */
+    OutputBufferTable getOutputBufferInfo() {
+        return mOutputBufferInfo;
+    }
+
+    /**
+     * Removes the oldest filled output buffer and hands it back to the codec.
+     *
+     * @return Its index, or {@link #NO_BUFFER} if there was none.
+     */
+    int popOutputBuffer(boolean render, long renderTimestampNs) {
+        int index = mAvailableOutputBuffers.poll();
+        if (index != NO_BUFFER) {
+            // Read before the release: the codec thread may reuse the entry right after.
+            releaseOutputBuffer(index, mOutputBufferInfo.getPresentationTimeUs(index), render,
+                    renderTimestampNs);
+        }
+        return index;
+    }
+
+    /**
+     * Hands the output buffer at {@code index} back to the codec, rendering it at
+     * {@code renderTimestampNs}, a {@link System#nanoTime()} value, or as soon as possible for
+     * {@link #NO_RENDER_TIMESTAMP} or when releasing immediately, if {@code render} is set. May
+     * be called on any thread.
+     */
+    void releaseOutputBuffer(int index, long presentationTimeUs, boolean render,
+            long renderTimestampNs) {
+        if (render && renderTimestampNs != NO_RENDER_TIMESTAMP && !mImmediateRelease) {
+            mCodec.releaseOutputBuffer(index, renderTimestampNs);
+        } else {
+            mCodec.releaseOutputBuffer(index, render);
+        }
+        PipelineMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.recordRelease(presentationTimeUs, render);
+        }
+        if (mProfileMetrics != null) {
+            mProfileMetrics.recordRelease(presentationTimeUs, render);
+        }
+    }
+
+    /**
+     * Flushes the codec, drops every queued buffer and resumes decoding. No output buffer may
+     * be held at that point.
+     */
+    void flush() {
+        checkError();
+        mFlushing = true;
+        mCodec.flush();
+        // The codec thread has delivered its last stale callback and stays quiet until the
+        // codec is resumed, so the queues can be emptied from this side.
+        mAvailableInputBuffers.clear();
+        mAvailableOutputBuffers.clear();
+        // Whatever was in flight is gone.
+        mSamplesQueuedAtOutput = mSamplesQueued;
+        mInFlightLimitLifted = false;
+        mFlushing = false;
+        mCodec.resume();
+    }
+
+    /**
+     * Releases the codec and drops every queued buffer.
+     */
+    void release() {
+        mCodec.release();
+        mAvailableInputBuffers.clear();
+        mAvailableOutputBuffers.clear();
+    }
+
+    void setPipelineMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    // AsyncCodec.Callback, invoked on the codec thread.
+
+    @Override
+    public void onInputBufferAvailable(int index) {
+        if (mFlushing || !checkIndex(index)) {
+            return;
+        }
+        // The codec never announces an index that is still queued, so neither queue needs
+        // more room than the highest index it has seen.
+        mAvailableInputBuffers.ensureCapacity(index + 1);
+        if (!mAvailableInputBuffers.offer(index)) {
+            mError = new IllegalStateException("Input buffer queue overflow");
+        }
+    }
+
+    @Override
+    public void onOutputBufferAvailable(int index, int offset, int size,
+            long presentationTimeUs, int flags) {
+        if (mFlushing || !checkIndex(index)) {
+            return;
+        }
+        mOutputBufferInfo.ensureCapacity(index + 1);
+        mAvailableOutputBuffers.ensureCapacity(index + 1);
+        mOutputBufferInfo.set(index, offset, size, presentationTimeUs, flags);
+        if (!mAvailableOutputBuffers.offer(index)) {
+            mError = new IllegalStateException("Output buffer queue overflow");
+        }
+        mSamplesQueuedAtOutput = mSamplesQueued;
+        mOutputCount++;
+        PipelineMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.record(PipelineMetrics.STAGE_DEQUEUE_OUT, presentationTimeUs);
+            metrics.setQueueDepth(PipelineMetrics.QUEUE_CODEC_OUTPUT,
+                    mAvailableOutputBuffers.size());
+        }
+        if (mProfileMetrics != null) {
+            mProfileMetrics.record(PipelineMetrics.STAGE_DEQUEUE_OUT, presentationTimeUs);
+        }
+    }
+
+    @Override
+    public void onError(Exception error) {
+        mError = error;
+    }
+
+    // Records an invalid index as an error instead of throwing on the codec thread.
+    private boolean checkIndex(int index) {
+        if (index < 0) {
+            mError = new IllegalStateException("Codec buffer index out of range: " + index);
+            return false;
+        }
+        return true;
+    }
+}
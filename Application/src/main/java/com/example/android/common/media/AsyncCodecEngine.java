@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A {@link CodecEngine} driven by codec callbacks instead of polling.
+ *
+ * The codec announces free input buffers and filled output buffers on its own thread.
+ * {@link AsyncCodecBuffers} queues them without locking, so none of {@link #writeSample},
+ * {@link #peekSample} and {@link #popSample} ever waits on the codec. They must all be called
+ * from the same thread; only {@link OutputSampleLease}s from {@link #leaseSample} may be
+ * closed on any thread.
+ */
+public class AsyncCodecEngine implements CodecEngine {
+
+    // Number of leases the engine makes room for up front; it grows with the buffer indices.
+    private static final int INITIAL_LEASES = 64;
+
+    // Returned by queueSample() when no input buffer is free.
+    private static final int NO_INPUT_BUFFER = -1;
+
+    private final MediaCodecAsyncAdapter mCodec;
+    private final AsyncCodecBuffers mBuffers;
+
+    private final MediaCodec.CryptoInfo mCryptoInfo = new MediaCodec.CryptoInfo();
+
+    // One lease per output buffer index, created on first use and recycled afterwards. Only
+    // used, and grown, on the consumer thread.
+    private OutputSampleLease[] mLeases = new OutputSampleLease[INITIAL_LEASES];
+
+    // Guards mOutstandingLeases, mReleased and the release of leased buffers, which may happen
+    // on any thread.
+    private final Object mLeaseLock = new Object();
+    private int mOutstandingLeases;
+    private boolean mReleased;
+
+    private final OutputSampleLease.Owner mLeaseOwner = new OutputSampleLease.Owner() {
+        @Override
+        public void releaseLeasedBuffer(int index, long presentationTimeUs, boolean render,
+                long renderTimestampNs) {
+            synchronized (mLeaseLock) {
+                mOutstandingLeases--;
+                // Leases closed after stopAndRelease() have nothing left to give back.
+                if (mReleased) {
+                    return;
+                }
+                mBuffers.releaseOutputBuffer(index, presentationTimeUs, render,
+                        renderTimestampNs);
+            }
+        }
+    };
+
+    /**
+     * Wraps {@code codec} and starts it.
+     */
+    public AsyncCodecEngine(MediaCodecAsyncAdapter codec) {
+        this(codec, null);
+    }
+
+    /**
+     * Wraps {@code codec} and starts it, feeding it and releasing its output the way
+     * {@code profile} says.
+     *
+     * @param profile The profile {@code codec} was created with, or null for the defaults.
+     */
+    public AsyncCodecEngine(MediaCodecAsyncAdapter codec, DecodeProfile profile) {
+        mCodec = codec;
+        mBuffers = profile != null
+                ? new AsyncCodecBuffers(codec, profile.getMaxSamplesInFlight(),
+                        profile.isImmediateRelease(), profile.getMetrics())
+                : new AsyncCodecBuffers(codec);
+        mBuffers.start();
+    }
+
+    /**
+     * Creates a callback driven video decoder for {@code trackFormat}.
+     *
+     * @param trackFormat The format of the media object to be decoded.
+     * @param surface Surface to render the decoded frames.
+     * @return The engine, or null if {@code trackFormat} is not a video format.
+     */
+    public static AsyncCodecEngine fromVideoFormat(final MediaFormat trackFormat,
+            Surface surface) throws IOException {
+        return fromVideoFormat(trackFormat, surface, null);
+    }
+
+    /**
+     * Variant of {@link #fromVideoFormat(MediaFormat, Surface)} that reuses codecs from
+     * {@code pool} where the platform allows it, see
+     * {@link MediaCodecAsyncAdapter#createDecoder(MediaFormat, Surface, CodecPool)}.
+     */
+    public static AsyncCodecEngine fromVideoFormat(final MediaFormat trackFormat,
+            Surface surface, CodecPool pool) throws IOException {
+        return fromVideoFormat(trackFormat, surface, pool, null);
+    }
+
+    /**
+     * Variant of {@link #fromVideoFormat(MediaFormat, Surface, CodecPool)} that tunes the codec
+     * and paces its input with {@code profile}.
+     *
+     * @param pool May be null.
+     * @param profile See {@link DecodeProfile#lowLatency()} and
+     * {@link DecodeProfile#throughput()}. {@code trackFormat} is modified with its settings.
+     */
+    public static AsyncCodecEngine fromVideoFormat(final MediaFormat trackFormat,
+            Surface surface, CodecPool pool, DecodeProfile profile) throws IOException {
+        final String mimeType = trackFormat.getString(MediaFormat.KEY_MIME);
+        if (!mimeType.contains("video/")) {
+            return null;
+        }
+        return new AsyncCodecEngine(
+                MediaCodecAsyncAdapter.createDecoder(trackFormat, surface, pool, profile),
+                profile);
+    }
+
+    /**
+     * Creates a callback driven audio decoder producing PCM for {@code trackFormat}.
+     *
+     * @return The engine, or null if {@code trackFormat} is not an audio format.
+     */
+    public static AsyncCodecEngine fromAudioFormat(final MediaFormat trackFormat)
+            throws IOException {
+        final String mimeType = trackFormat.getString(MediaFormat.KEY_MIME);
+        if (!mimeType.startsWith("audio/")) {
+            return null;
+        }
+        return new AsyncCodecEngine(MediaCodecAsyncAdapter.createDecoder(trackFormat, null));
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+
+    @Override
+    public boolean writeSample(final ByteBuffer input,
+            final MediaCodec.CryptoInfo crypto,
+            final long presentationTimeUs,
+            final int flags) throws MediaCodec.CryptoException, MediaCodecWrapper.WriteException {
+        mBuffers.checkError();
+        int size = input.remaining();
+        int index = mBuffers.peekInputBuffer();
+        boolean endOfStream = (flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        if ((size <= 0 && !endOfStream) || index == AsyncCodecBuffers.NO_BUFFER
+                || (!endOfStream && mBuffers.inFlightLimitReached())) {
+            return false;
+        }
+
+        ByteBuffer buffer = mCodec.getInputBuffer(index);
+        // we can't write our sample to a lesser capacity input buffer. The index stays queued
+        // so the buffer isn't lost.
+        if (size > buffer.capacity()) {
+            throw new MediaCodecWrapper.WriteException(String.format(Locale.US,
+                    "Insufficient capacity in MediaCodec buffer: "
+                            + "tried to write %d, buffer capacity is %d.",
+                    size,
+                    buffer.capacity()));
+        }
+        mBuffers.pollInputBuffer();
+
+        buffer.clear();
+        buffer.put(input);
+        if (crypto == null) {
+            mBuffers.queueInputBuffer(index, size, presentationTimeUs, flags);
+        } else {
+            mCodec.queueSecureInputBuffer(index, 0, crypto, presentationTimeUs, flags);
+            mBuffers.recordQueueIn(presentationTimeUs);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean writeSample(final MediaExtractor extractor,
+            final boolean isSecure,
+            final long presentationTimeUs,
+            int flags) {
+        mBuffers.checkError();
+        return queueSample(extractor, isSecure, presentationTimeUs, flags) != NO_INPUT_BUFFER;
+    }
+
+    @Override
+    public int writeSamples(final MediaExtractor extractor, final FeedBudget budget) {
+        mBuffers.checkError();
+        budget.start();
+        while (budget.hasRemaining()) {
+            long presentationTimeUs = extractor.getSampleTime();
+            int sampleFlags = presentationTimeUs < 0 ? 0 : extractor.getSampleFlags();
+            int flags = (sampleFlags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                    ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+            int size = queueSample(extractor,
+                    (sampleFlags & MediaExtractor.SAMPLE_FLAG_ENCRYPTED) != 0,
+                    Math.max(presentationTimeUs, 0), flags);
+            if (size == NO_INPUT_BUFFER) {
+                break;
+            }
+            budget.consume(size);
+            if (presentationTimeUs < 0) {
+                break;
+            }
+            extractor.advance();
+        }
+        return budget.getSamples();
+    }
+
+    // Queues the extractor's current sample. Returns its size, or NO_INPUT_BUFFER.
+    private int queueSample(final MediaExtractor extractor,
+            final boolean isSecure,
+            final long presentationTimeUs,
+            int flags) {
+        // The end of stream is never held back.
+        if (extractor.getSampleTime() >= 0 && mBuffers.inFlightLimitReached()) {
+            return NO_INPUT_BUFFER;
+        }
+        int index = mBuffers.pollInputBuffer();
+        if (index == AsyncCodecBuffers.NO_BUFFER) {
+            return NO_INPUT_BUFFER;
+        }
+
+        ByteBuffer buffer = mCodec.getInputBuffer(index);
+        int size = extractor.readSampleData(buffer, 0);
+        if (size <= 0) {
+            size = 0;
+            flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        }
+
+        if (!isSecure) {
+            mBuffers.queueInputBuffer(index, size, presentationTimeUs, flags);
+        } else {
+            extractor.getSampleCryptoInfo(mCryptoInfo);
+            mCodec.queueSecureInputBuffer(index, 0, mCryptoInfo, presentationTimeUs, flags);
+            mBuffers.recordQueueIn(presentationTimeUs);
+        }
+        return size;
+    }
+
+    @Override
+    public boolean peekSample(MediaCodec.BufferInfo out_bufferInfo) {
+        mBuffers.checkError();
+        int index = mBuffers.peekOutputBuffer();
+        if (index == AsyncCodecBuffers.NO_BUFFER) {
+            return false;
+        }
+        getOutputBufferInfo(index, out_bufferInfo);
+        return true;
+    }
+
+    @Override
+    public ByteBuffer peekOutputBuffer() {
+        mBuffers.checkError();
+        int index = mBuffers.peekOutputBuffer();
+        return index == AsyncCodecBuffers.NO_BUFFER ? null : mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public Image peekOutputImage() {
+        mBuffers.checkError();
+        int index = mBuffers.peekOutputBuffer();
+        return index == AsyncCodecBuffers.NO_BUFFER ? null : mCodec.getOutputImage(index);
+    }
+
+    @Override
+    public void popSample(boolean render) {
+        mBuffers.checkError();
+        mBuffers.popOutputBuffer(render, AsyncCodecBuffers.NO_RENDER_TIMESTAMP);
+    }
+
+    @Override
+    public void popSample(long renderTimestampNs) {
+        mBuffers.checkError();
+        mBuffers.popOutputBuffer(true, renderTimestampNs);
+    }
+
+    @Override
+    public OutputSampleLease leaseSample(boolean render) {
+        return leaseSample(render, AsyncCodecBuffers.NO_RENDER_TIMESTAMP);
+    }
+
+    @Override
+    public OutputSampleLease leaseSample(long renderTimestampNs) {
+        return leaseSample(true, renderTimestampNs);
+    }
+
+    private OutputSampleLease leaseSample(boolean render, long renderTimestampNs) {
+        mBuffers.checkError();
+        int index = mBuffers.pollOutputBuffer();
+        if (index == AsyncCodecBuffers.NO_BUFFER) {
+            return null;
+        }
+        if (index >= mLeases.length) {
+            mLeases = Arrays.copyOf(mLeases, Math.max(index + 1, 2 * mLeases.length));
+        }
+        OutputSampleLease lease = mLeases[index];
+        if (lease == null) {
+            lease = new OutputSampleLease(mLeaseOwner, index);
+            mLeases[index] = lease;
+        }
+        // The entry stays put while the buffer is leased; the codec can't reuse the index.
+        getOutputBufferInfo(index, lease.info());
+        synchronized (mLeaseLock) {
+            mOutstandingLeases++;
+        }
+        lease.open(mCodec.getOutputBuffer(index), render, renderTimestampNs, 1);
+        return lease;
+    }
+
+    @Override
+    public int getOutstandingLeaseCount() {
+        synchronized (mLeaseLock) {
+            return mOutstandingLeases;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalStateException if output buffers are still leased.
+     */
+    @Override
+    public void flush() {
+        mBuffers.checkError();
+        synchronized (mLeaseLock) {
+            if (mOutstandingLeases > 0) {
+                throw new IllegalStateException(
+                        mOutstandingLeases + " output buffers are still leased");
+            }
+        }
+        mBuffers.flush();
+    }
+
+    @Override
+    public void stopAndRelease() {
+        synchronized (mLeaseLock) {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            mBuffers.release();
+        }
+    }
+
+    @Override
+    public void setPipelineMetrics(PipelineMetrics metrics) {
+        mBuffers.setPipelineMetrics(metrics);
+    }
+
+    private void getOutputBufferInfo(int index, MediaCodec.BufferInfo out_bufferInfo) {
+        OutputBufferTable table = mBuffers.getOutputBufferInfo();
+        out_bufferInfo.set(table.getOffset(index), table.getSize(index),
+                table.getPresentationTimeUs(index), table.getFlags(index));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+
+/**
+ * A {@link MasterClock} following the audio actually played out by an {@link AudioTrack}, so
+ * that video is presented in sync with what is heard.
+ *
+ * The position comes from {@link AudioTrack#getTimestamp(AudioTimestamp)}, which ties a frame
+ * position to the time it was presented, extrapolated to the requested time. Until the track
+ * provides timestamps, which takes a moment after it starts, the playback head position is
+ * used instead. The clock never runs ahead of the audio written to the track, so it stops
+ * rather than drifting away during an underrun. Once the last audio has played, or the
+ * pipeline feeding the track failed, it runs on by the system clock from where the audio
+ * stopped, so video without audio left keeps playing.
+ *
+ * The clock is fed by {@link AudioPipeline} and can be read from any thread.
+ */
+public final class AudioClock implements MasterClock {
+
+    // Timestamps are refreshed at most this often; they are only updated by the platform every
+    // few tens of milliseconds anyway, and extrapolation covers the time in between.
+    private static final long TIMESTAMP_POLL_INTERVAL_NS = 10000000;
+
+    private final AudioTimestamp mTimestamp = new AudioTimestamp();
+
+    // Guarded by this.
+    private AudioTrack mTrack;
+    private int mSampleRate;
+    private boolean mPlaying;
+    // Media time of the first frame written since the last reset, or TIME_UNSET.
+    private long mBaseTimeUs = TIME_UNSET;
+    private long mFramesWritten;
+    // Frame position of the track at the last reset; positions count from there.
+    private long mStartPosition;
+    // The 32-bit playback head position, unwrapped.
+    private long mLastRawHeadPosition;
+    private long mHeadPositionWraps;
+    private boolean mHasTimestamp;
+    private long mLastTimestampPollNs;
+    // Set once the end of stream was written to the track.
+    private boolean mEnded;
+    // Once the clock stopped following the track: the media time it had then, and when.
+    private long mFreeRunBaseUs = TIME_UNSET;
+    private long mFreeRunBaseNs;
+
+    @Override
+    public float getPlaybackRate() {
+        return 1f;
+    }
+
+    @Override
+    public synchronized long getMediaTimeUs(long systemTimeNs) {
+        if (mFreeRunBaseUs != TIME_UNSET) {
+            return mFreeRunBaseUs + (systemTimeNs - mFreeRunBaseNs) / 1000;
+        }
+        if (mTrack == null || mBaseTimeUs == TIME_UNSET) {
+            return TIME_UNSET;
+        }
+        long frames;
+        if (mPlaying && systemTimeNs - mLastTimestampPollNs >= TIMESTAMP_POLL_INTERVAL_NS) {
+            mLastTimestampPollNs = systemTimeNs;
+            mHasTimestamp = mTrack.getTimestamp(mTimestamp)
+                    && mTimestamp.framePosition >= mStartPosition;
+        }
+        if (mHasTimestamp) {
+            frames = mTimestamp.framePosition - mStartPosition;
+            if (mPlaying) {
+                frames += (systemTimeNs - mTimestamp.nanoTime) * mSampleRate / 1000000000L;
+            }
+        } else {
+            frames = getHeadPosition() - mStartPosition;
+        }
+        boolean playedOut = frames >= mFramesWritten;
+        frames = Math.max(0, Math.min(frames, mFramesWritten));
+        long timeUs = mBaseTimeUs + frames * 1000000L / mSampleRate;
+        if (mEnded && playedOut) {
+            freeRun(timeUs, systemTimeNs);
+        }
+        return timeUs;
+    }
+
+    /**
+     * Makes the clock follow {@code track}, which plays PCM at {@code sampleRate}. The clock
+     * stops until audio is written to the track. Call again after the track was flushed, which
+     * may rewind its position.
+     */
+    synchronized void attach(AudioTrack track, int sampleRate) {
+        mTrack = track;
+        mSampleRate = sampleRate;
+        mLastRawHeadPosition = 0;
+        mHeadPositionWraps = 0;
+        mBaseTimeUs = TIME_UNSET;
+        mFramesWritten = 0;
+        mHasTimestamp = false;
+        mLastTimestampPollNs = 0;
+        mEnded = false;
+        mFreeRunBaseUs = TIME_UNSET;
+        mStartPosition = getHeadPosition();
+    }
+
+    /**
+     * Stops the clock for good, before the track is released.
+     */
+    synchronized void detach() {
+        mTrack = null;
+    }
+
+    /**
+     * Records that {@code frames} frames were written to the track, the first of which is at
+     * {@code presentationTimeUs}.
+     */
+    synchronized void onWritten(long presentationTimeUs, long frames) {
+        if (mBaseTimeUs == TIME_UNSET) {
+            mBaseTimeUs = presentationTimeUs;
+        }
+        mFramesWritten += frames;
+    }
+
+    /**
+     * Records that the end of stream was written to the track. The clock runs on by itself
+     * once the track has played everything before it.
+     */
+    synchronized void onEnded() {
+        mEnded = true;
+    }
+
+    /**
+     * Stops following the track, e.g. because nothing feeds it anymore, and runs on by itself
+     * from the current position. The clock stays unset if no audio was written yet.
+     */
+    synchronized void onFailed(long systemTimeNs) {
+        long timeUs = getMediaTimeUs(systemTimeNs);
+        if (timeUs != TIME_UNSET) {
+            freeRun(timeUs, systemTimeNs);
+        }
+    }
+
+    private void freeRun(long timeUs, long systemTimeNs) {
+        if (mFreeRunBaseUs == TIME_UNSET) {
+            mFreeRunBaseUs = timeUs;
+            mFreeRunBaseNs = systemTimeNs;
+        }
+    }
+
+    synchronized void setPlaying(boolean playing) {
+        mPlaying = playing;
+        // Timestamps taken while paused don't advance; fetch a fresh one on resume.
+        mHasTimestamp = false;
+        mLastTimestampPollNs = 0;
+    }
+
+    private long getHeadPosition() {
+        long raw = mTrack.getPlaybackHeadPosition() & 0xffffffffL;
+        if (raw < mLastRawHeadPosition) {
+            mHeadPositionWraps++;
+        }
+        mLastRawHeadPosition = raw;
+        return (mHeadPositionWraps << 32) + raw;
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decodes an audio track and plays it through an {@link AudioTrack}, all on a thread of its
+ * own, and exposes the played position as an {@link AudioClock} for video to follow.
+ *
+ * Samples come from a {@link DemuxStage} with its own extractor, and decoded PCM stays in the
+ * codec's output buffers until the track has taken all of it. Both queues are bounded and
+ * PCM is written in non-blocking mode, so a slow audio device holds up neither the demuxer
+ * nor the video pipeline; the thread just waits for the next round.
+ */
+public class AudioPipeline {
+
+    private static final String TAG = "AudioPipeline";
+
+    // Time the thread sleeps when neither the codec nor the track could make progress. Well
+    // below the track's buffer duration, so it never runs dry because of it.
+    private static final long IDLE_WAIT_NS = 2000000;
+
+    // The track buffer holds this many times the platform minimum, to ride out scheduling
+    // hiccups of the audio thread.
+    private static final int TRACK_BUFFER_MULTIPLIER = 4;
+
+    private static final int BYTES_PER_FRAME_PER_CHANNEL = 2;
+
+    /**
+     * Notified when audio playback fails and the audio thread stops.
+     */
+    public interface ErrorListener {
+        /**
+         * Called on the audio thread. The clock runs on by itself from where the audio
+         * stopped; the pipeline still has to be released.
+         */
+        void onAudioError(AudioPipeline sender, Throwable error);
+    }
+
+    private final CodecEngine mCodec;
+    private final DemuxStage mDemuxStage;
+    private final MediaFormat mTrackFormat;
+    private final AudioClock mClock = new AudioClock();
+    private final FeedBudget mFeedBudget = new FeedBudget();
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    // Owned by the audio thread.
+    private AudioTrack mTrack;
+    private int mFrameSize;
+    private boolean mTrackPlaying;
+    // The output buffer being written to the track, or null.
+    private ByteBuffer mPending;
+    private long mPendingTimeUs;
+    private boolean mPendingEndOfStream;
+    private long mDiscardUntilUs = -1;
+
+    private volatile boolean mRunning;
+    private volatile boolean mPaused;
+    private volatile boolean mEnded;
+    private volatile Thread mThread;
+    private volatile ErrorListener mErrorListener;
+
+    // Guarded by this. A seek requested by another thread, carried out by the audio thread.
+    private long mPendingSeekUs = -1;
+
+    /**
+     * @param codec Audio decoder for {@code trackFormat}, producing 16-bit PCM into buffers.
+     * @param demuxStage Demux stage reading the audio track from an extractor of its own. It
+     * is started and stopped along with the pipeline.
+     * @param trackFormat The format of the audio track.
+     */
+    public AudioPipeline(CodecEngine codec, DemuxStage demuxStage, MediaFormat trackFormat) {
+        mCodec = codec;
+        mDemuxStage = demuxStage;
+        mTrackFormat = trackFormat;
+    }
+
+    /**
+     * @return The clock following the audio played so far.
+     */
+    public AudioClock getClock() {
+        return mClock;
+    }
+
+    public void setErrorListener(ErrorListener listener) {
+        mErrorListener = listener;
+    }
+
+    /**
+     * Starts demuxing, decoding and playing on new threads.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            throw new IllegalStateException("Already started");
+        }
+        mRunning = true;
+        mDemuxStage.start();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+                try {
+                    loop();
+                } catch (RuntimeException | MediaCodecWrapper.WriteException e) {
+                    Log.e(TAG, "Audio playback failed", e);
+                    mClock.onFailed(System.nanoTime());
+                    ErrorListener listener = mErrorListener;
+                    if (listener != null) {
+                        listener.onAudioError(AudioPipeline.this, e);
+                    }
+                }
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    public void pause() {
+        mPaused = true;
+        wakeUp();
+    }
+
+    public void resume() {
+        mPaused = false;
+        wakeUp();
+    }
+
+    /**
+     * Moves playback to {@code timeUs}. Audio before it is decoded but not played. Returns
+     * right away; the clock stops until audio from the new position plays.
+     */
+    public synchronized void seekTo(long timeUs) {
+        mPendingSeekUs = Math.max(0, timeUs);
+        wakeUp();
+    }
+
+    /**
+     * @return True once the end of the stream was handed to the track, until the next seek.
+     */
+    public boolean isEnded() {
+        return mEnded;
+    }
+
+    /**
+     * Stops the threads and releases the track and the codec. The demux stage's extractor can
+     * be released afterwards.
+     */
+    public void release() {
+        synchronized (this) {
+            mRunning = false;
+            wakeUp();
+        }
+        Thread thread = mThread;
+        if (thread != null) {
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mDemuxStage.stop();
+        mClock.detach();
+        if (mTrack != null) {
+            mTrack.release();
+            mTrack = null;
+        }
+        mCodec.stopAndRelease();
+    }
+
+    private void wakeUp() {
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    // Runs on mThread.
+    private void loop() throws MediaCodecWrapper.WriteException {
+        while (mRunning) {
+            long seekUs;
+            synchronized (this) {
+                seekUs = mPendingSeekUs;
+                mPendingSeekUs = -1;
+            }
+            if (seekUs >= 0) {
+                handleSeek(seekUs);
+            }
+            if (mTrack != null && mTrackPlaying == mPaused) {
+                setTrackPlaying(!mPaused);
+            }
+
+            boolean progress = false;
+            if (!mPaused && !mEnded) {
+                progress = mDemuxStage.feed(mCodec, mFeedBudget) > 0;
+                progress |= render();
+            }
+            if (!progress) {
+                LockSupport.parkNanos(this, IDLE_WAIT_NS);
+            }
+        }
+    }
+
+    // Writes decoded audio to the track until it's full. Returns true if anything was written.
+    private boolean render() {
+        boolean progress = false;
+        while (true) {
+            if (mPending == null && !nextBuffer()) {
+                return progress;
+            }
+            if (mPending.hasRemaining()) {
+                int written = mTrack.write(mPending, mPending.remaining(),
+                        AudioTrack.WRITE_NON_BLOCKING);
+                if (written < 0) {
+                    throw new IllegalStateException("AudioTrack write failed: " + written);
+                }
+                if (written == 0) {
+                    return progress;
+                }
+                mClock.onWritten(mPendingTimeUs, written / mFrameSize);
+                progress = true;
+                if (mPending.hasRemaining()) {
+                    // The track is full; come back once it played some.
+                    return true;
+                }
+            }
+            mPending = null;
+            mCodec.popSample(false);
+            if (mPendingEndOfStream) {
+                // Plays out what's buffered, then stops.
+                mTrack.stop();
+                mClock.onEnded();
+                mEnded = true;
+                return true;
+            }
+        }
+    }
+
+    // Makes the next output buffer with audio to play the pending one. Returns false if
+    // there's none.
+    private boolean nextBuffer() {
+        while (mCodec.peekSample(mBufferInfo)) {
+            boolean endOfStream = (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            if (!endOfStream && mBufferInfo.presentationTimeUs < mDiscardUntilUs) {
+                mCodec.popSample(false);
+                continue;
+            }
+            mDiscardUntilUs = -1;
+            ByteBuffer buffer = mCodec.peekOutputBuffer();
+            if (buffer == null) {
+                // Only the end of stream, without data.
+                buffer = ByteBuffer.allocate(0);
+            } else {
+                buffer.limit(mBufferInfo.offset + mBufferInfo.size);
+                buffer.position(mBufferInfo.offset);
+            }
+            if (mTrack == null) {
+                createTrack();
+            }
+            mPending = buffer;
+            mPendingTimeUs = mBufferInfo.presentationTimeUs;
+            mPendingEndOfStream = endOfStream;
+            return true;
+        }
+        return false;
+    }
+
+    private void handleSeek(long timeUs) {
+        mEnded = false;
+        mPending = null;
+        mPendingEndOfStream = false;
+        // Audio samples are all sync samples, so the extractor lands right before timeUs.
+        mDemuxStage.seekTo(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        mCodec.flush();
+        mDiscardUntilUs = timeUs;
+        if (mTrack != null) {
+            mTrack.pause();
+            mTrack.flush();
+            mTrackPlaying = false;
+            mClock.attach(mTrack, mTrack.getSampleRate());
+        }
+    }
+
+    private void setTrackPlaying(boolean playing) {
+        if (playing) {
+            mTrack.play();
+        } else {
+            mTrack.pause();
+        }
+        mTrackPlaying = playing;
+        mClock.setPlaying(playing);
+    }
+
+    // The codec reports its output format before the first buffer; the track format is only
+    // a fallback.
+    private void createTrack() {
+        MediaFormat format = mCodec.getOutputFormat();
+        if (format == null) {
+            format = mTrackFormat;
+        }
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        int channelMask;
+        switch (channelCount) {
+            case 1:
+                channelMask = AudioFormat.CHANNEL_OUT_MONO;
+                break;
+            case 2:
+                channelMask = AudioFormat.CHANNEL_OUT_STEREO;
+                break;
+            case 6:
+                channelMask = AudioFormat.CHANNEL_OUT_5POINT1;
+                break;
+            case 8:
+                // The surround layout needs API 23; before that the older 7.1 mask is the
+                // one the platform accepts.
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                    channelMask = AudioFormat.CHANNEL_OUT_7POINT1_SURROUND;
+                } else {
+                    channelMask = AudioFormat.CHANNEL_OUT_7POINT1;
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unsupported channel count: " + channelCount);
+        }
+        int bufferSize = AudioTrack.getMinBufferSize(sampleRate, channelMask,
+                AudioFormat.ENCODING_PCM_16BIT);
+        if (bufferSize <= 0) {
+            throw new IllegalStateException("Unsupported audio format: " + format);
+        }
+        mTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelMask,
+                AudioFormat.ENCODING_PCM_16BIT, bufferSize * TRACK_BUFFER_MULTIPLIER,
+                AudioTrack.MODE_STREAM);
+        if (mTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+            mTrack.release();
+            mTrack = null;
+            throw new IllegalStateException("Unable to create AudioTrack for " + format);
+        }
+        mFrameSize = channelCount * BYTES_PER_FRAME_PER_CHANNEL;
+        mTrackPlaying = false;
+        mClock.attach(mTrack, sampleRate);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The sample-level decoding surface shared by {@link MediaCodecWrapper}, which polls the codec
+ * synchronously, and {@link AsyncCodecEngine}, which is driven by codec callbacks.
+ */
+public interface CodecEngine {
+
+    /**
+     * Write a media sample to the decoder.
+     *
+     * @see MediaCodecWrapper#writeSample(ByteBuffer, MediaCodec.CryptoInfo, long, int)
+     */
+    boolean writeSample(ByteBuffer input, MediaCodec.CryptoInfo crypto, long presentationTimeUs,
+            int flags) throws MediaCodec.CryptoException, MediaCodecWrapper.WriteException;
+
+    /**
+     * Write the current sample of {@code extractor} to the decoder.
+     *
+     * @see MediaCodecWrapper#writeSample(MediaExtractor, boolean, long, int)
+     */
+    boolean writeSample(MediaExtractor extractor, boolean isSecure, long presentationTimeUs,
+            int flags);
+
+    /**
+     * Writes as many samples from {@code extractor} as the decoder has room for and
+     * {@code budget} allows, advancing the extractor past each of them.
+     *
+     * @return The number of samples queued.
+     * @see MediaCodecWrapper#writeSamples(MediaExtractor, FeedBudget)
+     */
+    int writeSamples(MediaExtractor extractor, FeedBudget budget);
+
+    /**
+     * Copies the metadata of the output buffer at the head of the queue into
+     * {@code out_bufferInfo}.
+     *
+     * @return True, if an output buffer was available.
+     */
+    boolean peekSample(MediaCodec.BufferInfo out_bufferInfo);
+
+    /**
+     * @return A read-only, zero-copy view of the output buffer at the head of the queue, or
+     * null if there is none or the codec renders to a surface.
+     *
+     * @see MediaCodecWrapper#peekOutputBuffer()
+     */
+    ByteBuffer peekOutputBuffer();
+
+    /**
+     * @return The output buffer at the head of the queue as an {@link Image}, or null.
+     *
+     * @see MediaCodecWrapper#peekOutputImage()
+     */
+    Image peekOutputImage();
+
+    /**
+     * @return The latest output format reported by the codec, or null if none was reported yet.
+     */
+    MediaFormat getOutputFormat();
+
+    /**
+     * Releases and optionally renders the output buffer at the head of the queue.
+     */
+    void popSample(boolean render);
+
+    /**
+     * Releases the output buffer at the head of the queue and renders it at
+     * {@code renderTimestampNs}, a {@link System#nanoTime()} value.
+     *
+     * @see MediaCodecWrapper#popSample(long)
+     */
+    void popSample(long renderTimestampNs);
+
+    /**
+     * Removes the output buffer at the head of the queue and hands it out as a lease instead of
+     * releasing it. The buffer goes back to the codec, rendered if {@code render} is set, once
+     * the lease is closed.
+     *
+     * @return The lease, or null if no output buffer was available.
+     * @see OutputSampleLease
+     */
+    OutputSampleLease leaseSample(boolean render);
+
+    /**
+     * Like {@link #leaseSample(boolean)}, but the buffer is rendered at
+     * {@code renderTimestampNs}, a {@link System#nanoTime()} value, once the lease is closed.
+     */
+    OutputSampleLease leaseSample(long renderTimestampNs);
+
+    /**
+     * @return Number of output buffers currently held by {@link OutputSampleLease}s.
+     */
+    int getOutstandingLeaseCount();
+
+    /**
+     * Discards every queued input sample and pending output buffer, e.g. after a seek. Output
+     * buffers must not be held, e.g. through leases, at that point.
+     */
+    void flush();
+
+    /**
+     * Releases resources and ends the decoding session.
+     */
+    void stopAndRelease();
+
+    /**
+     * Reports queue-in, dequeue-out and render-release of every sample, as well as the depth of
+     * the codec queues, to {@code metrics}. Pass null to stop reporting.
+     */
+    void setPipelineMetrics(PipelineMetrics metrics);
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keeps stopped decoders around for reuse, so that restarting playback doesn't pay for
+ * creating a codec again, which is one of the slowest steps to the first frame.
+ *
+ * Codecs are pooled by mime type, resolution class and output mode (surface or buffers,
+ * synchronous or callback driven); a stopped codec only needs to be configured and started
+ * again. The pool caps the number of codec instances it knows about, idle and in use, and
+ * evicts the least recently returned idle codec to stay under it. It also measures the time
+ * from {@link #acquire} to {@link #onStarted}, separately for warm (pooled) and cold (newly
+ * created) codecs.
+ *
+ * Thread-safe.
+ */
+public final class CodecPool {
+
+    private static final String TAG = "CodecPool";
+
+    private static final class Entry {
+        final String key;
+        final MediaCodec codec;
+        boolean warm;
+        long acquiredNs;
+
+        Entry(String key, MediaCodec codec) {
+            this.key = key;
+            this.codec = codec;
+        }
+    }
+
+    private final int mMaxInstances;
+
+    // Guarded by this. Idle codecs, least recently returned first.
+    private final LinkedList<Entry> mIdle = new LinkedList<>();
+    private final IdentityHashMap<MediaCodec, Entry> mInUse = new IdentityHashMap<>();
+
+    private long mWarmStarts;
+    private long mColdStarts;
+    private long mWarmStartNs;
+    private long mColdStartNs;
+    private long mEvictions;
+
+    /**
+     * @param maxInstances Most codecs, idle or in use, that the pool lets exist at once before
+     * it starts evicting idle ones. Hardware decoders are scarce; keep this small.
+     */
+    public CodecPool(int maxInstances) {
+        if (maxInstances <= 0) {
+            throw new IllegalArgumentException("maxInstances must be positive");
+        }
+        mMaxInstances = maxInstances;
+    }
+
+    /**
+     * @return The pool key of a decoder for {@code format}.
+     */
+    public static String keyOf(MediaFormat format, boolean surfaceMode, boolean async) {
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        int size = 0;
+        if (format.containsKey(MediaFormat.KEY_WIDTH)
+                && format.containsKey(MediaFormat.KEY_HEIGHT)) {
+            size = Math.max(format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT));
+        }
+        String resolutionClass;
+        if (size <= 720) {
+            resolutionClass = "sd";
+        } else if (size <= 1280) {
+            resolutionClass = "hd";
+        } else if (size <= 1920) {
+            resolutionClass = "fhd";
+        } else {
+            resolutionClass = "uhd";
+        }
+        return mimeType + "/" + resolutionClass + (surfaceMode ? "/surface" : "/buffer")
+                + (async ? "/async" : "/sync");
+    }
+
+    /**
+     * Hands out an unconfigured decoder for {@code format}: an idle pooled one if there is
+     * one, else a new one picked by {@link CodecSelector}. Configure and start it, call
+     * {@link #onStarted}, and give it back with {@link #release} or {@link #discard} when done.
+     */
+    public MediaCodec acquire(MediaFormat format, boolean surfaceMode, boolean async)
+            throws IOException {
+        long start = System.nanoTime();
+        String key = keyOf(format, surfaceMode, async);
+        Entry entry = null;
+        List<Entry> evicted = new ArrayList<>();
+        synchronized (this) {
+            // Prefer the most recently returned codec, it's the least likely to be paged out.
+            Iterator<Entry> it = mIdle.descendingIterator();
+            while (it.hasNext()) {
+                Entry candidate = it.next();
+                if (candidate.key.equals(key)) {
+                    it.remove();
+                    entry = candidate;
+                    break;
+                }
+            }
+            if (entry == null) {
+                // Make room for the new instance first; the device may not be able to hold
+                // one more.
+                while (!mIdle.isEmpty() && mIdle.size() + mInUse.size() >= mMaxInstances) {
+                    evicted.add(mIdle.removeFirst());
+                    mEvictions++;
+                }
+            }
+        }
+        releaseAll(evicted);
+
+        if (entry == null) {
+            entry = new Entry(key, CodecSelector.createDecoder(format));
+        }
+        entry.acquiredNs = start;
+        synchronized (this) {
+            mInUse.put(entry.codec, entry);
+        }
+        return entry.codec;
+    }
+
+    /**
+     * Records that {@code codec}, as returned by {@link #acquire}, is configured and running.
+     */
+    public synchronized void onStarted(MediaCodec codec) {
+        Entry entry = mInUse.get(codec);
+        if (entry == null || entry.acquiredNs == 0) {
+            return;
+        }
+        long elapsed = System.nanoTime() - entry.acquiredNs;
+        entry.acquiredNs = 0;
+        if (entry.warm) {
+            mWarmStarts++;
+            mWarmStartNs += elapsed;
+        } else {
+            mColdStarts++;
+            mColdStartNs += elapsed;
+        }
+    }
+
+    /**
+     * Stops {@code codec} and keeps it for reuse. Codecs the pool doesn't know, or that fail
+     * to stop, are released instead. Codecs the pool already holds idle, i.e. that were given
+     * back before, are left alone.
+     */
+    public void release(MediaCodec codec) {
+        Entry entry;
+        synchronized (this) {
+            entry = mInUse.remove(codec);
+            if (entry == null && findIdle(codec) != null) {
+                Log.w(TAG, "Ignoring codec released twice");
+                return;
+            }
+        }
+        if (entry == null || !stop(codec)) {
+            codec.release();
+            return;
+        }
+
+        List<Entry> evicted = new ArrayList<>();
+        synchronized (this) {
+            entry.warm = true;
+            mIdle.addLast(entry);
+            while (mIdle.size() + mInUse.size() > mMaxInstances) {
+                evicted.add(mIdle.removeFirst());
+                mEvictions++;
+            }
+        }
+        releaseAll(evicted);
+    }
+
+    /**
+     * Releases {@code codec} for good, e.g. after it failed.
+     */
+    public void discard(MediaCodec codec) {
+        synchronized (this) {
+            if (mInUse.remove(codec) == null) {
+                mIdle.remove(findIdle(codec));
+            }
+        }
+        codec.release();
+    }
+
+    // Guarded by this.
+    private Entry findIdle(MediaCodec codec) {
+        for (Entry entry : mIdle) {
+            if (entry.codec == codec) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Releases every idle codec.
+     */
+    public void clear() {
+        List<Entry> idle;
+        synchronized (this) {
+            idle = new ArrayList<>(mIdle);
+            mIdle.clear();
+        }
+        releaseAll(idle);
+    }
+
+    public synchronized int getIdleCount() {
+        return mIdle.size();
+    }
+
+    public synchronized long getWarmStarts() {
+        return mWarmStarts;
+    }
+
+    public synchronized long getColdStarts() {
+        return mColdStarts;
+    }
+
+    /**
+     * @return Average time from acquire to start of pooled codecs, in nanoseconds.
+     */
+    public synchronized long getAverageWarmStartNs() {
+        return mWarmStarts == 0 ? 0 : mWarmStartNs / mWarmStarts;
+    }
+
+    /**
+     * @return Average time from acquire to start of newly created codecs, in nanoseconds.
+     */
+    public synchronized long getAverageColdStartNs() {
+        return mColdStarts == 0 ? 0 : mColdStartNs / mColdStarts;
+    }
+
+    public synchronized long getEvictions() {
+        return mEvictions;
+    }
+
+    /**
+     * @return A human readable report, for logging.
+     */
+    public synchronized String summary() {
+        return String.format(Locale.US,
+                "warm starts=%d (avg %.1f ms) cold starts=%d (avg %.1f ms) idle=%d evictions=%d",
+                mWarmStarts, getAverageWarmStartNs() / 1e6, mColdStarts,
+                getAverageColdStartNs() / 1e6, mIdle.size(), mEvictions);
+    }
+
+    // Brings the codec back to the Uninitialized state, ready to be configured again.
+    private static boolean stop(MediaCodec codec) {
+        try {
+            codec.stop();
+            return true;
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Unable to stop codec, resetting it", e);
+        }
+        try {
+            codec.reset();
+            return true;
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Unable to reset codec, dropping it", e);
+            return false;
+        }
+    }
+
+    private static void releaseAll(List<Entry> entries) {
+        for (Entry entry : entries) {
+            entry.codec.release();
+        }
+    }
+}
@@ -0,0 +1,467 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecInfo.CodecProfileLevel;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Picks the decoder to use for a format instead of leaving it to
+ * {@link MediaCodec#createDecoderByType(String)}.
+ *
+ * {@link MediaCodecList} is walked once, on first use, into a table holding just what ranking
+ * needs, leaving out decoders that require secure or tunneled playback, which plain decoding
+ * can't provide. Decoders that can't handle the format's size are left out; the others are
+ * ranked by, in order: support for the stream's profile and level, hardware acceleration,
+ * whether they can keep up with its frame rate, and the frame rate they can achieve at its
+ * size. Ties keep
+ * the platform's order, so the same format always gets the same decoder. Rankings are cached
+ * by format.
+ *
+ * Thread-safe.
+ */
+public final class CodecSelector {
+
+    private static final String TAG = "CodecSelector";
+
+    // A decoder that can't handle the stream's profile and level may fail on it, however fast
+    // it is, so that outweighs everything else; the terms below stay far smaller.
+    private static final int SCORE_PROFILE_LEVEL = 1 << 3;
+    // Bumps a candidate past any software decoder of equal profile support.
+    private static final int SCORE_HARDWARE = 1 << 2;
+    private static final int SCORE_FRAME_RATE = 1 << 1;
+
+    private static CodecSelector sInstance;
+
+    /**
+     * Configures a decoder freshly created by {@link #createDecoder(MediaFormat, boolean,
+     * Configurator)}.
+     */
+    public interface Configurator {
+        /**
+         * @throws RuntimeException If the decoder can't be configured, e.g. because it
+         * rejects the format.
+         */
+        void configure(MediaCodec codec);
+    }
+
+    /**
+     * One (decoder, mime type) row of the capability table.
+     */
+    private static final class Entry {
+        final String name;
+        final String mimeType;
+        final boolean hardware;
+        // profile and level pairs, flattened.
+        final int[] profileLevels;
+        // Null for non-video types.
+        final MediaCodecInfo.VideoCapabilities video;
+        // 0 if the platform doesn't say.
+        final int maxInstances;
+        final int position;
+
+        Entry(String name, String mimeType, boolean hardware, int[] profileLevels,
+                MediaCodecInfo.VideoCapabilities video, int maxInstances, int position) {
+            this.name = name;
+            this.mimeType = mimeType;
+            this.hardware = hardware;
+            this.profileLevels = profileLevels;
+            this.video = video;
+            this.maxInstances = maxInstances;
+            this.position = position;
+        }
+    }
+
+    private static final class Candidate {
+        final Entry entry;
+        final int score;
+        final double achievableFrameRate;
+
+        Candidate(Entry entry, int score, double achievableFrameRate) {
+            this.entry = entry;
+            this.score = score;
+            this.achievableFrameRate = achievableFrameRate;
+        }
+    }
+
+    private static final Comparator<Candidate> BEST_FIRST = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+            if (a.score != b.score) {
+                return a.score > b.score ? -1 : 1;
+            }
+            int byRate = Double.compare(b.achievableFrameRate, a.achievableFrameRate);
+            if (byRate != 0) {
+                return byRate;
+            }
+            return a.entry.position - b.entry.position;
+        }
+    };
+
+    private final Entry[] mEntries;
+    // Guarded by itself. Ranked decoder names, by format key.
+    private final Map<String, String[]> mRankings = new HashMap<>();
+
+    private CodecSelector(Entry[] entries) {
+        mEntries = entries;
+    }
+
+    /**
+     * @return The selector over this device's decoders, building its table on first use.
+     */
+    public static synchronized CodecSelector getInstance() {
+        if (sInstance == null) {
+            sInstance = new CodecSelector(scan());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates the best decoder for {@code format}, falling back down the ranking if a decoder
+     * can't be instantiated, and to {@link MediaCodec#createDecoderByType(String)} if none is
+     * left.
+     */
+    public static MediaCodec createDecoder(MediaFormat format) throws IOException {
+        return createDecoder(format, true);
+    }
+
+    /**
+     * Variant of {@link #createDecoder(MediaFormat)} that can be kept off hardware decoders,
+     * e.g. when their instances are rationed.
+     *
+     * @throws IOException If {@code allowHardware} is false and no software decoder fits.
+     */
+    public static MediaCodec createDecoder(MediaFormat format, boolean allowHardware)
+            throws IOException {
+        return createDecoder(format, allowHardware, null);
+    }
+
+    /**
+     * Variant of {@link #createDecoder(MediaFormat, boolean)} that also has each decoder
+     * configured by {@code configurator}, and falls back down the ranking if that fails too.
+     * Some decoders only reject a stream once they are configured with it.
+     *
+     * @param configurator Configures the decoder, or null to leave it unconfigured.
+     */
+    public static MediaCodec createDecoder(MediaFormat format, boolean allowHardware,
+            Configurator configurator) throws IOException {
+        for (String name : getInstance().rank(format)) {
+            if (!allowHardware && isHardwareAccelerated(name)) {
+                continue;
+            }
+            MediaCodec codec;
+            try {
+                codec = MediaCodec.createByCodecName(name);
+            } catch (IOException | IllegalArgumentException e) {
+                Log.w(TAG, "Unable to create " + name, e);
+                continue;
+            }
+            if (configurator == null) {
+                return codec;
+            }
+            try {
+                configurator.configure(codec);
+                return codec;
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Unable to configure " + name, e);
+                codec.release();
+            }
+        }
+        if (!allowHardware) {
+            throw new IOException("No software decoder for " + format);
+        }
+        MediaCodec codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        if (configurator != null) {
+            try {
+                configurator.configure(codec);
+            } catch (RuntimeException e) {
+                codec.release();
+                throw e;
+            }
+        }
+        return codec;
+    }
+
+    /**
+     * @return The names of the decoders able to decode {@code format}, best first. Empty if
+     * none is.
+     */
+    public String[] rank(MediaFormat format) {
+        String key = keyOf(format);
+        synchronized (mRankings) {
+            String[] ranking = mRankings.get(key);
+            if (ranking != null) {
+                return ranking.clone();
+            }
+        }
+
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        int width = getInteger(format, MediaFormat.KEY_WIDTH);
+        int height = getInteger(format, MediaFormat.KEY_HEIGHT);
+        double frameRate = getFrameRate(format);
+        int[] profileLevel = getProfileLevel(format);
+
+        List<Candidate> candidates = new ArrayList<>();
+        for (Entry entry : mEntries) {
+            if (!entry.mimeType.equalsIgnoreCase(mimeType)) {
+                continue;
+            }
+            double achievable = 0;
+            int score = entry.hardware ? SCORE_HARDWARE : 0;
+            if (entry.video != null && width > 0 && height > 0) {
+                if (!entry.video.isSizeSupported(width, height)) {
+                    continue;
+                }
+                achievable = getAchievableFrameRate(entry.video, width, height);
+                if (frameRate <= 0 || achievable <= 0 || achievable >= frameRate) {
+                    score |= SCORE_FRAME_RATE;
+                }
+            }
+            if (profileLevel == null || supports(entry, profileLevel[0], profileLevel[1])) {
+                score |= SCORE_PROFILE_LEVEL;
+            }
+            candidates.add(new Candidate(entry, score, achievable));
+        }
+        Collections.sort(candidates, BEST_FIRST);
+
+        String[] ranking = new String[candidates.size()];
+        for (int i = 0; i < ranking.length; i++) {
+            ranking[i] = candidates.get(i).entry.name;
+        }
+        synchronized (mRankings) {
+            mRankings.put(key, ranking);
+        }
+        return ranking.clone();
+    }
+
+    /**
+     * @return How many instances of the best decoder for {@code format} can run at once, or
+     * {@code defaultValue} if the platform doesn't say (before API 23) or no decoder fits.
+     */
+    public int getMaxSupportedInstances(MediaFormat format, int defaultValue) {
+        String[] ranking = rank(format);
+        if (ranking.length == 0) {
+            return defaultValue;
+        }
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        for (Entry entry : mEntries) {
+            if (entry.name.equals(ranking[0]) && entry.mimeType.equalsIgnoreCase(mimeType)) {
+                return entry.maxInstances > 0 ? entry.maxInstances : defaultValue;
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @return Whether {@code name} looks like a hardware decoder.
+     * {@code MediaCodecInfo.isHardwareAccelerated()} needs API 29, so this goes by the naming
+     * conventions of the platform's software codecs.
+     */
+    public static boolean isHardwareAccelerated(String name) {
+        String lower = name.toLowerCase(Locale.US);
+        return !(lower.startsWith("omx.google.")
+                || lower.startsWith("c2.android.")
+                || lower.startsWith("c2.google.")
+                || lower.startsWith("omx.ffmpeg.")
+                || lower.startsWith("c2.ffmpeg.")
+                || lower.startsWith("omx.sec.") && lower.contains(".sw.")
+                || lower.equals("omx.qcom.video.decoder.hevcswvdec")
+                || lower.startsWith("omx.pv")
+                || !lower.startsWith("omx.") && !lower.startsWith("c2."));
+    }
+
+    private static Entry[] scan() {
+        List<Entry> entries = new ArrayList<>();
+        MediaCodecInfo[] infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        for (MediaCodecInfo info : infos) {
+            if (info.isEncoder()) {
+                continue;
+            }
+            boolean hardware = isHardwareAccelerated(info.getName());
+            for (String mimeType : info.getSupportedTypes()) {
+                MediaCodecInfo.CodecCapabilities capabilities;
+                try {
+                    capabilities = info.getCapabilitiesForType(mimeType);
+                } catch (IllegalArgumentException e) {
+                    // Some devices list types they then fail to describe.
+                    Log.w(TAG, "No capabilities for " + info.getName() + " " + mimeType, e);
+                    continue;
+                }
+                // These only work with a crypto session or a tunneled audio session.
+                if (capabilities.isFeatureRequired(
+                        MediaCodecInfo.CodecCapabilities.FEATURE_SecurePlayback)
+                        || capabilities.isFeatureRequired(
+                        MediaCodecInfo.CodecCapabilities.FEATURE_TunneledPlayback)) {
+                    continue;
+                }
+                CodecProfileLevel[] levels = capabilities.profileLevels;
+                int[] profileLevels = new int[levels == null ? 0 : levels.length * 2];
+                for (int i = 0; i < profileLevels.length / 2; i++) {
+                    profileLevels[2 * i] = levels[i].profile;
+                    profileLevels[2 * i + 1] = levels[i].level;
+                }
+                int maxInstances = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                        ? capabilities.getMaxSupportedInstances() : 0;
+                entries.add(new Entry(info.getName(), mimeType, hardware, profileLevels,
+                        capabilities.getVideoCapabilities(), maxInstances, entries.size()));
+            }
+        }
+        return entries.toArray(new Entry[entries.size()]);
+    }
+
+    private static boolean supports(Entry entry, int profile, int level) {
+        for (int i = 0; i < entry.profileLevels.length; i += 2) {
+            // Levels are bit flags that grow with the level, within each codec's constants.
+            if (entry.profileLevels[i] == profile && entry.profileLevels[i + 1] >= level) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Measured rate the decoder sustains at the size, or 0 if not known.
+    private static double getAchievableFrameRate(MediaCodecInfo.VideoCapabilities video,
+            int width, int height) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return 0;
+        }
+        try {
+            Range<Double> range = video.getAchievableFrameRatesFor(width, height);
+            return range == null ? 0 : range.getUpper();
+        } catch (IllegalArgumentException e) {
+            return 0;
+        }
+    }
+
+    private static String keyOf(MediaFormat format) {
+        int[] profileLevel = getProfileLevel(format);
+        return format.getString(MediaFormat.KEY_MIME)
+                + "/" + getInteger(format, MediaFormat.KEY_WIDTH)
+                + "x" + getInteger(format, MediaFormat.KEY_HEIGHT)
+                + "@" + getFrameRate(format)
+                + (profileLevel == null ? "" : "/" + profileLevel[0] + "." + profileLevel[1]);
+    }
+
+    private static int getInteger(MediaFormat format, String key) {
+        return format.containsKey(key) ? format.getInteger(key) : 0;
+    }
+
+    // Frame rate of format, or 0 if it doesn't say.
+    static double getFrameRate(MediaFormat format) {
+        if (!format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            return 0;
+        }
+        // Extractors report it as an integer, applications tend to set a float.
+        try {
+            return format.getInteger(MediaFormat.KEY_FRAME_RATE);
+        } catch (ClassCastException e) {
+            return format.getFloat(MediaFormat.KEY_FRAME_RATE);
+        }
+    }
+
+    // Returns {profile, level} as CodecProfileLevel constants, or null if unknown.
+    private static int[] getProfileLevel(MediaFormat format) {
+        if (format.containsKey(MediaFormat.KEY_PROFILE)
+                && format.containsKey(MediaFormat.KEY_LEVEL)) {
+            return new int[] {
+                    format.getInteger(MediaFormat.KEY_PROFILE),
+                    format.getInteger(MediaFormat.KEY_LEVEL) };
+        }
+        // Older extractors don't report them; for H.264 they're in the SPS.
+        if ("video/avc".equals(format.getString(MediaFormat.KEY_MIME))
+                && format.containsKey("csd-0")) {
+            return parseAvcProfileLevel(format.getByteBuffer("csd-0"));
+        }
+        return null;
+    }
+
+    private static int[] parseAvcProfileLevel(ByteBuffer csd) {
+        if (csd == null) {
+            return null;
+        }
+        // csd-0 holds the SPS behind an Annex B start code: NAL header, profile_idc,
+        // constraint flags, level_idc.
+        ByteBuffer sps = csd.duplicate();
+        int zeros = 0;
+        while (sps.remaining() >= 5) {
+            int b = sps.get() & 0xff;
+            if (zeros >= 2 && b == 1 && (sps.get(sps.position()) & 0x1f) == 7) {
+                sps.get();
+                int profileIdc = sps.get() & 0xff;
+                int constraints = sps.get() & 0xff;
+                int levelIdc = sps.get() & 0xff;
+                int profile = avcProfile(profileIdc);
+                int level = avcLevel(levelIdc, (constraints & 0x10) != 0);
+                return profile == 0 || level == 0 ? null : new int[] { profile, level };
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        return null;
+    }
+
+    private static int avcProfile(int profileIdc) {
+        switch (profileIdc) {
+            case 66: return CodecProfileLevel.AVCProfileBaseline;
+            case 77: return CodecProfileLevel.AVCProfileMain;
+            case 88: return CodecProfileLevel.AVCProfileExtended;
+            case 100: return CodecProfileLevel.AVCProfileHigh;
+            case 110: return CodecProfileLevel.AVCProfileHigh10;
+            case 122: return CodecProfileLevel.AVCProfileHigh422;
+            case 244: return CodecProfileLevel.AVCProfileHigh444;
+            default: return 0;
+        }
+    }
+
+    private static int avcLevel(int levelIdc, boolean constraintSet3) {
+        switch (levelIdc) {
+            case 9: return CodecProfileLevel.AVCLevel1b;
+            case 10: return CodecProfileLevel.AVCLevel1;
+            case 11: return constraintSet3
+                    ? CodecProfileLevel.AVCLevel1b : CodecProfileLevel.AVCLevel11;
+            case 12: return CodecProfileLevel.AVCLevel12;
+            case 13: return CodecProfileLevel.AVCLevel13;
+            case 20: return CodecProfileLevel.AVCLevel2;
+            case 21: return CodecProfileLevel.AVCLevel21;
+            case 22: return CodecProfileLevel.AVCLevel22;
+            case 30: return CodecProfileLevel.AVCLevel3;
+            case 31: return CodecProfileLevel.AVCLevel31;
+            case 32: return CodecProfileLevel.AVCLevel32;
+            case 40: return CodecProfileLevel.AVCLevel4;
+            case 41: return CodecProfileLevel.AVCLevel41;
+            case 42: return CodecProfileLevel.AVCLevel42;
+            case 50: return CodecProfileLevel.AVCLevel5;
+            case 51: return CodecProfileLevel.AVCLevel51;
+            case 52: return CodecProfileLevel.AVCLevel52;
+            default: return 0;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import java.util.Locale;
+
+/**
+ * How a decoder is tuned and fed: for the lowest latency per frame, for live and interactive
+ * use, or for the most frames per second, for batch work. Pass one to
+ * {@link MediaCodecWrapper#fromVideoFormat(MediaFormat, android.view.Surface, CodecPool,
+ * DecodeProfile)} or {@link AsyncCodecEngine#fromVideoFormat(MediaFormat,
+ * android.view.Surface, CodecPool, DecodeProfile)}.
+ *
+ * The low-latency profile asks for a realtime codec ({@link MediaFormat#KEY_PRIORITY} 0)
+ * running at twice the content frame rate, enables the codec's low-latency mode where it
+ * advertises one, keeps at most two samples in flight and renders every frame as soon as it
+ * is released. The throughput profile asks for a best-effort codec running as fast as it can,
+ * keeps every input buffer filled and renders at the requested timestamps.
+ *
+ * Each profile keeps its own {@link PipelineMetrics}, so the decode-to-present latency of the
+ * sessions using it can be compared with the other profile's. Use an instance for one session
+ * at a time.
+ */
+public final class DecodeProfile {
+
+    // MediaFormat.KEY_LOW_LATENCY and CodecCapabilities.FEATURE_LowLatency, both API 30.
+    private static final String KEY_LOW_LATENCY = "low-latency";
+    private static final String FEATURE_LOW_LATENCY = "low-latency";
+
+    // Values of MediaFormat.KEY_PRIORITY.
+    private static final int PRIORITY_REALTIME = 0;
+    private static final int PRIORITY_BEST_EFFORT = 1;
+
+    // Used when the track doesn't say.
+    private static final int DEFAULT_FRAME_RATE = 60;
+
+    private final String mName;
+    private final int mPriority;
+    private final boolean mMaxOperatingRate;
+    private final boolean mLowLatency;
+    private final int mMaxSamplesInFlight;
+    private final boolean mImmediateRelease;
+    private final PipelineMetrics mMetrics = new PipelineMetrics();
+    private volatile boolean mLowLatencyEnabled;
+
+    private DecodeProfile(String name, int priority, boolean maxOperatingRate,
+            boolean lowLatency, int maxSamplesInFlight, boolean immediateRelease) {
+        mName = name;
+        mPriority = priority;
+        mMaxOperatingRate = maxOperatingRate;
+        mLowLatency = lowLatency;
+        mMaxSamplesInFlight = maxSamplesInFlight;
+        mImmediateRelease = immediateRelease;
+    }
+
+    /**
+     * @return A new profile minimizing the time from queueing a sample to presenting it.
+     */
+    public static DecodeProfile lowLatency() {
+        return new DecodeProfile("low-latency", PRIORITY_REALTIME, false, true, 2, true);
+    }
+
+    /**
+     * @return A new profile maximizing the number of frames decoded per second.
+     */
+    public static DecodeProfile throughput() {
+        return new DecodeProfile("throughput", PRIORITY_BEST_EFFORT, true, false, 0, false);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return Most samples queued to the codec since it last output one, or 0 for no limit.
+     */
+    public int getMaxSamplesInFlight() {
+        return mMaxSamplesInFlight;
+    }
+
+    /**
+     * @return True if frames are rendered as soon as they are released, ignoring render
+     * timestamps.
+     */
+    public boolean isImmediateRelease() {
+        return mImmediateRelease;
+    }
+
+    /**
+     * @return True if the last codec configured with this profile has its low-latency mode on.
+     */
+    public boolean isLowLatencyEnabled() {
+        return mLowLatencyEnabled;
+    }
+
+    /**
+     * Has {@code scheduler} release frames as soon as they are decoded if this profile
+     * renders immediately, instead of holding them until shortly before they are due.
+     */
+    public void configure(PresentationScheduler scheduler) {
+        if (mImmediateRelease) {
+            scheduler.setRenderAheadUs(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * @return Metrics of the sessions decoding with this profile.
+     */
+    public PipelineMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return Time from queueing a sample to releasing its frame for rendering, in
+     * nanoseconds.
+     */
+    public long getDecodeToPresentLatencyNs(double percentile) {
+        return mMetrics.getLatencySinceQueueInNs(PipelineMetrics.STAGE_RENDER_RELEASE,
+                percentile);
+    }
+
+    /**
+     * @return A one line report, for logging.
+     */
+    public String summary() {
+        return String.format(Locale.US,
+                "%s: decode-to-present p50=%.2fms p99=%.2fms frames=%d low-latency mode=%b",
+                mName, getDecodeToPresentLatencyNs(50) / 1e6,
+                getDecodeToPresentLatencyNs(99) / 1e6,
+                mMetrics.getStageCount(PipelineMetrics.STAGE_RENDER_RELEASE),
+                mLowLatencyEnabled);
+    }
+
+    // Adds the tuning keys the platform and codec support to format, before configure().
+    void apply(MediaFormat format, MediaCodec codec) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            format.setInteger(MediaFormat.KEY_PRIORITY, mPriority);
+            if (mMaxOperatingRate) {
+                // Documented to mean as fast as possible.
+                format.setInteger(MediaFormat.KEY_OPERATING_RATE, Short.MAX_VALUE);
+            } else {
+                double frameRate = CodecSelector.getFrameRate(format);
+                if (frameRate <= 0) {
+                    frameRate = DEFAULT_FRAME_RATE;
+                }
+                // Headroom, so each frame is decoded in well under a frame interval.
+                format.setInteger(MediaFormat.KEY_OPERATING_RATE, (int) (2 * frameRate));
+            }
+        }
+        mLowLatencyEnabled = false;
+        if (mLowLatency) {
+            String mimeType = format.getString(MediaFormat.KEY_MIME);
+            MediaCodecInfo.CodecCapabilities capabilities =
+                    codec.getCodecInfo().getCapabilitiesForType(mimeType);
+            if (capabilities.isFeatureSupported(FEATURE_LOW_LATENCY)) {
+                format.setInteger(KEY_LOW_LATENCY, 1);
+                mLowLatencyEnabled = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes many streams at once on a small, fixed set of worker threads, for review walls and
+ * thumbnail grids.
+ *
+ * Each stream is a {@link Session}: an extractor, a polled {@link MediaCodecWrapper} and a
+ * {@link FrameSink} that takes the decoded frames. Ready sessions wait in a single queue in the
+ * order they became ready. A worker takes the oldest one, runs it for one short quantum (a
+ * time-boxed batch of input and a bounded number of output frames) and puts it back at the
+ * end, so every stream gets its turn no matter how many there are. Sessions with nothing to do
+ * are looked at again after a short delay, and a session whose sink is full is parked until
+ * the sink calls {@link Session#signal()}; it holds on to its decoded frames meanwhile, which
+ * in turn stops it from taking more input.
+ *
+ * Hardware decoder instances are rationed across all sessions. Once the limit is reached, new
+ * sessions get a software decoder.
+ */
+public final class DecodeSessionManager {
+
+    private static final String TAG = "DecodeSessionManager";
+
+    // Longest a session may spend queueing input per quantum.
+    private static final long QUANTUM_INPUT_NS = 2000000;
+
+    // Most output frames a session hands to its sink per quantum.
+    private static final int QUANTUM_OUTPUT_FRAMES = 4;
+
+    // Delay before a session that made no progress is run again.
+    private static final long IDLE_RETRY_NS = 2000000;
+
+    /**
+     * Receives the decoded frames of a session, on a worker thread.
+     */
+    public interface FrameSink {
+
+        /** Render the frame to the session's surface, if it has one, and release it. */
+        int RESULT_RENDER = 0;
+        /** Release the frame without rendering it. */
+        int RESULT_DROP = 1;
+        /**
+         * Keep the frame in the codec and stop decoding this session until
+         * {@link Session#signal()} is called.
+         */
+        int RESULT_FULL = 2;
+
+        /**
+         * Offers the frame at the head of {@code codec}'s output queue, whose data can be read
+         * with {@link CodecEngine#peekOutputBuffer()} or {@link CodecEngine#peekOutputImage()}
+         * until this returns.
+         *
+         * @return One of the {@code RESULT_*} constants.
+         */
+        int onFrame(Session session, CodecEngine codec, MediaCodec.BufferInfo info);
+
+        /**
+         * Called once the last frame has been offered. The session is closed afterwards.
+         */
+        void onEndOfStream(Session session);
+
+        /**
+         * Called if decoding failed. The session is closed afterwards.
+         */
+        void onError(Session session, Exception e);
+    }
+
+    /**
+     * One stream being decoded. Created by {@link #openSession}.
+     */
+    public final class Session implements Delayed {
+
+        private static final int STATE_QUEUED = 0;
+        private static final int STATE_RUNNING = 1;
+        private static final int STATE_BLOCKED = 2;
+        private static final int STATE_CLOSED = 3;
+
+        private static final int QUANTUM_PROGRESS = 0;
+        private static final int QUANTUM_IDLE = 1;
+        private static final int QUANTUM_FULL = 2;
+        private static final int QUANTUM_END = 3;
+
+        private final String mName;
+        private final MediaExtractor mExtractor;
+        private final CodecEngine mCodec;
+        private final FrameSink mSink;
+        private final boolean mHardware;
+        private final FeedBudget mBudget = new FeedBudget();
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        private boolean mInputDone;
+
+        // Guarded by this.
+        private int mState;
+        private boolean mSignalled;
+        private boolean mCloseRequested;
+        private long mBlockedSinceNs;
+        // Written with the lock held, read without it by the ready queue, which calls
+        // getDelay() and compareTo() under its own lock.
+        private volatile long mReadyAtNs;
+
+        // Statistics, written by the worker running the session.
+        private volatile long mSamplesQueued;
+        private volatile long mFramesRendered;
+        private volatile long mFramesDropped;
+        private volatile long mQuanta;
+        private volatile long mBusyNs;
+        private volatile long mBackPressureCount;
+        private volatile long mBlockedNs;
+
+        private Session(String name, MediaExtractor extractor, CodecEngine codec, FrameSink sink,
+                boolean hardware) {
+            mName = name;
+            mExtractor = extractor;
+            mCodec = codec;
+            mSink = sink;
+            mHardware = hardware;
+            mBudget.setMaxTimeNs(QUANTUM_INPUT_NS);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return Whether the session holds one of the manager's hardware decoder slots.
+         */
+        public boolean isHardware() {
+            return mHardware;
+        }
+
+        /**
+         * Tells a session that its sink has room again. Safe to call from any thread, and at
+         * any time.
+         */
+        public void signal() {
+            synchronized (this) {
+                if (mState == STATE_RUNNING) {
+                    mSignalled = true;
+                    return;
+                }
+                if (mState != STATE_BLOCKED) {
+                    return;
+                }
+                mBlockedNs += System.nanoTime() - mBlockedSinceNs;
+                enqueue(0);
+            }
+        }
+
+        /**
+         * Stops decoding and releases the codec, right away or, if a worker is running the
+         * session, at the end of its quantum. The extractor stays with the caller and must not
+         * be released before {@link #isClosed()}.
+         */
+        public void close() {
+            boolean queued;
+            synchronized (this) {
+                if (mState == STATE_CLOSED) {
+                    return;
+                }
+                mCloseRequested = true;
+                if (mState == STATE_RUNNING) {
+                    return;
+                }
+                queued = mState == STATE_QUEUED;
+                mState = STATE_CLOSED;
+            }
+            // Outside the lock: the ready queue takes its own lock first and then ours, through
+            // getDelay(). A worker that takes the session meanwhile finds it closed.
+            if (queued) {
+                mReady.remove(this);
+            }
+            finish();
+        }
+
+        public synchronized boolean isClosed() {
+            return mState == STATE_CLOSED;
+        }
+
+        public long getSamplesQueued() {
+            return mSamplesQueued;
+        }
+
+        public long getFramesRendered() {
+            return mFramesRendered;
+        }
+
+        public long getFramesDropped() {
+            return mFramesDropped;
+        }
+
+        /**
+         * @return Number of times the session was run by a worker.
+         */
+        public long getQuanta() {
+            return mQuanta;
+        }
+
+        /**
+         * @return Total worker time spent on the session, in nanoseconds.
+         */
+        public long getBusyNs() {
+            return mBusyNs;
+        }
+
+        /**
+         * @return Number of times the sink was full.
+         */
+        public long getBackPressureCount() {
+            return mBackPressureCount;
+        }
+
+        /**
+         * @return Total time spent waiting for the sink, in nanoseconds.
+         */
+        public long getBlockedNs() {
+            return mBlockedNs;
+        }
+
+        /**
+         * @return A one line report, for logging.
+         */
+        public String summary() {
+            return String.format(Locale.US,
+                    "%s (%s): queued=%d rendered=%d dropped=%d quanta=%d busy=%.1f ms "
+                            + "back-pressure=%d blocked=%.1f ms",
+                    mName, mHardware ? "hw" : "sw", mSamplesQueued, mFramesRendered,
+                    mFramesDropped, mQuanta, mBusyNs / 1e6, mBackPressureCount,
+                    mBlockedNs / 1e6);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mReadyAtNs - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long a = mReadyAtNs;
+            long b = ((Session) other).mReadyAtNs;
+            return a < b ? -1 : (a == b ? 0 : 1);
+        }
+
+        // Called with the lock held.
+        private void enqueue(long delayNs) {
+            mState = STATE_QUEUED;
+            mReadyAtNs = System.nanoTime() + delayNs;
+            mReady.offer(this);
+        }
+
+        // Runs one quantum on a worker thread and decides where the session goes next.
+        private void run() {
+            synchronized (this) {
+                if (mState != STATE_QUEUED) {
+                    return;
+                }
+                mState = STATE_RUNNING;
+            }
+
+            long start = System.nanoTime();
+            int result;
+            try {
+                result = runQuantum();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Decoding failed in " + mName, e);
+                mSink.onError(this, e);
+                result = QUANTUM_END;
+            }
+            long end = System.nanoTime();
+            mBusyNs += end - start;
+            mQuanta++;
+
+            boolean finish = false;
+            synchronized (this) {
+                if (mCloseRequested || result == QUANTUM_END) {
+                    mState = STATE_CLOSED;
+                    finish = true;
+                } else if (result == QUANTUM_FULL && !mSignalled) {
+                    mState = STATE_BLOCKED;
+                    mBlockedSinceNs = end;
+                    mBackPressureCount++;
+                } else {
+                    enqueue(result == QUANTUM_IDLE ? IDLE_RETRY_NS : 0);
+                }
+                mSignalled = false;
+            }
+            if (finish) {
+                finish();
+            }
+        }
+
+        private int runQuantum() {
+            boolean progress = false;
+
+            // Offer decoded frames first; frames stuck in the codec hold up its input too.
+            for (int i = 0; i < QUANTUM_OUTPUT_FRAMES && mCodec.peekSample(mInfo); i++) {
+                if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 && mInfo.size == 0) {
+                    mCodec.popSample(false);
+                    mSink.onEndOfStream(this);
+                    return QUANTUM_END;
+                }
+                int action = mSink.onFrame(this, mCodec, mInfo);
+                if (action == FrameSink.RESULT_FULL) {
+                    return QUANTUM_FULL;
+                }
+                boolean render = action == FrameSink.RESULT_RENDER;
+                boolean endOfStream = (mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                mCodec.popSample(render);
+                if (render) {
+                    mFramesRendered++;
+                } else {
+                    mFramesDropped++;
+                }
+                progress = true;
+                if (endOfStream) {
+                    mSink.onEndOfStream(this);
+                    return QUANTUM_END;
+                }
+            }
+
+            if (!mInputDone) {
+                // At the end, the only sample left to queue is the empty end-of-stream buffer.
+                boolean atEnd = mExtractor.getSampleTime() < 0;
+                int queued = mCodec.writeSamples(mExtractor, mBudget);
+                if (atEnd) {
+                    mInputDone = queued > 0;
+                } else {
+                    mSamplesQueued += queued;
+                }
+                progress |= queued > 0;
+            }
+            return progress ? QUANTUM_PROGRESS : QUANTUM_IDLE;
+        }
+
+        private void finish() {
+            try {
+                mCodec.stopAndRelease();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Unable to release codec of " + mName, e);
+            }
+            if (mHardware) {
+                mHardwareSlots.release();
+            }
+            synchronized (mSessions) {
+                mSessions.remove(this);
+            }
+        }
+    }
+
+    private final DelayQueue<Session> mReady = new DelayQueue<>();
+    private final Semaphore mHardwareSlots;
+    private final Thread[] mWorkers;
+    // Guarded by itself.
+    private final List<Session> mSessions = new ArrayList<>();
+    private volatile boolean mShutdown;
+
+    /**
+     * Starts the worker threads.
+     *
+     * @param workerCount Number of threads decoding sessions.
+     * @param maxHardwareCodecs Most hardware decoders open at once across all sessions.
+     */
+    public DecodeSessionManager(int workerCount, int maxHardwareCodecs) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("workerCount must be positive");
+        }
+        mHardwareSlots = new Semaphore(maxHardwareCodecs);
+        mWorkers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, TAG + "-" + i);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Creates a decoder for {@code trackFormat} and starts decoding the selected track of
+     * {@code extractor} into {@code sink}. The extractor must not be touched until the session
+     * is closed.
+     *
+     * @param surface Surface to render to, or null to decode into buffers.
+     * @throws IOException If no decoder could be created.
+     */
+    public Session openSession(String name, MediaExtractor extractor, MediaFormat trackFormat,
+            Surface surface, FrameSink sink) throws IOException {
+        if (mShutdown) {
+            throw new IllegalStateException("Manager is shut down");
+        }
+        boolean hardware = mHardwareSlots.tryAcquire();
+        MediaCodecWrapper codec;
+        try {
+            MediaCodec decoder = CodecSelector.createDecoder(trackFormat, hardware,
+                    MediaCodecWrapper.configurator(trackFormat, surface, null));
+            if (hardware && !CodecSelector.isHardwareAccelerated(decoder.getName())) {
+                // Got a software decoder anyway; leave the slot to someone else.
+                mHardwareSlots.release();
+                hardware = false;
+            }
+            codec = MediaCodecWrapper.fromConfiguredCodec(decoder);
+        } catch (IOException | RuntimeException e) {
+            if (hardware) {
+                mHardwareSlots.release();
+            }
+            throw e;
+        }
+
+        Session session = new Session(name, extractor, codec, sink, hardware);
+        synchronized (mSessions) {
+            mSessions.add(session);
+        }
+        synchronized (session) {
+            session.enqueue(0);
+        }
+        return session;
+    }
+
+    /**
+     * @return The open sessions.
+     */
+    public List<Session> getSessions() {
+        synchronized (mSessions) {
+            return new ArrayList<>(mSessions);
+        }
+    }
+
+    /**
+     * @return Number of hardware decoders that can still be handed out.
+     */
+    public int getAvailableHardwareCodecs() {
+        return mHardwareSlots.availablePermits();
+    }
+
+    /**
+     * Closes every session and stops the worker threads.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        for (Thread worker : mWorkers) {
+            worker.interrupt();
+        }
+        boolean interrupted = false;
+        for (Thread worker : mWorkers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        for (Session session : getSessions()) {
+            session.close();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Worker loop.
+    private void work() {
+        while (!mShutdown) {
+            Session session;
+            try {
+                session = mReady.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            session.run();
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a {@link MediaExtractor} on its own thread and keeps up to N samples ready for the
+ * decoder, so that reading and advancing through the file never happens on the thread that
+ * feeds the codec.
+ *
+ * Samples are stored in a fixed ring of reusable direct buffers. The extractor thread is the
+ * only producer and a single consumer drains the ring with {@link #peek()}/{@link #release()}
+ * or, more conveniently, {@link #feed(CodecEngine)}. Once {@link #start()} has been called the
+ * extractor must not be touched by anyone else until {@link #stop()} returns.
+ */
+public class DemuxStage {
+
+    private static final String TAG = "DemuxStage";
+
+    // Used when the track format doesn't advertise KEY_MAX_INPUT_SIZE.
+    private static final int DEFAULT_MAX_SAMPLE_SIZE = 1024 * 1024;
+
+    /**
+     * One prefetched access unit. Instances are owned by the stage and recycled; they are only
+     * valid between {@link #peek()} and the matching {@link #release()}.
+     */
+    public static final class Sample {
+        private ByteBuffer mData;
+        private long mPresentationTimeUs;
+        private int mFlags;
+        private int mTrackIndex;
+        private boolean mEndOfStream;
+        private final MediaCodec.CryptoInfo mCryptoInfo = new MediaCodec.CryptoInfo();
+
+        private Sample(int capacity) {
+            mData = ByteBuffer.allocateDirect(capacity);
+        }
+
+        /**
+         * @return The sample data, positioned for reading.
+         */
+        public ByteBuffer getData() {
+            return mData;
+        }
+
+        public long getPresentationTimeUs() {
+            return mPresentationTimeUs;
+        }
+
+        /**
+         * @return The extractor flags of the sample, see {@link MediaExtractor#getSampleFlags()}.
+         */
+        public int getFlags() {
+            return mFlags;
+        }
+
+        public int getTrackIndex() {
+            return mTrackIndex;
+        }
+
+        public boolean isEndOfStream() {
+            return mEndOfStream;
+        }
+
+        public boolean isEncrypted() {
+            return (mFlags & MediaExtractor.SAMPLE_FLAG_ENCRYPTED) != 0;
+        }
+
+        /**
+         * @return Crypto information, only meaningful if {@link #isEncrypted()}.
+         */
+        public MediaCodec.CryptoInfo getCryptoInfo() {
+            return mCryptoInfo;
+        }
+
+        /**
+         * @return The flags to queue this sample to a codec with.
+         */
+        public int getCodecFlags() {
+            int flags = 0;
+            if ((mFlags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                flags |= MediaCodec.BUFFER_FLAG_KEY_FRAME;
+            }
+            if (isEndOfStream()) {
+                flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+            }
+            return flags;
+        }
+    }
+
+    private final MediaExtractor mExtractor;
+    private final Sample[] mSamples;
+    // Used by feed(CodecEngine), on the consumer thread.
+    private final FeedBudget mUnlimitedBudget = new FeedBudget();
+
+    // Number of samples published by the producer and consumed by the consumer. Their
+    // difference is the number of ready samples.
+    private volatile long mWritten;
+    private volatile long mRead;
+
+    private volatile boolean mRunning;
+    private volatile boolean mEndOfStreamReached;
+    private volatile Thread mThread;
+
+    /**
+     * @param extractor Extractor with the tracks to play already selected.
+     * @param prefetchCount Number of samples to keep ready.
+     * @param maxSampleSize Initial capacity of each sample buffer. Buffers grow if a sample
+     * turns out to be larger.
+     */
+    public DemuxStage(MediaExtractor extractor, int prefetchCount, int maxSampleSize) {
+        if (prefetchCount <= 0) {
+            throw new IllegalArgumentException("prefetchCount must be positive");
+        }
+        mExtractor = extractor;
+        mSamples = new Sample[prefetchCount];
+        for (int i = 0; i < prefetchCount; i++) {
+            mSamples[i] = new Sample(maxSampleSize);
+        }
+    }
+
+    /**
+     * @return The buffer size to use for samples of {@code format}.
+     */
+    public static int maxSampleSize(MediaFormat format) {
+        if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+            return format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+        }
+        return DEFAULT_MAX_SAMPLE_SIZE;
+    }
+
+    /**
+     * Starts prefetching on a new thread.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            throw new IllegalStateException("Already started");
+        }
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                extract();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Stops the extractor thread and waits for it to exit. The extractor can be released
+     * afterwards.
+     */
+    public synchronized void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            LockSupport.unpark(mThread);
+            boolean interrupted = false;
+            while (mThread.isAlive()) {
+                try {
+                    mThread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            mThread = null;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Discards the prefetched samples and moves the extractor to {@code timeUs}, restarting the
+     * extractor thread if it was running. Must be called from the consumer thread.
+     *
+     * @param mode One of the {@code MediaExtractor.SEEK_TO_*} modes.
+     */
+    public synchronized void seekTo(long timeUs, int mode) {
+        boolean running = mThread != null;
+        stop();
+        mExtractor.seekTo(timeUs, mode);
+        mRead = 0;
+        mWritten = 0;
+        mEndOfStreamReached = false;
+        if (running) {
+            start();
+        }
+    }
+
+    /**
+     * @return The oldest ready sample without consuming it, or null if none is ready.
+     */
+    public Sample peek() {
+        long read = mRead;
+        if (read == mWritten) {
+            return null;
+        }
+        return mSamples[(int) (read % mSamples.length)];
+    }
+
+    /**
+     * Consumes the sample returned by {@link #peek()} and hands its slot back to the extractor
+     * thread.
+     */
+    public void release() {
+        long read = mRead;
+        if (read == mWritten) {
+            throw new IllegalStateException("No sample to release");
+        }
+        mRead = read + 1;
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * @return Number of samples ready to be consumed.
+     */
+    public int available() {
+        return (int) (mWritten - mRead);
+    }
+
+    /**
+     * @return True once the end-of-stream sample has been consumed.
+     */
+    public boolean isEndOfStream() {
+        return mEndOfStreamReached && mRead == mWritten;
+    }
+
+    /**
+     * Writes ready samples to {@code codec} until either side runs dry.
+     *
+     * @return The number of samples queued to the codec.
+     */
+    public int feed(CodecEngine codec) throws MediaCodecWrapper.WriteException {
+        return feed(codec, mUnlimitedBudget);
+    }
+
+    /**
+     * Writes ready samples to {@code codec} until either side runs dry or {@code budget} is
+     * used up.
+     *
+     * @return The number of samples queued to the codec, also available from {@code budget}.
+     */
+    public int feed(CodecEngine codec, FeedBudget budget)
+            throws MediaCodecWrapper.WriteException {
+        budget.start();
+        Sample sample;
+        while (budget.hasRemaining() && (sample = peek()) != null) {
+            ByteBuffer data = sample.getData();
+            int position = data.position();
+            int size = data.remaining();
+            boolean written = codec.writeSample(data,
+                    sample.isEncrypted() ? sample.getCryptoInfo() : null,
+                    sample.getPresentationTimeUs(), sample.getCodecFlags());
+            if (!written) {
+                data.position(position);
+                break;
+            }
+            release();
+            budget.consume(size);
+        }
+        return budget.getSamples();
+    }
+
+    // Producer loop, runs on mThread.
+    private void extract() {
+        while (mRunning) {
+            long written = mWritten;
+            if (written - mRead == mSamples.length) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            Sample sample = mSamples[(int) (written % mSamples.length)];
+            if (!read(sample)) {
+                sample.mData.clear();
+                sample.mData.limit(0);
+                sample.mPresentationTimeUs = 0;
+                sample.mFlags = 0;
+                sample.mEndOfStream = true;
+                mWritten = written + 1;
+                mEndOfStreamReached = true;
+                return;
+            }
+            // Publishing the counter makes the sample contents visible to the consumer.
+            mWritten = written + 1;
+            mExtractor.advance();
+        }
+    }
+
+    // Reads the extractor's current sample into sample. Returns false at the end of stream.
+    private boolean read(Sample sample) {
+        int size;
+        while (true) {
+            sample.mData.clear();
+            try {
+                size = mExtractor.readSampleData(sample.mData, 0);
+                break;
+            } catch (IllegalArgumentException e) {
+                // The sample doesn't fit; grow the buffer and try again.
+                int capacity = sample.mData.capacity() * 2;
+                Log.w(TAG, "Growing sample buffer to " + capacity + " bytes");
+                sample.mData = ByteBuffer.allocateDirect(capacity);
+            }
+        }
+        if (size < 0) {
+            return false;
+        }
+        sample.mData.position(0);
+        sample.mData.limit(size);
+        sample.mPresentationTimeUs = mExtractor.getSampleTime();
+        sample.mFlags = mExtractor.getSampleFlags();
+        sample.mTrackIndex = mExtractor.getSampleTrackIndex();
+        sample.mEndOfStream = false;
+        if (sample.isEncrypted()) {
+            mExtractor.getSampleCryptoInfo(sample.mCryptoInfo);
+        }
+        return true;
+    }
+}
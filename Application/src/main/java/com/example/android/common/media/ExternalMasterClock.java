@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+/**
+ * A {@link MasterClock} that follows time reported by someone else, for instance another
+ * player or a network time source. The clock extrapolates between updates at the playback
+ * rate.
+ */
+public final class ExternalMasterClock implements MasterClock {
+
+    // Guarded by this.
+    private long mAnchorMediaTimeUs = TIME_UNSET;
+    private long mAnchorSystemTimeNs;
+    private float mRate = 1f;
+
+    /**
+     * Reports that the media time was {@code mediaTimeUs} at {@code systemTimeNs}.
+     *
+     * @param systemTimeNs A {@link System#nanoTime()} value.
+     */
+    public synchronized void update(long mediaTimeUs, long systemTimeNs, float rate) {
+        mAnchorMediaTimeUs = mediaTimeUs;
+        mAnchorSystemTimeNs = systemTimeNs;
+        mRate = rate;
+    }
+
+    /**
+     * Stops the clock until the next {@link #update}.
+     */
+    public synchronized void reset() {
+        mAnchorMediaTimeUs = TIME_UNSET;
+    }
+
+    @Override
+    public synchronized float getPlaybackRate() {
+        return mRate;
+    }
+
+    @Override
+    public synchronized long getMediaTimeUs(long systemTimeNs) {
+        if (mAnchorMediaTimeUs == TIME_UNSET) {
+            return TIME_UNSET;
+        }
+        return mAnchorMediaTimeUs
+                + (long) ((systemTimeNs - mAnchorSystemTimeNs) / 1000 * mRate);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link SegmentedDecoder.SegmentSource} decoding a video track with an extractor and a
+ * headless decoder of its own per segment, producing NV21 frames in pooled buffers.
+ *
+ * A segment is fed from its sync sample up to and including the next segment's sync sample,
+ * then on while samples still belong to this segment's time range: in an open GOP, the frames
+ * displayed just before a sync sample come after it in decoding order and reference it.
+ */
+public final class ExtractorSegmentSource implements SegmentedDecoder.SegmentSource {
+
+    // Time the decoding thread sleeps when the codec has nothing to take or give.
+    private static final long IDLE_WAIT_NS = 1000000;
+
+    /**
+     * Opens a new extractor on the media, one per segment being decoded.
+     */
+    public interface ExtractorFactory {
+        MediaExtractor create() throws IOException;
+    }
+
+    private final ExtractorFactory mFactory;
+    private final int mTrack;
+    private final FrameBufferPool mPool;
+
+    /**
+     * @param track Index of the video track to decode.
+     * @param pool Pool the frame buffers come from.
+     */
+    public ExtractorSegmentSource(ExtractorFactory factory, int track, FrameBufferPool pool) {
+        mFactory = factory;
+        mTrack = track;
+        mPool = pool;
+    }
+
+    @Override
+    public void decode(GopSplitter.Segment segment, SegmentedDecoder.FrameOutput output)
+            throws IOException, InterruptedException {
+        MediaExtractor extractor = mFactory.create();
+        MediaCodecWrapper codec = null;
+        try {
+            extractor.selectTrack(mTrack);
+            MediaFormat format = extractor.getTrackFormat(mTrack);
+            codec = MediaCodecWrapper.fromVideoFormatHeadless(format);
+            if (codec == null) {
+                throw new IOException("Track " + mTrack + " is not a video track");
+            }
+            extractor.seekTo(segment.getStartUs(), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            run(extractor, codec, segment.getEndUs(), output);
+        } catch (MediaCodecWrapper.WriteException e) {
+            throw new IOException("Unable to queue end of stream", e);
+        } finally {
+            if (codec != null) {
+                codec.stopAndRelease();
+            }
+            extractor.release();
+        }
+    }
+
+    private void run(MediaExtractor extractor, MediaCodecWrapper codec, long endUs,
+            SegmentedDecoder.FrameOutput output)
+            throws InterruptedException, MediaCodecWrapper.WriteException {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        boolean reachedNextSegment = false;
+        boolean inputDone = false;
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            boolean progress = false;
+
+            // Drain first; peekSample() also picks up the input buffers the codec freed.
+            while (codec.peekSample(info)) {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 && info.size == 0) {
+                    return;
+                }
+                FrameBuffer frame = copyFrame(codec.peekOutputImage());
+                long presentationTimeUs = info.presentationTimeUs;
+                boolean endOfStream = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                codec.popSample(false);
+                if (frame != null && !output.onFrame(presentationTimeUs, frame)) {
+                    return;
+                }
+                if (endOfStream) {
+                    return;
+                }
+                progress = true;
+            }
+
+            while (!inputDone) {
+                long presentationTimeUs = extractor.getSampleTime();
+                int sampleFlags = presentationTimeUs < 0 ? 0 : extractor.getSampleFlags();
+                boolean sync = (sampleFlags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+                boolean feed;
+                if (presentationTimeUs < 0) {
+                    feed = false;
+                } else if (presentationTimeUs < endUs) {
+                    feed = true;
+                } else {
+                    // Only the next segment's sync sample, still needed for our last frames.
+                    feed = sync && !reachedNextSegment;
+                }
+                if (!feed) {
+                    if (codec.writeSample(empty, null, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)) {
+                        inputDone = true;
+                        progress = true;
+                    }
+                    break;
+                }
+                if (!codec.writeSample(extractor,
+                        (sampleFlags & MediaExtractor.SAMPLE_FLAG_ENCRYPTED) != 0,
+                        presentationTimeUs, sync ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0)) {
+                    break;
+                }
+                if (presentationTimeUs >= endUs) {
+                    reachedNextSegment = true;
+                }
+                extractor.advance();
+                progress = true;
+            }
+
+            if (!progress) {
+                LockSupport.parkNanos(this, IDLE_WAIT_NS);
+            }
+        }
+    }
+
+    // Returns null if the decoder handed out no image.
+    private FrameBuffer copyFrame(Image image) {
+        if (image == null) {
+            return null;
+        }
+        try {
+            return ImageUtil.imageToNv21Frame(image, mPool);
+        } finally {
+            image.close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+/**
+ * Limits how much one batched feed call, such as {@link DemuxStage#feed(CodecEngine, FeedBudget)}
+ * or {@link CodecEngine#writeSamples}, may queue to a codec: a number of samples, a number of
+ * bytes and a wall clock duration. Any limit left at 0 is unlimited; a feed with no limits at
+ * all fills every free input buffer.
+ *
+ * A budget is meant to be kept and reused for every feed; after each one it also tells what
+ * the feed queued. It is not thread-safe.
+ */
+public final class FeedBudget {
+
+    private int mMaxSamples;
+    private long mMaxBytes;
+    private long mMaxTimeNs;
+
+    private int mSamples;
+    private long mBytes;
+    private long mDeadlineNs;
+
+    public void setMaxSamples(int maxSamples) {
+        mMaxSamples = maxSamples;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @param maxTimeNs How long one feed may keep queueing samples. The limit is checked
+     * between samples, so a feed may run over by the time it takes to queue one.
+     */
+    public void setMaxTimeNs(long maxTimeNs) {
+        mMaxTimeNs = maxTimeNs;
+    }
+
+    /**
+     * @return Number of samples queued by the last feed.
+     */
+    public int getSamples() {
+        return mSamples;
+    }
+
+    /**
+     * @return Number of bytes queued by the last feed.
+     */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    // Called by the feed before it queues anything.
+    void start() {
+        mSamples = 0;
+        mBytes = 0;
+        if (mMaxTimeNs > 0) {
+            mDeadlineNs = System.nanoTime() + mMaxTimeNs;
+        }
+    }
+
+    // True if another sample may be queued. The byte limit is checked against what was queued
+    // so far, so the last sample may overshoot it.
+    boolean hasRemaining() {
+        return (mMaxSamples <= 0 || mSamples < mMaxSamples)
+                && (mMaxBytes <= 0 || mBytes < mMaxBytes)
+                && (mMaxTimeNs <= 0 || System.nanoTime() - mDeadlineNs < 0);
+    }
+
+    void consume(int bytes) {
+        mSamples++;
+        mBytes += bytes;
+    }
+}
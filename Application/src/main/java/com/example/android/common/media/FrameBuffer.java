@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+/**
+ * A byte array handed out by a {@link FrameBufferPool}. The array may be larger than the data
+ * it holds; {@link #getLength()} tells how many bytes are valid. Call {@link #release()} once
+ * the frame has been consumed so the array can be handed out again.
+ */
+public final class FrameBuffer {
+
+    private final FrameBufferPool mPool;
+    private final byte[] mData;
+    private int mLength;
+    // Guarded by this; set between release() and the next acquire from the pool.
+    private boolean mReleased;
+
+    FrameBuffer(FrameBufferPool pool, int capacity) {
+        mPool = pool;
+        mData = new byte[capacity];
+    }
+
+    /**
+     * @return The backing array. Only the first {@link #getLength()} bytes are meaningful.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public void setLength(int length) {
+        if (length < 0 || length > mData.length) {
+            throw new IllegalArgumentException("Invalid length " + length
+                    + " for a buffer of capacity " + mData.length);
+        }
+        mLength = length;
+    }
+
+    public int capacity() {
+        return mData.length;
+    }
+
+    /**
+     * Hands the buffer back to its pool. The buffer must not be used afterwards.
+     *
+     * @throws IllegalStateException If the buffer was released already. Pooling it twice
+     * would hand the same array to two owners.
+     */
+    public void release() {
+        synchronized (this) {
+            if (mReleased) {
+                throw new IllegalStateException("FrameBuffer released twice");
+            }
+            mReleased = true;
+        }
+        mLength = 0;
+        if (mPool != null) {
+            mPool.release(this);
+        }
+    }
+
+    // Called by the pool when the buffer is handed out again.
+    synchronized void onAcquired() {
+        mReleased = false;
+    }
+}
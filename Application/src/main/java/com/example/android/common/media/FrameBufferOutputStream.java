@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import java.io.OutputStream;
+
+/**
+ * An {@link OutputStream} that writes into pooled {@link FrameBuffer}s. It replaces
+ * {@link java.io.ByteArrayOutputStream} on the per-frame path: growing swaps in a larger pooled
+ * buffer and {@link #detach()} hands over the buffer instead of copying it.
+ *
+ * The stream remembers the largest frame it has produced and starts the next one at that size,
+ * so once the output size settles no growth happens at all. Instances are meant to be reused
+ * and are not thread-safe.
+ */
+public final class FrameBufferOutputStream extends OutputStream {
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 64 * 1024;
+
+    private final FrameBufferPool mPool;
+    private FrameBuffer mBuffer;
+    private int mCount;
+    private int mHighWaterMark = DEFAULT_INITIAL_CAPACITY;
+
+    public FrameBufferOutputStream(FrameBufferPool pool) {
+        mPool = pool;
+    }
+
+    public FrameBufferPool getPool() {
+        return mPool;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(mCount + 1);
+        mBuffer.getData()[mCount++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(mCount + len);
+        System.arraycopy(b, off, mBuffer.getData(), mCount, len);
+        mCount += len;
+    }
+
+    /**
+     * @return Number of bytes written since the last {@link #detach()}.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Makes sure the current buffer can hold {@code capacity} bytes, growing it if needed.
+     */
+    public void ensureCapacity(int capacity) {
+        if (mBuffer == null) {
+            mBuffer = mPool.acquire(Math.max(capacity, mHighWaterMark));
+        } else if (capacity > mBuffer.capacity()) {
+            FrameBuffer grown = mPool.acquire(Math.max(capacity, mBuffer.capacity() * 2));
+            System.arraycopy(mBuffer.getData(), 0, grown.getData(), 0, mCount);
+            mBuffer.release();
+            mBuffer = grown;
+        }
+    }
+
+    /**
+     * Hands the written bytes over to the caller, who becomes responsible for releasing the
+     * returned buffer. The stream starts over with an empty buffer on the next write.
+     */
+    public FrameBuffer detach() {
+        ensureCapacity(0);
+        FrameBuffer result = mBuffer;
+        result.setLength(mCount);
+        mHighWaterMark = Math.max(mHighWaterMark, mCount);
+        mBuffer = null;
+        mCount = 0;
+        return result;
+    }
+
+    /**
+     * Discards anything written so far and returns the buffer to the pool.
+     */
+    @Override
+    public void close() {
+        if (mBuffer != null) {
+            mBuffer.release();
+            mBuffer = null;
+        }
+        mCount = 0;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+/**
+ * Recycles frame-sized byte arrays so the per-frame image path does not have to allocate.
+ *
+ * Buffers are kept in power-of-two buckets: a request for {@code n} bytes is served from the
+ * smallest bucket that can hold it. Each bucket keeps at most a few idle buffers; anything
+ * released beyond that is left to the garbage collector. Requests larger than the biggest
+ * bucket are served with a one-off buffer that is never pooled.
+ *
+ * All methods are thread-safe, so a buffer can be acquired on one thread and released on
+ * another.
+ */
+public final class FrameBufferPool {
+
+    private static final int MIN_BUCKET_SHIFT = 10;     // 1 KiB
+    private static final int MAX_BUCKET_SHIFT = 26;     // 64 MiB
+    private static final int DEFAULT_BUFFERS_PER_BUCKET = 4;
+
+    // Idle buffers per bucket, used as fixed-size stacks.
+    private final FrameBuffer[][] mBuckets;
+    private final int[] mBucketCounts;
+
+    private long mHits;
+    private long mMisses;
+    private long mDiscards;
+
+    public FrameBufferPool() {
+        this(DEFAULT_BUFFERS_PER_BUCKET);
+    }
+
+    /**
+     * @param buffersPerBucket How many idle buffers to retain for each size class.
+     */
+    public FrameBufferPool(int buffersPerBucket) {
+        if (buffersPerBucket <= 0) {
+            throw new IllegalArgumentException("buffersPerBucket must be positive");
+        }
+        int bucketCount = MAX_BUCKET_SHIFT - MIN_BUCKET_SHIFT + 1;
+        mBuckets = new FrameBuffer[bucketCount][buffersPerBucket];
+        mBucketCounts = new int[bucketCount];
+    }
+
+    /**
+     * Returns a buffer with a capacity of at least {@code minCapacity} bytes and a length of 0.
+     */
+    public synchronized FrameBuffer acquire(int minCapacity) {
+        if (minCapacity < 0) {
+            throw new IllegalArgumentException("Negative capacity " + minCapacity);
+        }
+        int bucket = bucketFor(minCapacity);
+        if (bucket < 0) {
+            mMisses++;
+            return new FrameBuffer(null, minCapacity);
+        }
+        int count = mBucketCounts[bucket];
+        if (count > 0) {
+            FrameBuffer buffer = mBuckets[bucket][--count];
+            mBuckets[bucket][count] = null;
+            mBucketCounts[bucket] = count;
+            mHits++;
+            buffer.onAcquired();
+            return buffer;
+        }
+        mMisses++;
+        return new FrameBuffer(this, 1 << (bucket + MIN_BUCKET_SHIFT));
+    }
+
+    /**
+     * Returns a buffer to the pool. Prefer {@link FrameBuffer#release()}.
+     */
+    synchronized void release(FrameBuffer buffer) {
+        int bucket = bucketFor(buffer.capacity());
+        int count = mBucketCounts[bucket];
+        if (count < mBuckets[bucket].length) {
+            mBuckets[bucket][count] = buffer;
+            mBucketCounts[bucket] = count + 1;
+        } else {
+            mDiscards++;
+        }
+    }
+
+    /**
+     * Drops every idle buffer.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mBuckets.length; i++) {
+            for (int j = 0; j < mBucketCounts[i]; j++) {
+                mBuckets[i][j] = null;
+            }
+            mBucketCounts[i] = 0;
+        }
+    }
+
+    /**
+     * @return Number of {@link #acquire(int)} calls served with a recycled buffer.
+     */
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * @return Number of {@link #acquire(int)} calls that had to allocate.
+     */
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * @return Number of released buffers dropped because their bucket was full.
+     */
+    public synchronized long getDiscardCount() {
+        return mDiscards;
+    }
+
+    public synchronized void resetCounters() {
+        mHits = 0;
+        mMisses = 0;
+        mDiscards = 0;
+    }
+
+    // Index of the smallest bucket holding capacity bytes, or -1 if it is too large to pool.
+    private static int bucketFor(int capacity) {
+        int shift = capacity <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        if (shift > MAX_BUCKET_SHIFT) {
+            return -1;
+        }
+        return Math.max(shift, MIN_BUCKET_SHIFT) - MIN_BUCKET_SHIFT;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decoded frames by presentation time, bounded by a byte budget and evicted least recently
+ * used first. Frames live in {@link FrameBuffer}s that go back to their pool on eviction.
+ *
+ * Each frame remembers the presentation time of the frame decoded right after it, when known,
+ * so the cache can tell which frame is on screen at any time between the two, not just at
+ * exact presentation times.
+ *
+ * Not thread-safe.
+ */
+public final class FrameCache {
+
+    /**
+     * A cached frame. Owned by the cache; valid until it is evicted.
+     */
+    public static final class Entry {
+        private final long mPresentationTimeUs;
+        private final FrameBuffer mFrame;
+        private final int mWidth;
+        private final int mHeight;
+        private long mNextPresentationTimeUs = -1;
+
+        Entry(long presentationTimeUs, FrameBuffer frame, int width, int height) {
+            mPresentationTimeUs = presentationTimeUs;
+            mFrame = frame;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        public long getPresentationTimeUs() {
+            return mPresentationTimeUs;
+        }
+
+        public FrameBuffer getFrame() {
+            return mFrame;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+    }
+
+    private final long mMaxBytes;
+    private final LinkedHashMap<Long, Entry> mLru = new LinkedHashMap<>(16, 0.75f, true);
+    private final TreeMap<Long, Entry> mByTime = new TreeMap<>();
+    private long mBytes;
+    private long mEvictions;
+
+    /**
+     * @param maxBytes Budget for the frame data. Holding on to the newest frame and the one
+     * before it takes precedence over it.
+     */
+    public FrameCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Adds a frame, handing ownership of {@code frame} to the cache, and evicts frames as
+     * needed to stay within budget.
+     *
+     * @param previous The frame decoded right before this one, or null.
+     * @return The new entry.
+     */
+    public Entry put(long presentationTimeUs, FrameBuffer frame, int width, int height,
+            Entry previous) {
+        Entry entry = new Entry(presentationTimeUs, frame, width, height);
+        Entry replaced = mLru.put(presentationTimeUs, entry);
+        if (replaced != null) {
+            entry.mNextPresentationTimeUs = replaced.mNextPresentationTimeUs;
+            release(replaced);
+        }
+        mByTime.put(presentationTimeUs, entry);
+        mBytes += frame.capacity();
+        if (previous != null) {
+            previous.mNextPresentationTimeUs = presentationTimeUs;
+        }
+        trim(entry, previous);
+        return entry;
+    }
+
+    /**
+     * @return The frame on screen at {@code timeUs}, or null if that isn't known from the
+     * cached frames alone.
+     */
+    public Entry get(long timeUs) {
+        Map.Entry<Long, Entry> floor = mByTime.floorEntry(timeUs);
+        if (floor == null) {
+            return null;
+        }
+        Entry entry = floor.getValue();
+        if (entry.mPresentationTimeUs != timeUs
+                && (entry.mNextPresentationTimeUs < 0 || timeUs >= entry.mNextPresentationTimeUs)) {
+            return null;
+        }
+        // Refreshes its position in the LRU order.
+        mLru.get(entry.mPresentationTimeUs);
+        return entry;
+    }
+
+    /**
+     * @return The latest cached frame presented at or before {@code timeUs}, whether or not
+     * it is known to be the one on screen then, or null.
+     */
+    public Entry floor(long timeUs) {
+        Map.Entry<Long, Entry> floor = mByTime.floorEntry(timeUs);
+        if (floor == null) {
+            return null;
+        }
+        mLru.get(floor.getKey());
+        return floor.getValue();
+    }
+
+    /**
+     * @return The frame at exactly {@code presentationTimeUs}, or null.
+     */
+    public Entry getExact(long presentationTimeUs) {
+        return mLru.get(presentationTimeUs);
+    }
+
+    public int size() {
+        return mLru.size();
+    }
+
+    public long getBytes() {
+        return mBytes;
+    }
+
+    public long getEvictions() {
+        return mEvictions;
+    }
+
+    /**
+     * Releases every frame presented before {@code fromUs} or after {@code toUs}, e.g. to make
+     * room for frames that are known to be needed ahead of the ones recently used.
+     */
+    public void retain(long fromUs, long toUs) {
+        Iterator<Entry> it = mLru.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.mPresentationTimeUs < fromUs || entry.mPresentationTimeUs > toUs) {
+                it.remove();
+                mByTime.remove(entry.mPresentationTimeUs);
+                release(entry);
+            }
+        }
+    }
+
+    /**
+     * Releases every frame.
+     */
+    public void clear() {
+        for (Entry entry : mLru.values()) {
+            entry.mFrame.release();
+        }
+        mLru.clear();
+        mByTime.clear();
+        mBytes = 0;
+    }
+
+    // Evicts least recently used frames, other than the two given, until within budget.
+    private void trim(Entry keep, Entry alsoKeep) {
+        Iterator<Entry> it = mLru.values().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            Entry eldest = it.next();
+            if (eldest == keep || eldest == alsoKeep) {
+                continue;
+            }
+            it.remove();
+            mByTime.remove(eldest.mPresentationTimeUs);
+            release(eldest);
+            mEvictions++;
+        }
+    }
+
+    private void release(Entry entry) {
+        mBytes -= entry.mFrame.capacity();
+        entry.mFrame.release();
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses raw NV21 frames. Implementations keep their tables and scratch buffers between
+ * frames and are not thread-safe.
+ *
+ * @see JpegEncoder
+ * @see YuvImageFrameEncoder
+ */
+public interface FrameEncoder {
+
+    /**
+     * Encodes one frame and streams the result into {@code out}. Pair with a
+     * {@link FrameBufferOutputStream} to encode into reusable buffers.
+     *
+     * @param nv21 The frame, laid out as described by {@link YuvConverter}.
+     * @param width Frame width in pixels.
+     * @param height Frame height in pixels.
+     * @param out Destination of the encoded bytes.
+     */
+    void encode(byte[] nv21, int width, int height, OutputStream out) throws IOException;
+}
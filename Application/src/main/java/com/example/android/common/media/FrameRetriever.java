@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Random access to the decoded frames of a video track, for scrubbing and analysis.
+ *
+ * {@link #getFrameAt(long)} decodes from the sync sample before the requested time up to the
+ * frame on screen at that time, discarding the frames in between from the codec without
+ * rendering them. Every frame decoded on the way is kept in a {@link FrameCache}, so requests
+ * for nearby times are usually served without decoding. A request a little after the last
+ * decoded frame, in the same GOP, picks up decoding where the previous one stopped instead of
+ * seeking back to the sync sample.
+ *
+ * Not thread-safe.
+ */
+public class FrameRetriever {
+
+    // Time the thread sleeps when the codec has nothing to take or give.
+    private static final long IDLE_WAIT_NS = 1000000;
+
+    /**
+     * A copy of a decoded frame in NV21. Release its buffer when done with it.
+     */
+    public static final class Frame {
+        private final long mPresentationTimeUs;
+        private final FrameBuffer mBuffer;
+        private final int mWidth;
+        private final int mHeight;
+
+        Frame(long presentationTimeUs, FrameBuffer buffer, int width, int height) {
+            mPresentationTimeUs = presentationTimeUs;
+            mBuffer = buffer;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        public long getPresentationTimeUs() {
+            return mPresentationTimeUs;
+        }
+
+        public FrameBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+    }
+
+    private final MediaExtractor mExtractor;
+    private final SeekIndex mSeekIndex;
+    private final MediaCodecWrapper mCodec;
+    private final FrameBufferPool mPool;
+    private final FrameCache mCache;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private final ByteBuffer mEmpty = ByteBuffer.allocate(0);
+
+    // Decoding position: the last frame that came out of the codec since the last seek, or
+    // null right after one.
+    private FrameCache.Entry mLastDecoded;
+    private boolean mInputDone;
+    private boolean mOutputDone;
+    private boolean mPositioned;
+    // The sync sample decoding started from at the last seek.
+    private long mSeekSyncUs;
+
+    private long mRequests;
+    private long mHits;
+    private long mFramesDecoded;
+
+    /**
+     * @param extractor Extractor with the video track, and only it, selected. Used exclusively
+     * by the retriever from here on.
+     * @param trackFormat Format of the video track.
+     * @param seekIndex Sync samples of the track.
+     * @param pool Pool for the cached frames and the copies handed out.
+     * @param cacheBytes Budget of the frame cache.
+     */
+    public FrameRetriever(MediaExtractor extractor, MediaFormat trackFormat, SeekIndex seekIndex,
+            FrameBufferPool pool, long cacheBytes) throws IOException {
+        mCodec = MediaCodecWrapper.fromVideoFormatHeadless(trackFormat);
+        if (mCodec == null) {
+            throw new IOException("Not a video format: " + trackFormat);
+        }
+        mExtractor = extractor;
+        mSeekIndex = seekIndex;
+        mPool = pool;
+        mCache = new FrameCache(cacheBytes);
+    }
+
+    /**
+     * @return A copy of the frame on screen at {@code timeUs}, or null if the track has no
+     * frame there.
+     */
+    public Frame getFrameAt(long timeUs) throws IOException {
+        mRequests++;
+        FrameCache.Entry entry = mCache.get(timeUs);
+        if (entry != null) {
+            mHits++;
+            return copy(entry);
+        }
+
+        // Before the first sync sample this is the first one, whose frame is the best there is.
+        long syncUs = Math.max(mSeekIndex.syncAtOrBefore(timeUs), 0);
+        boolean resume = mPositioned && mLastDecoded != null && !mOutputDone
+                && mLastDecoded.getPresentationTimeUs() < timeUs
+                && syncUs <= mLastDecoded.getPresentationTimeUs();
+        if (!resume) {
+            mExtractor.seekTo(syncUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            mCodec.flush();
+            mSeekSyncUs = syncUs;
+            mLastDecoded = null;
+            mInputDone = false;
+            mOutputDone = false;
+            mPositioned = true;
+        }
+
+        entry = decodeUntil(timeUs);
+        return entry == null ? null : copy(entry);
+    }
+
+    /**
+     * @return Share of requests served from the cache.
+     */
+    public double getHitRate() {
+        return mRequests == 0 ? 0 : (double) mHits / mRequests;
+    }
+
+    /**
+     * @return Frames decoded per request, on average.
+     */
+    public double getAverageFramesDecoded() {
+        return mRequests == 0 ? 0 : (double) mFramesDecoded / mRequests;
+    }
+
+    /**
+     * @return A one line report, for logging.
+     */
+    public String summary() {
+        return String.format(Locale.US,
+                "requests=%d hit rate=%.1f%% frames decoded/request=%.2f cached=%d (%d KB) "
+                        + "evictions=%d",
+                mRequests, 100 * getHitRate(), getAverageFramesDecoded(), mCache.size(),
+                mCache.getBytes() / 1024, mCache.getEvictions());
+    }
+
+    /**
+     * Releases the codec and the cached frames. The extractor stays with the caller.
+     */
+    public void release() {
+        mCodec.stopAndRelease();
+        mCache.clear();
+        mLastDecoded = null;
+    }
+
+    // Decodes on from the current position until the frame on screen at timeUs is known.
+    private FrameCache.Entry decodeUntil(long timeUs) throws IOException {
+        try {
+            while (true) {
+                boolean progress = false;
+
+                while (mCodec.peekSample(mInfo)) {
+                    boolean endOfStream =
+                            (mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                    FrameCache.Entry previous = mLastDecoded;
+                    boolean hasData = !endOfStream || mInfo.size > 0;
+                    // Leading frames of an open GOP come out before the sync sample and refer
+                    // to frames before it, which were never decoded; they're garbage.
+                    boolean usable = hasData && mInfo.presentationTimeUs >= mSeekSyncUs;
+                    if (usable) {
+                        mLastDecoded = ImageUtil.cacheNv21Frame(mCodec.peekOutputImage(),
+                                mInfo.presentationTimeUs, mPool, mCache, previous);
+                    }
+                    if (hasData) {
+                        mFramesDecoded++;
+                    }
+                    mCodec.popSample(false);
+                    progress = true;
+                    if (endOfStream) {
+                        mOutputDone = true;
+                        if (usable && previous != null
+                                && mLastDecoded.getPresentationTimeUs() > timeUs) {
+                            return previous;
+                        }
+                        // The last frame stays on screen to the end.
+                        return mLastDecoded;
+                    }
+                    if (!usable) {
+                        continue;
+                    }
+                    long presentationTimeUs = mLastDecoded.getPresentationTimeUs();
+                    if (presentationTimeUs == timeUs) {
+                        return mLastDecoded;
+                    }
+                    if (presentationTimeUs > timeUs) {
+                        return previous != null ? previous : mLastDecoded;
+                    }
+                }
+
+                if (!mInputDone) {
+                    long presentationTimeUs = mExtractor.getSampleTime();
+                    if (presentationTimeUs < 0) {
+                        mInputDone = mCodec.writeSample(mEmpty, null, 0,
+                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        progress |= mInputDone;
+                    } else {
+                        int sampleFlags = mExtractor.getSampleFlags();
+                        if (mCodec.writeSample(mExtractor,
+                                (sampleFlags & MediaExtractor.SAMPLE_FLAG_ENCRYPTED) != 0,
+                                presentationTimeUs,
+                                (sampleFlags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                                        ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0)) {
+                            mExtractor.advance();
+                            progress = true;
+                        }
+                    }
+                }
+
+                if (!progress) {
+                    LockSupport.parkNanos(this, IDLE_WAIT_NS);
+                }
+            }
+        } catch (MediaCodecWrapper.WriteException e) {
+            throw new IOException("Unable to queue end of stream", e);
+        }
+    }
+
+    private Frame copy(FrameCache.Entry entry) {
+        FrameBuffer source = entry.getFrame();
+        FrameBuffer buffer = mPool.acquire(source.getLength());
+        System.arraycopy(source.getData(), 0, buffer.getData(), 0, source.getLength());
+        buffer.setLength(source.getLength());
+        return new Frame(entry.getPresentationTimeUs(), buffer, entry.getWidth(),
+                entry.getHeight());
+    }
+}
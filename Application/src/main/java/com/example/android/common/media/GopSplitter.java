@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cuts a stream into segments that can be decoded independently of each other, each starting
+ * at a sync sample and covering one or more whole GOPs.
+ *
+ * Segments are balanced by duration rather than by GOP count, so that irregular GOP lengths
+ * don't leave one decoder with most of the work.
+ */
+public final class GopSplitter {
+
+    /**
+     * A range of presentation times starting at a sync sample.
+     */
+    public static final class Segment {
+        private final int mIndex;
+        private final long mStartUs;
+        private final long mEndUs;
+        private final int mGopCount;
+
+        Segment(int index, long startUs, long endUs, int gopCount) {
+            mIndex = index;
+            mStartUs = startUs;
+            mEndUs = endUs;
+            mGopCount = gopCount;
+        }
+
+        /**
+         * @return Position of the segment in presentation order, from 0.
+         */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        /**
+         * @return Presentation time of the sync sample the segment starts at.
+         */
+        public long getStartUs() {
+            return mStartUs;
+        }
+
+        /**
+         * @return Presentation time of the next segment's sync sample, exclusive, or
+         * {@link Long#MAX_VALUE} for the last segment.
+         */
+        public long getEndUs() {
+            return mEndUs;
+        }
+
+        public int getGopCount() {
+            return mGopCount;
+        }
+
+        /**
+         * @return Whether a frame at {@code presentationTimeUs} belongs to this segment.
+         */
+        public boolean contains(long presentationTimeUs) {
+            return presentationTimeUs >= mStartUs && presentationTimeUs < mEndUs;
+        }
+
+        @Override
+        public String toString() {
+            return "Segment " + mIndex + " [" + mStartUs + ", "
+                    + (mEndUs == Long.MAX_VALUE ? "end" : String.valueOf(mEndUs)) + ") "
+                    + mGopCount + " GOPs";
+        }
+    }
+
+    private GopSplitter() {
+    }
+
+    /**
+     * Splits a stream into at most {@code segmentCount} segments, fewer if it has fewer GOPs.
+     * {@link SeekIndex#split(int)} does this for an indexed track.
+     *
+     * @param syncTimesUs Presentation times of the sync samples, in ascending order.
+     * @param durationUs Duration of the stream, 0 if unknown.
+     */
+    public static List<Segment> split(long[] syncTimesUs, long durationUs, int segmentCount) {
+        if (segmentCount <= 0) {
+            throw new IllegalArgumentException("segmentCount must be positive");
+        }
+        if (syncTimesUs.length == 0) {
+            return Collections.emptyList();
+        }
+        long firstUs = syncTimesUs[0];
+        long lastUs = syncTimesUs[syncTimesUs.length - 1];
+        long endUs = Math.max(durationUs, lastUs + 1);
+        int count = Math.min(segmentCount, syncTimesUs.length);
+
+        // Start each segment at the first sync sample at or after its share of the duration.
+        List<Segment> segments = new ArrayList<>(count);
+        int start = 0;
+        for (int k = 1; k <= count; k++) {
+            int end;
+            if (k == count) {
+                end = syncTimesUs.length;
+            } else {
+                long targetUs = firstUs + (endUs - firstUs) * k / count;
+                end = Arrays.binarySearch(syncTimesUs, targetUs);
+                if (end < 0) {
+                    end = -end - 1;
+                }
+                // Every segment keeps at least one GOP and leaves one for each that follows.
+                end = Math.max(end, start + 1);
+                end = Math.min(end, syncTimesUs.length - (count - k));
+            }
+            segments.add(new Segment(segments.size(), syncTimesUs[start],
+                    end == syncTimesUs.length ? Long.MAX_VALUE : syncTimesUs[end], end - start));
+            start = end;
+        }
+        return segments;
+    }
+}
@@ -26,10 +26,20 @@ import android.graphics.YuvImage;
 import android.media.Image;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
 public final class ImageUtil {
 
+    // Backs imageToFrame(Image, FrameBufferOutputStream); encoders aren't thread-safe.
+    private static final ThreadLocal<FrameEncoder> sDefaultEncoder =
+            new ThreadLocal<FrameEncoder>() {
+                @Override
+                protected FrameEncoder initialValue() {
+                    return new YuvImageFrameEncoder(100);
+                }
+            };
+
     public static byte[] imageToByteArray(Image image) {
         byte[] data = null;
         if (image.getFormat() == ImageFormat.JPEG) {
@@ -39,38 +49,152 @@ public final class ImageUtil {
             buffer.get(data);
             return data;
         } else if (image.getFormat() == ImageFormat.YUV_420_888) {
-            data = NV21toJPEG(
-                    YUV_420_888toNV21(image),
-                    image.getWidth(), image.getHeight());
+            byte[] nv21 = new byte[YuvConverter.nv21Size(image.getWidth(), image.getHeight())];
+            YUV_420_888toNV21(image, nv21);
+            data = NV21toJPEG(nv21, image.getWidth(), image.getHeight());
         }
         return data;
     }
 
-    private static byte[] YUV_420_888toNV21(Image image) {
-        byte[] nv21;
-        ByteBuffer yBuffer = image.getPlanes()[0].getBuffer();
-        ByteBuffer uBuffer = image.getPlanes()[1].getBuffer();
-        ByteBuffer vBuffer = image.getPlanes()[2].getBuffer();
+    /**
+     * Allocation-free variant of {@link #imageToByteArray(Image)}. Intermediate and output
+     * buffers come from the pool behind {@code out}.
+     *
+     * @param image The source image.
+     * @param out Reusable stream the encoded bytes are written to.
+     * @return The encoded frame, which the caller must {@link FrameBuffer#release() release},
+     * or null if the image format is not supported.
+     */
+    public static FrameBuffer imageToFrame(Image image, FrameBufferOutputStream out)
+            throws IOException {
+        // Same backend and quality as imageToByteArray, one encoder per thread.
+        return imageToFrame(image, sDefaultEncoder.get(), out);
+    }
 
-        int ySize = yBuffer.remaining();
-        int uSize = uBuffer.remaining();
-        int vSize = vBuffer.remaining();
+    /**
+     * Like {@link #imageToFrame(Image, FrameBufferOutputStream)}, but compresses YUV images
+     * with {@code encoder}, which must not be used by another thread at the same time.
+     */
+    public static FrameBuffer imageToFrame(Image image, FrameEncoder encoder,
+            FrameBufferOutputStream out) throws IOException {
+        if (image.getFormat() == ImageFormat.JPEG) {
+            ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+            int length = buffer.remaining();
+            out.ensureCapacity(length);
+            FrameBuffer frame = out.detach();
+            buffer.get(frame.getData(), 0, length);
+            frame.setLength(length);
+            return frame;
+        } else if (image.getFormat() == ImageFormat.YUV_420_888) {
+            FrameBufferPool pool = out.getPool();
+            FrameBuffer nv21 = pool.acquire(
+                    YuvConverter.nv21Size(image.getWidth(), image.getHeight()));
+            try {
+                YUV_420_888toNV21(image, nv21.getData());
+                encoder.encode(nv21.getData(), image.getWidth(), image.getHeight(), out);
+            } finally {
+                nv21.release();
+            }
+            return out.detach();
+        }
+        return null;
+    }
 
-        nv21 = new byte[ySize + uSize + vSize];
+    /**
+     * Converts a YUV_420_888 image into NV21, honoring the row and pixel strides of its planes.
+     *
+     * @param image The source image.
+     * @param nv21 Destination, at least {@link YuvConverter#nv21Size(int, int)} bytes long.
+     */
+    public static void YUV_420_888toNV21(Image image, byte[] nv21) {
+        Image.Plane[] planes = image.getPlanes();
+        YuvConverter.yuv420ToNv21(
+                planes[0].getBuffer(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(),
+                planes[1].getRowStride(), planes[1].getPixelStride(),
+                image.getWidth(), image.getHeight(), nv21);
+    }
 
-        //U and V are swapped
-        yBuffer.get(nv21, 0, ySize);
-        vBuffer.get(nv21, ySize, vSize);
-        uBuffer.get(nv21, ySize + vSize, uSize);
+    /**
+     * Converts a YUV_420_888 image into a smaller NV21 frame.
+     *
+     * @param nv21 Destination, at least {@link YuvConverter#nv21Size(int, int)} bytes long
+     * for {@code width} x {@code height}.
+     */
+    public static void YUV_420_888toNV21(Image image, byte[] nv21, int width, int height) {
+        Image.Plane[] planes = image.getPlanes();
+        YuvConverter.scaleYuv420ToNv21(
+                planes[0].getBuffer(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(),
+                planes[1].getRowStride(), planes[1].getPixelStride(),
+                image.getWidth(), image.getHeight(), width, height, nv21);
+    }
 
-        return nv21;
+    /**
+     * Converts a YUV_420_888 image into an NV21 frame from {@code pool}, with its length set.
+     * The image is left open.
+     *
+     * @return The frame, which the caller must release or hand on.
+     */
+    public static FrameBuffer imageToNv21Frame(Image image, FrameBufferPool pool) {
+        return imageToNv21Frame(image, image.getWidth(), image.getHeight(), pool);
+    }
+
+    /**
+     * Like {@link #imageToNv21Frame(Image, FrameBufferPool)}, but downscaled to {@code width} x
+     * {@code height}, which must not exceed the size of the image.
+     */
+    public static FrameBuffer imageToNv21Frame(Image image, int width, int height,
+            FrameBufferPool pool) {
+        int size = YuvConverter.nv21Size(width, height);
+        FrameBuffer frame = pool.acquire(size);
+        try {
+            if (width == image.getWidth() && height == image.getHeight()) {
+                YUV_420_888toNV21(image, frame.getData());
+            } else {
+                YUV_420_888toNV21(image, frame.getData(), width, height);
+            }
+        } catch (RuntimeException e) {
+            frame.release();
+            throw e;
+        }
+        frame.setLength(size);
+        return frame;
+    }
+
+    /**
+     * Converts a decoded YUV_420_888 image into an NV21 frame from {@code pool} and adds it to
+     * {@code cache}. The image is closed either way.
+     *
+     * @param image Decoder output, null if it can't be read as an image.
+     * @param previous The frame decoded right before this one, or null.
+     * @return The new cache entry.
+     * @throws IllegalStateException if {@code image} is null.
+     */
+    public static FrameCache.Entry cacheNv21Frame(Image image, long presentationTimeUs,
+            FrameBufferPool pool, FrameCache cache, FrameCache.Entry previous) {
+        if (image == null) {
+            throw new IllegalStateException("Decoder output can't be read as an Image");
+        }
+        try {
+            FrameBuffer frame = imageToNv21Frame(image, pool);
+            return cache.put(presentationTimeUs, frame, image.getWidth(), image.getHeight(),
+                    previous);
+        } finally {
+            image.close();
+        }
     }
 
     private static byte[] NV21toJPEG(byte[] nv21, int width, int height) {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NV21toJPEG(nv21, width, height, out);
+        return out.toByteArray();
+    }
+
+    private static void NV21toJPEG(byte[] nv21, int width, int height,
+            ByteArrayOutputStream out) {
         YuvImage yuv = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
         yuv.compressToJpeg(new Rect(0, 0, width, height), 100, out);
-        return out.toByteArray();
     }
 
-}
\ No newline at end of file
+}
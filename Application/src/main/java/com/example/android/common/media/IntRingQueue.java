@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Fixed-capacity FIFO of primitive ints. A drop-in for the {@code Queue<Integer>} operations
+ * used to track codec buffer indices, without boxing. Not thread-safe.
+ */
+final class IntRingQueue {
+
+    private int[] mElements;
+    private int mMask;
+    private int mHead;
+    private int mSize;
+
+    /**
+     * @param capacity Maximum number of elements, rounded up to a power of two.
+     */
+    IntRingQueue(int capacity) {
+        int size = roundUp(capacity);
+        mElements = new int[size];
+        mMask = size - 1;
+    }
+
+    private static int roundUp(int capacity) {
+        return Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    }
+
+    /**
+     * Grows the queue to hold at least {@code capacity} elements, rounded up to a power of two,
+     * keeping its contents and their order.
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity <= mElements.length) {
+            return;
+        }
+        int[] elements = new int[roundUp(capacity)];
+        for (int i = 0; i < mSize; i++) {
+            elements[i] = mElements[(mHead + i) & mMask];
+        }
+        mElements = elements;
+        mMask = elements.length - 1;
+        mHead = 0;
+    }
+
+    /**
+     * Appends {@code value} at the tail.
+     *
+     * @throws IllegalStateException if the queue is full.
+     */
+    void add(int value) {
+        if (mSize == mElements.length) {
+            throw new IllegalStateException("Queue full, capacity " + mElements.length);
+        }
+        mElements[(mHead + mSize) & mMask] = value;
+        mSize++;
+    }
+
+    /**
+     * Removes and returns the head element.
+     *
+     * @throws NoSuchElementException if the queue is empty.
+     */
+    int remove() {
+        if (mSize == 0) {
+            throw new NoSuchElementException();
+        }
+        int value = mElements[mHead];
+        mHead = (mHead + 1) & mMask;
+        mSize--;
+        return value;
+    }
+
+    /**
+     * Returns the head element without removing it.
+     *
+     * @throws NoSuchElementException if the queue is empty.
+     */
+    int peek() {
+        if (mSize == 0) {
+            throw new NoSuchElementException();
+        }
+        return mElements[mHead];
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int capacity() {
+        return mElements.length;
+    }
+
+    void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+}
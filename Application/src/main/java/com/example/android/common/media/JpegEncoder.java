@@ -0,0 +1,597 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Baseline (sequential, Huffman coded) JPEG encoder for NV21 frames, written in plain Java.
+ *
+ * Quantization and Huffman tables are computed once per encoder. The forward DCT is the
+ * accurate integer transform from the IJG library, and the standard Huffman tables of the
+ * JPEG specification (Annex K) are used. Output is streamed through a small internal chunk
+ * buffer, so encoding a frame allocates nothing.
+ */
+public final class JpegEncoder implements FrameEncoder {
+
+    /** Full resolution chroma. */
+    public static final int SUBSAMPLING_444 = 0;
+    /** Chroma halved horizontally. */
+    public static final int SUBSAMPLING_422 = 1;
+    /** Chroma halved in both directions, the native resolution of NV21. */
+    public static final int SUBSAMPLING_420 = 2;
+
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63,
+    };
+
+    private static final int[] LUMINANCE_QUANTIZATION = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99,
+    };
+
+    private static final int[] CHROMINANCE_QUANTIZATION = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+    };
+
+    // Standard Huffman tables: number of codes of each length 1..16, then the symbols.
+    private static final int[] DC_LUMINANCE_BITS = {
+            0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] DC_LUMINANCE_VALUES = {
+            0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] DC_CHROMINANCE_BITS = {
+            0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] DC_CHROMINANCE_VALUES = {
+            0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] AC_LUMINANCE_BITS = {
+            0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] AC_LUMINANCE_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51,
+            0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1,
+            0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18,
+            0x19, 0x1a, 0x25, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57,
+            0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75,
+            0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92,
+            0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8,
+            0xd9, 0xda, 0xe1, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa};
+    private static final int[] AC_CHROMINANCE_BITS = {
+            0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] AC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07,
+            0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09,
+            0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25,
+            0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56,
+            0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74,
+            0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba,
+            0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6,
+            0xd7, 0xd8, 0xd9, 0xda, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa};
+
+    // Fixed point constants of the IJG accurate integer DCT (jfdctint.c).
+    private static final int CONST_BITS = 13;
+    private static final int PASS1_BITS = 2;
+    private static final int FIX_0_298631336 = 2446;
+    private static final int FIX_0_390180644 = 3196;
+    private static final int FIX_0_541196100 = 4433;
+    private static final int FIX_0_765366865 = 6270;
+    private static final int FIX_0_899976223 = 7373;
+    private static final int FIX_1_175875602 = 9633;
+    private static final int FIX_1_501321110 = 12299;
+    private static final int FIX_1_847759065 = 15137;
+    private static final int FIX_1_961570560 = 16069;
+    private static final int FIX_2_053119869 = 16819;
+    private static final int FIX_2_562915447 = 20995;
+    private static final int FIX_3_072711026 = 25172;
+
+    private static final int CHUNK_SIZE = 4096;
+
+    private final int mQuality;
+    private final int mHorizontalSampling;
+    private final int mVerticalSampling;
+
+    // Quantization tables in natural order, as written to the DQT segment.
+    private final int[] mLuminanceTable = new int[64];
+    private final int[] mChrominanceTable = new int[64];
+    // Divisors applied to the DCT output, which is scaled up by 8.
+    private final int[] mLuminanceDivisors = new int[64];
+    private final int[] mChrominanceDivisors = new int[64];
+
+    private final int[] mDcLuminanceCodes = new int[12];
+    private final int[] mDcLuminanceSizes = new int[12];
+    private final int[] mDcChrominanceCodes = new int[12];
+    private final int[] mDcChrominanceSizes = new int[12];
+    private final int[] mAcLuminanceCodes = new int[256];
+    private final int[] mAcLuminanceSizes = new int[256];
+    private final int[] mAcChrominanceCodes = new int[256];
+    private final int[] mAcChrominanceSizes = new int[256];
+
+    private final int[] mBlock = new int[64];
+
+    // Entropy coder state for the frame being encoded.
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+    private int mChunkLength;
+    private int mBitBuffer;
+    private int mBitCount;
+    private OutputStream mOut;
+
+    /**
+     * Creates an encoder producing 4:2:0 output.
+     *
+     * @param quality JPEG quality, 1 to 100.
+     */
+    public JpegEncoder(int quality) {
+        this(quality, SUBSAMPLING_420);
+    }
+
+    /**
+     * @param quality JPEG quality, 1 to 100.
+     * @param subsampling One of {@link #SUBSAMPLING_444}, {@link #SUBSAMPLING_422} or
+     * {@link #SUBSAMPLING_420}.
+     */
+    public JpegEncoder(int quality, int subsampling) {
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException("Quality out of range: " + quality);
+        }
+        switch (subsampling) {
+            case SUBSAMPLING_444:
+                mHorizontalSampling = 1;
+                mVerticalSampling = 1;
+                break;
+            case SUBSAMPLING_422:
+                mHorizontalSampling = 2;
+                mVerticalSampling = 1;
+                break;
+            case SUBSAMPLING_420:
+                mHorizontalSampling = 2;
+                mVerticalSampling = 2;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown subsampling " + subsampling);
+        }
+        mQuality = quality;
+        scaleQuantization(LUMINANCE_QUANTIZATION, quality, mLuminanceTable, mLuminanceDivisors);
+        scaleQuantization(CHROMINANCE_QUANTIZATION, quality, mChrominanceTable,
+                mChrominanceDivisors);
+        buildHuffmanCodes(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES,
+                mDcLuminanceCodes, mDcLuminanceSizes);
+        buildHuffmanCodes(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES,
+                mDcChrominanceCodes, mDcChrominanceSizes);
+        buildHuffmanCodes(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES,
+                mAcLuminanceCodes, mAcLuminanceSizes);
+        buildHuffmanCodes(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES,
+                mAcChrominanceCodes, mAcChrominanceSizes);
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    @Override
+    public void encode(byte[] nv21, int width, int height, OutputStream out) throws IOException {
+        if (width <= 0 || height <= 0 || width > 0xffff || height > 0xffff) {
+            throw new IllegalArgumentException("Unsupported size " + width + "x" + height);
+        }
+        if (nv21.length < YuvConverter.nv21Size(width, height)) {
+            throw new IllegalArgumentException("Frame too small for " + width + "x" + height);
+        }
+        mOut = out;
+        mChunkLength = 0;
+        mBitBuffer = 0;
+        mBitCount = 0;
+        try {
+            writeHeaders(width, height);
+            writeScan(nv21, width, height);
+            flushBits();
+            writeMarker(0xd9); // EOI
+            flushChunk();
+        } finally {
+            mOut = null;
+        }
+    }
+
+    private void writeScan(byte[] nv21, int width, int height) throws IOException {
+        final int mcuWidth = 8 * mHorizontalSampling;
+        final int mcuHeight = 8 * mVerticalSampling;
+        final int chromaOffset = width * height;
+        final int chromaRowBytes = 2 * ((width + 1) / 2);
+        int lumaPredictor = 0;
+        int cbPredictor = 0;
+        int crPredictor = 0;
+
+        for (int mcuY = 0; mcuY < height; mcuY += mcuHeight) {
+            for (int mcuX = 0; mcuX < width; mcuX += mcuWidth) {
+                for (int v = 0; v < mVerticalSampling; v++) {
+                    for (int h = 0; h < mHorizontalSampling; h++) {
+                        loadLumaBlock(nv21, width, height, mcuX + 8 * h, mcuY + 8 * v);
+                        lumaPredictor = encodeBlock(lumaPredictor, mLuminanceDivisors,
+                                mDcLuminanceCodes, mDcLuminanceSizes,
+                                mAcLuminanceCodes, mAcLuminanceSizes);
+                    }
+                }
+                // NV21 stores V first: byte 1 of each pair is Cb, byte 0 is Cr.
+                loadChromaBlock(nv21, chromaOffset + 1, chromaRowBytes, width, height,
+                        mcuX, mcuY);
+                cbPredictor = encodeBlock(cbPredictor, mChrominanceDivisors,
+                        mDcChrominanceCodes, mDcChrominanceSizes,
+                        mAcChrominanceCodes, mAcChrominanceSizes);
+                loadChromaBlock(nv21, chromaOffset, chromaRowBytes, width, height,
+                        mcuX, mcuY);
+                crPredictor = encodeBlock(crPredictor, mChrominanceDivisors,
+                        mDcChrominanceCodes, mDcChrominanceSizes,
+                        mAcChrominanceCodes, mAcChrominanceSizes);
+            }
+        }
+    }
+
+    // Level shifted luma samples of the 8x8 block at (x, y), replicating the frame edges.
+    private void loadLumaBlock(byte[] nv21, int width, int height, int x, int y) {
+        final int[] block = mBlock;
+        for (int row = 0; row < 8; row++) {
+            int rowStart = Math.min(y + row, height - 1) * width;
+            for (int col = 0; col < 8; col++) {
+                block[row * 8 + col] = (nv21[rowStart + Math.min(x + col, width - 1)] & 0xff)
+                        - 128;
+            }
+        }
+    }
+
+    // Level shifted chroma samples covering the MCU at (mcuX, mcuY) in luma coordinates.
+    // offset selects V (0) or U (1) within the interleaved chroma plane.
+    private void loadChromaBlock(byte[] nv21, int offset, int rowBytes, int width, int height,
+            int mcuX, int mcuY) {
+        final int[] block = mBlock;
+        for (int row = 0; row < 8; row++) {
+            int lumaY = Math.min(mcuY + row * mVerticalSampling, height - 1);
+            int rowStart = offset + (lumaY >> 1) * rowBytes;
+            for (int col = 0; col < 8; col++) {
+                int lumaX = Math.min(mcuX + col * mHorizontalSampling, width - 1);
+                block[row * 8 + col] = (nv21[rowStart + 2 * (lumaX >> 1)] & 0xff) - 128;
+            }
+        }
+    }
+
+    // Transforms, quantizes and entropy codes mBlock. Returns the new DC predictor.
+    private int encodeBlock(int predictor, int[] divisors, int[] dcCodes, int[] dcSizes,
+            int[] acCodes, int[] acSizes) throws IOException {
+        final int[] block = mBlock;
+        forwardDct(block);
+        for (int i = 0; i < 64; i++) {
+            int divisor = divisors[i];
+            int value = block[i];
+            block[i] = value >= 0
+                    ? (value + (divisor >> 1)) / divisor
+                    : -((-value + (divisor >> 1)) / divisor);
+        }
+
+        int dc = block[0];
+        int diff = dc - predictor;
+        int category = magnitudeCategory(diff);
+        writeBits(dcCodes[category], dcSizes[category]);
+        if (category != 0) {
+            writeBits(diff < 0 ? diff - 1 : diff, category);
+        }
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int value = block[ZIGZAG[k]];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                writeBits(acCodes[0xf0], acSizes[0xf0]);
+                run -= 16;
+            }
+            category = magnitudeCategory(value);
+            int symbol = (run << 4) | category;
+            writeBits(acCodes[symbol], acSizes[symbol]);
+            writeBits(value < 0 ? value - 1 : value, category);
+            run = 0;
+        }
+        if (run > 0) {
+            writeBits(acCodes[0x00], acSizes[0x00]);
+        }
+        return dc;
+    }
+
+    private static int magnitudeCategory(int value) {
+        return 32 - Integer.numberOfLeadingZeros(value < 0 ? -value : value);
+    }
+
+    /**
+     * IJG accurate integer forward DCT (jfdctint.c). The output is scaled up by 8.
+     */
+    private static void forwardDct(int[] data) {
+        for (int row = 0; row < 64; row += 8) {
+            int tmp0 = data[row] + data[row + 7];
+            int tmp7 = data[row] - data[row + 7];
+            int tmp1 = data[row + 1] + data[row + 6];
+            int tmp6 = data[row + 1] - data[row + 6];
+            int tmp2 = data[row + 2] + data[row + 5];
+            int tmp5 = data[row + 2] - data[row + 5];
+            int tmp3 = data[row + 3] + data[row + 4];
+            int tmp4 = data[row + 3] - data[row + 4];
+
+            int tmp10 = tmp0 + tmp3;
+            int tmp13 = tmp0 - tmp3;
+            int tmp11 = tmp1 + tmp2;
+            int tmp12 = tmp1 - tmp2;
+
+            data[row] = (tmp10 + tmp11) << PASS1_BITS;
+            data[row + 4] = (tmp10 - tmp11) << PASS1_BITS;
+
+            int z1 = (tmp12 + tmp13) * FIX_0_541196100;
+            data[row + 2] = descale(z1 + tmp13 * FIX_0_765366865, CONST_BITS - PASS1_BITS);
+            data[row + 6] = descale(z1 - tmp12 * FIX_1_847759065, CONST_BITS - PASS1_BITS);
+
+            z1 = tmp4 + tmp7;
+            int z2 = tmp5 + tmp6;
+            int z3 = tmp4 + tmp6;
+            int z4 = tmp5 + tmp7;
+            int z5 = (z3 + z4) * FIX_1_175875602;
+
+            tmp4 *= FIX_0_298631336;
+            tmp5 *= FIX_2_053119869;
+            tmp6 *= FIX_3_072711026;
+            tmp7 *= FIX_1_501321110;
+            z1 *= -FIX_0_899976223;
+            z2 *= -FIX_2_562915447;
+            z3 = z3 * -FIX_1_961570560 + z5;
+            z4 = z4 * -FIX_0_390180644 + z5;
+
+            data[row + 7] = descale(tmp4 + z1 + z3, CONST_BITS - PASS1_BITS);
+            data[row + 5] = descale(tmp5 + z2 + z4, CONST_BITS - PASS1_BITS);
+            data[row + 3] = descale(tmp6 + z2 + z3, CONST_BITS - PASS1_BITS);
+            data[row + 1] = descale(tmp7 + z1 + z4, CONST_BITS - PASS1_BITS);
+        }
+
+        for (int col = 0; col < 8; col++) {
+            int tmp0 = data[col] + data[col + 56];
+            int tmp7 = data[col] - data[col + 56];
+            int tmp1 = data[col + 8] + data[col + 48];
+            int tmp6 = data[col + 8] - data[col + 48];
+            int tmp2 = data[col + 16] + data[col + 40];
+            int tmp5 = data[col + 16] - data[col + 40];
+            int tmp3 = data[col + 24] + data[col + 32];
+            int tmp4 = data[col + 24] - data[col + 32];
+
+            int tmp10 = tmp0 + tmp3;
+            int tmp13 = tmp0 - tmp3;
+            int tmp11 = tmp1 + tmp2;
+            int tmp12 = tmp1 - tmp2;
+
+            data[col] = descale(tmp10 + tmp11, PASS1_BITS);
+            data[col + 32] = descale(tmp10 - tmp11, PASS1_BITS);
+
+            int z1 = (tmp12 + tmp13) * FIX_0_541196100;
+            data[col + 16] = descale(z1 + tmp13 * FIX_0_765366865, CONST_BITS + PASS1_BITS);
+            data[col + 48] = descale(z1 - tmp12 * FIX_1_847759065, CONST_BITS + PASS1_BITS);
+
+            z1 = tmp4 + tmp7;
+            int z2 = tmp5 + tmp6;
+            int z3 = tmp4 + tmp6;
+            int z4 = tmp5 + tmp7;
+            int z5 = (z3 + z4) * FIX_1_175875602;
+
+            tmp4 *= FIX_0_298631336;
+            tmp5 *= FIX_2_053119869;
+            tmp6 *= FIX_3_072711026;
+            tmp7 *= FIX_1_501321110;
+            z1 *= -FIX_0_899976223;
+            z2 *= -FIX_2_562915447;
+            z3 = z3 * -FIX_1_961570560 + z5;
+            z4 = z4 * -FIX_0_390180644 + z5;
+
+            data[col + 56] = descale(tmp4 + z1 + z3, CONST_BITS + PASS1_BITS);
+            data[col + 40] = descale(tmp5 + z2 + z4, CONST_BITS + PASS1_BITS);
+            data[col + 24] = descale(tmp6 + z2 + z3, CONST_BITS + PASS1_BITS);
+            data[col + 8] = descale(tmp7 + z1 + z4, CONST_BITS + PASS1_BITS);
+        }
+    }
+
+    private static int descale(int value, int bits) {
+        return (value + (1 << (bits - 1))) >> bits;
+    }
+
+    // IJG quality scaling of a base table. table receives the values written to the file,
+    // divisors the values the DCT output is divided by.
+    private static void scaleQuantization(int[] base, int quality, int[] table, int[] divisors) {
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        for (int i = 0; i < 64; i++) {
+            int value = (base[i] * scale + 50) / 100;
+            value = Math.max(1, Math.min(255, value));
+            table[i] = value;
+            divisors[i] = value * 8;
+        }
+    }
+
+    // Canonical Huffman code assignment (JPEG spec, Annex C).
+    private static void buildHuffmanCodes(int[] bits, int[] values, int[] codes, int[] sizes) {
+        int code = 0;
+        int k = 0;
+        for (int length = 1; length <= 16; length++) {
+            for (int i = 0; i < bits[length - 1]; i++) {
+                int symbol = values[k++];
+                codes[symbol] = code++;
+                sizes[symbol] = length;
+            }
+            code <<= 1;
+        }
+    }
+
+    private void writeHeaders(int width, int height) throws IOException {
+        writeMarker(0xd8); // SOI
+
+        // APP0: JFIF 1.01, no density, no thumbnail.
+        writeMarker(0xe0);
+        writeShort(16);
+        writeByte('J');
+        writeByte('F');
+        writeByte('I');
+        writeByte('F');
+        writeByte(0);
+        writeByte(1);
+        writeByte(1);
+        writeByte(0);
+        writeShort(1);
+        writeShort(1);
+        writeByte(0);
+        writeByte(0);
+
+        // DQT: both tables, 8-bit precision, zigzag order.
+        writeMarker(0xdb);
+        writeShort(2 + 2 * 65);
+        writeByte(0);
+        for (int k = 0; k < 64; k++) {
+            writeByte(mLuminanceTable[ZIGZAG[k]]);
+        }
+        writeByte(1);
+        for (int k = 0; k < 64; k++) {
+            writeByte(mChrominanceTable[ZIGZAG[k]]);
+        }
+
+        // SOF0: baseline, 8-bit, three components.
+        writeMarker(0xc0);
+        writeShort(8 + 3 * 3);
+        writeByte(8);
+        writeShort(height);
+        writeShort(width);
+        writeByte(3);
+        writeByte(1);
+        writeByte((mHorizontalSampling << 4) | mVerticalSampling);
+        writeByte(0);
+        writeByte(2);
+        writeByte(0x11);
+        writeByte(1);
+        writeByte(3);
+        writeByte(0x11);
+        writeByte(1);
+
+        // DHT
+        writeMarker(0xc4);
+        writeShort(2 + huffmanTableLength(DC_LUMINANCE_VALUES)
+                + huffmanTableLength(AC_LUMINANCE_VALUES)
+                + huffmanTableLength(DC_CHROMINANCE_VALUES)
+                + huffmanTableLength(AC_CHROMINANCE_VALUES));
+        writeHuffmanTable(0x00, DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+        writeHuffmanTable(0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+        writeHuffmanTable(0x01, DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+        writeHuffmanTable(0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+        // SOS: all components in one interleaved scan.
+        writeMarker(0xda);
+        writeShort(6 + 2 * 3);
+        writeByte(3);
+        writeByte(1);
+        writeByte(0x00);
+        writeByte(2);
+        writeByte(0x11);
+        writeByte(3);
+        writeByte(0x11);
+        writeByte(0);
+        writeByte(63);
+        writeByte(0);
+    }
+
+    private static int huffmanTableLength(int[] values) {
+        return 1 + 16 + values.length;
+    }
+
+    private void writeHuffmanTable(int classAndId, int[] bits, int[] values) throws IOException {
+        writeByte(classAndId);
+        for (int count : bits) {
+            writeByte(count);
+        }
+        for (int value : values) {
+            writeByte(value);
+        }
+    }
+
+    private void writeMarker(int marker) throws IOException {
+        writeByte(0xff);
+        writeByte(marker);
+    }
+
+    private void writeShort(int value) throws IOException {
+        writeByte(value >> 8);
+        writeByte(value);
+    }
+
+    private void writeByte(int value) throws IOException {
+        if (mChunkLength == CHUNK_SIZE) {
+            flushChunk();
+        }
+        mChunk[mChunkLength++] = (byte) value;
+    }
+
+    private void flushChunk() throws IOException {
+        mOut.write(mChunk, 0, mChunkLength);
+        mChunkLength = 0;
+    }
+
+    // Appends the low size bits of code to the entropy coded segment, stuffing a zero byte
+    // after every 0xff.
+    private void writeBits(int code, int size) throws IOException {
+        int buffer = (mBitBuffer << size) | (code & ((1 << size) - 1));
+        int count = mBitCount + size;
+        while (count >= 8) {
+            count -= 8;
+            int b = (buffer >> count) & 0xff;
+            writeByte(b);
+            if (b == 0xff) {
+                writeByte(0);
+            }
+        }
+        mBitBuffer = buffer & ((1 << count) - 1);
+        mBitCount = count;
+    }
+
+    // Pads the last partial byte with 1 bits.
+    private void flushBits() throws IOException {
+        if (mBitCount > 0) {
+            writeBits(0x7f, 8 - mBitCount);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+/**
+ * The clock video frames are presented against. Depending on the source it follows the
+ * system clock, the audio output or time updates from somewhere else.
+ *
+ * @see SystemMasterClock
+ * @see ExternalMasterClock
+ */
+public interface MasterClock {
+
+    /** Returned by {@link #getMediaTimeUs(long)} while the clock isn't running. */
+    long TIME_UNSET = Long.MIN_VALUE;
+
+    /**
+     * @param systemTimeNs A {@link System#nanoTime()} value, usually the current one.
+     * @return The media time at {@code systemTimeNs}, in microseconds, or {@link #TIME_UNSET}.
+     */
+    long getMediaTimeUs(long systemTimeNs);
+
+    /**
+     * @return Media time advanced per unit of system time, 1 for normal speed playback.
+     */
+    float getPlaybackRate();
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import static android.media.MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT;
+
+/**
+ * {@link AsyncCodec} backed by a {@link MediaCodec} running in callback mode on its own
+ * {@link HandlerThread}. It also exposes the parts of the codec that involve Android types,
+ * which {@link AsyncCodecEngine} uses directly.
+ */
+public final class MediaCodecAsyncAdapter implements AsyncCodec {
+
+    private final MediaCodec mCodec;
+    private final MediaFormat mFormat;
+    private final Surface mSurface;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    // The pool mCodec came from, or null if it is owned outright.
+    private final CodecPool mPool;
+    // Applied to mFormat before configuring, or null for the defaults.
+    private final DecodeProfile mProfile;
+    // Guarded by this.
+    private boolean mReleased;
+    private volatile MediaFormat mOutputFormat;
+
+    private MediaCodecAsyncAdapter(MediaCodec codec, MediaFormat format, Surface surface,
+            HandlerThread thread, Handler handler, CodecPool pool, DecodeProfile profile) {
+        mCodec = codec;
+        mFormat = format;
+        mSurface = surface;
+        mThread = thread;
+        mHandler = handler;
+        mPool = pool;
+        mProfile = profile;
+    }
+
+    /**
+     * Creates a decoder for {@code format}. The codec is configured when {@link #start} is
+     * called.
+     *
+     * @param format The format of the media to be decoded.
+     * @param surface Surface to render the decoded frames to, or null.
+     */
+    public static MediaCodecAsyncAdapter createDecoder(final MediaFormat format, Surface surface)
+            throws IOException {
+        return createDecoder(format, surface, null);
+    }
+
+    /**
+     * Variant of {@link #createDecoder(MediaFormat, Surface)} that takes the codec from
+     * {@code pool} and returns it there on {@link #release}.
+     *
+     * Pooled codecs are created on whatever thread first needed them, so their callbacks have
+     * to be routed with {@link MediaCodec#setCallback(MediaCodec.Callback, Handler)}, which
+     * needs API 23. Before that the pool is bypassed.
+     */
+    public static MediaCodecAsyncAdapter createDecoder(final MediaFormat format, Surface surface,
+            CodecPool pool) throws IOException {
+        return createDecoder(format, surface, pool, null);
+    }
+
+    /**
+     * Variant of {@link #createDecoder(MediaFormat, Surface, CodecPool)} that tunes the codec
+     * with {@code profile}, see {@link DecodeProfile}.
+     *
+     * @param pool May be null.
+     * @param profile May be null. {@code format} is modified with its settings on
+     * {@link #start}.
+     */
+    public static MediaCodecAsyncAdapter createDecoder(final MediaFormat format, Surface surface,
+            CodecPool pool, DecodeProfile profile) throws IOException {
+        final String mimeType = format.getString(MediaFormat.KEY_MIME);
+        HandlerThread thread = new HandlerThread("AsyncCodec:" + mimeType);
+        thread.start();
+        Handler handler = new Handler(thread.getLooper());
+
+        if (pool != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            try {
+                MediaCodec codec = pool.acquire(format, surface != null, true);
+                return new MediaCodecAsyncAdapter(codec, format, surface, thread, handler, pool,
+                        profile);
+            } catch (IOException | RuntimeException e) {
+                thread.quit();
+                throw e;
+            }
+        }
+
+        // Callbacks registered without a Handler are delivered on the looper of the thread that
+        // created the codec, so create it on our own thread. That works the same way on every
+        // API level from 21 on.
+        FutureTask<MediaCodec> create = new FutureTask<>(new Callable<MediaCodec>() {
+            @Override
+            public MediaCodec call() throws IOException {
+                return CodecSelector.createDecoder(format);
+            }
+        });
+        handler.post(create);
+        try {
+            return new MediaCodecAsyncAdapter(create.get(), format, surface, thread, handler, null,
+                    profile);
+        } catch (InterruptedException e) {
+            thread.quit();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating codec for " + mimeType, e);
+        } catch (ExecutionException e) {
+            thread.quit();
+            throw new IOException("Unable to create codec for " + mimeType, e.getCause());
+        }
+    }
+
+    @Override
+    public void start(final Callback callback) {
+        // The callback has to be in place before configure() for the codec to run
+        // asynchronously.
+        MediaCodec.Callback codecCallback = new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                callback.onInputBufferAvailable(index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index,
+                    MediaCodec.BufferInfo info) {
+                callback.onOutputBufferAvailable(index, info.offset, info.size,
+                        info.presentationTimeUs, info.flags);
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                callback.onError(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                mOutputFormat = format;
+            }
+        };
+        if (mPool != null) {
+            mCodec.setCallback(codecCallback, mHandler);
+        } else {
+            mCodec.setCallback(codecCallback);
+        }
+        if (mProfile != null) {
+            mProfile.apply(mFormat, mCodec);
+        }
+        mCodec.configure(mFormat, mSurface, null, 0);
+        if (mSurface != null) {
+            mCodec.setVideoScalingMode(VIDEO_SCALING_MODE_SCALE_TO_FIT);
+        }
+        mCodec.start();
+        if (mPool != null) {
+            mPool.onStarted(mCodec);
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    /**
+     * @see MediaCodec#getOutputImage(int)
+     */
+    public Image getOutputImage(int index) {
+        return mCodec.getOutputImage(index);
+    }
+
+    /**
+     * @return The latest output format reported by the codec, or null if none was reported yet.
+     */
+    public MediaFormat getOutputFormat() {
+        return mOutputFormat;
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+            int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    /**
+     * @see MediaCodec#queueSecureInputBuffer(int, int, MediaCodec.CryptoInfo, long, int)
+     */
+    public void queueSecureInputBuffer(int index, int offset, MediaCodec.CryptoInfo info,
+            long presentationTimeUs, int flags) {
+        mCodec.queueSecureInputBuffer(index, offset, info, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, long renderTimestampNs) {
+        mCodec.releaseOutputBuffer(index, renderTimestampNs);
+    }
+
+    @Override
+    public void flush() {
+        mCodec.flush();
+        // Callbacks are delivered in order on our thread, so once this no-op has run, every
+        // callback queued before the flush has been too.
+        FutureTask<Void> barrier = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, null);
+        mHandler.post(barrier);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                barrier.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void resume() {
+        mCodec.start();
+    }
+
+    @Override
+    public void release() {
+        synchronized (this) {
+            // Releasing twice would hand the codec back to the pool while another user may
+            // already have acquired it.
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+        }
+        if (mPool != null) {
+            mPool.release(mCodec);
+        } else {
+            mCodec.stop();
+            mCodec.release();
+        }
+        mThread.quitSafely();
+    }
+}
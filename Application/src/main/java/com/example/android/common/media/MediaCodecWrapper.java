@@ -23,16 +23,15 @@ import android.view.Surface;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Locale;
-import java.util.Queue;
 
 import static android.media.MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT;
 
 /**
  * Simplifies the MediaCodec interface by wrapping around the buffer processing operations.
  */
-public class MediaCodecWrapper {
+public class MediaCodecWrapper implements CodecEngine {
 
     // Handler to use for {@code OutputSampleListener} and {code OutputFormatChangedListener}
     // callbacks
@@ -48,52 +47,126 @@ public class MediaCodecWrapper {
 
     /**
      * Callback for decodes frames. Observers can register a listener for optional stream
-     * of decoded data
+     * of decoded data. The callback runs synchronously inside {@link #popSample(boolean)} and
+     * receives a lease on the codec output buffer instead of a copy of the data. The listener
+     * must close the lease, right away or later from any thread; the buffer only goes back to
+     * the codec (and is rendered, if requested) once it does.
      */
     public interface OutputSampleListener {
-        void outputSample(MediaCodecWrapper sender, MediaCodec.BufferInfo info, ByteBuffer buffer);
+        void outputSample(MediaCodecWrapper sender, OutputSampleLease lease);
     }
 
+    private OutputSampleListener mOutputSampleListener = null;
+
+    // One lease per output buffer index, created on first use and recycled afterwards.
+    private OutputSampleLease[] mLeases;
+
+    // Guards mOutstandingLeases, the release of leased buffers and the mLeases reference.
+    private final Object mLeaseLock = new Object();
+
+    // Gives leased buffers back, without making the hook part of the public API.
+    private final OutputSampleLease.Owner mLeaseOwner = new OutputSampleLease.Owner() {
+        @Override
+        public void releaseLeasedBuffer(int index, long presentationTimeUs, boolean render,
+                long renderTimestampNs) {
+            MediaCodecWrapper.this.releaseLeasedBuffer(index, presentationTimeUs, render,
+                    renderTimestampNs);
+        }
+    };
+
+    // Number of output buffers handed to the listener and not yet released.
+    private int mOutstandingLeases;
+
     /**
      * The {@link MediaCodec} that is managed by this class.
      */
     private MediaCodec mDecoder;
 
-    // References to the internal buffers managed by the codec. The codec
-    // refers to these buffers by index, never by reference so it's up to us
-    // to keep track of which buffer is which.
-    private ByteBuffer[] mInputBuffers;
-    private ByteBuffer[] mOutputBuffers;
+    // Number of buffers on either port that the bookkeeping is sized for up front; it grows if
+    // the codec hands out a higher index. The codec refers to its buffers by index, never by
+    // reference; buffers are looked up by index with getInputBuffer()/getOutputBuffer()
+    // whenever they're needed, so there's no buffer array snapshot to keep in sync.
+    private static final int INITIAL_BUFFERS = 64;
+
+    // Returned by queueSample() when no input buffer is free.
+    private static final int NO_INPUT_BUFFER = -1;
+
+    // Passed internally when a buffer is to be rendered as soon as possible.
+    private static final long NO_RENDER_TIMESTAMP = -1;
 
     // Indices of the input buffers that are currently available for writing. We'll
     // consume these in the order they were dequeued from the codec.
-    private Queue<Integer> mAvailableInputBuffers;
+    private final IntRingQueue mAvailableInputBuffers;
 
     // Indices of the output buffers that currently hold valid data, in the order
     // they were produced by the codec.
-    private Queue<Integer> mAvailableOutputBuffers;
+    private final IntRingQueue mAvailableOutputBuffers;
+
+    // Information about each output buffer, by index. Each entry is valid if and only if its
+    // index is currently contained in mAvailableOutputBuffers.
+    private final OutputBufferTable mOutputBufferInfo;
+
+    // Out-parameter for dequeueOutputBuffer(), reused across update() calls.
+    private final MediaCodec.BufferInfo mDequeueBufferInfo = new MediaCodec.BufferInfo();
+
+    private volatile PipelineMetrics mMetrics;
 
-    // Information about each output buffer, by index. Each entry in this array
-    // is valid if and only if its index is currently contained in mAvailableOutputBuffers.
-    private MediaCodec.BufferInfo[] mOutputBufferInfo;
+    // Latest format reported by INFO_OUTPUT_FORMAT_CHANGED, read from any thread.
+    private volatile MediaFormat mOutputFormat;
 
-    private MediaCodecWrapper(MediaCodec codec) {
+    // The pool mDecoder came from and goes back to, or null if it is owned outright.
+    private final CodecPool mPool;
+
+    // How the codec was tuned and is fed, or null for the defaults.
+    private final DecodeProfile mProfile;
+
+    // Limit on samples queued since the codec last output one, 0 for none. Counting from the
+    // last output rather than matching inputs to outputs keeps the count from drifting when
+    // the codec drops samples without output.
+    private final int mMaxSamplesInFlight;
+    private int mSamplesSinceOutput;
+    // Set when the codec needs more samples than the limit before it outputs one, e.g. to
+    // reorder frames. The limit is lifted until the next output.
+    private boolean mInFlightLimitLifted;
+    // Time of the last sample queued or decoded.
+    private long mLastProgressNs;
+
+    // How long the codec may sit at the in-flight limit without output before the limit is
+    // lifted.
+    private static final long IN_FLIGHT_STALL_NS = 100000000;
+
+    private MediaCodecWrapper(MediaCodec codec, CodecPool pool, DecodeProfile profile) {
         mDecoder = codec;
+        mPool = pool;
+        mProfile = profile;
+        mMaxSamplesInFlight = profile != null ? profile.getMaxSamplesInFlight() : 0;
         codec.start();
-        mInputBuffers = codec.getInputBuffers();
-        mOutputBuffers = codec.getOutputBuffers();
-        mOutputBufferInfo = new MediaCodec.BufferInfo[mOutputBuffers.length];
-        mAvailableInputBuffers = new ArrayDeque<>(mOutputBuffers.length);
-        mAvailableOutputBuffers = new ArrayDeque<>(mInputBuffers.length);
+        if (pool != null) {
+            pool.onStarted(codec);
+        }
+        mOutputBufferInfo = new OutputBufferTable(INITIAL_BUFFERS);
+        mAvailableInputBuffers = new IntRingQueue(INITIAL_BUFFERS);
+        mAvailableOutputBuffers = new IntRingQueue(INITIAL_BUFFERS);
+        mLeases = new OutputSampleLease[INITIAL_BUFFERS];
     }
 
     /**
-     * Releases resources and ends the encoding/decoding session.
+     * Releases resources and ends the encoding/decoding session. Calling it again has no
+     * effect.
      */
     public void stopAndRelease() {
-        mDecoder.stop();
-        mDecoder.release();
-        mDecoder = null;
+        synchronized (mLeaseLock) {
+            if (mDecoder == null) {
+                return;
+            }
+            if (mPool != null) {
+                mPool.release(mDecoder);
+            } else {
+                mDecoder.stop();
+                mDecoder.release();
+            }
+            mDecoder = null;
+        }
         mHandler = null;
     }
 
@@ -126,6 +199,21 @@ public class MediaCodecWrapper {
         }
     }
 
+    /**
+     * Getter for the registered {@link OutputSampleListener}
+     */
+    public OutputSampleListener getOutputSampleListener() {
+        return mOutputSampleListener;
+    }
+
+    /**
+     * Registers a listener that receives a lease on every decoded sample as it is popped.
+     * Pass null to stop receiving samples.
+     */
+    public void setOutputSampleListener(OutputSampleListener outputSampleListener) {
+        mOutputSampleListener = outputSampleListener;
+    }
+
     /**
      * Constructs the {@link MediaCodecWrapper} wrapper object around the video codec.
      * The codec is created using the encapsulated information in the
@@ -137,6 +225,123 @@ public class MediaCodecWrapper {
      */
     public static MediaCodecWrapper fromVideoFormat(final MediaFormat trackFormat,
             Surface surface) throws IOException {
+        return fromVideoFormat(trackFormat, surface, 0, null, null);
+    }
+
+    /**
+     * Variant of {@link #fromVideoFormat(MediaFormat, Surface)} that takes its codec from
+     * {@code pool} and returns it there on {@link #stopAndRelease()}, so that the next session
+     * with a similar format skips creating one.
+     */
+    public static MediaCodecWrapper fromVideoFormat(final MediaFormat trackFormat,
+            Surface surface, CodecPool pool) throws IOException {
+        return fromVideoFormat(trackFormat, surface, 0, pool, null);
+    }
+
+    /**
+     * Variant of {@link #fromVideoFormat(MediaFormat, Surface, CodecPool)} that tunes the codec
+     * and the way samples are fed and released according to {@code profile}.
+     *
+     * @param pool The pool to take the codec from, or null to create one.
+     * @param profile See {@link DecodeProfile#lowLatency()} and
+     * {@link DecodeProfile#throughput()}. {@code trackFormat} is modified with its settings.
+     */
+    public static MediaCodecWrapper fromVideoFormat(final MediaFormat trackFormat,
+            Surface surface, CodecPool pool, DecodeProfile profile) throws IOException {
+        return fromVideoFormat(trackFormat, surface, 0, pool, profile);
+    }
+
+    /**
+     * Constructs a {@link MediaCodecWrapper} around a decoder the caller created, for instance
+     * with {@link CodecSelector}. The wrapper configures and starts it, and takes ownership.
+     *
+     * @param codec A decoder for {@code trackFormat}, not configured yet.
+     * @param surface Surface to render the decoded frames, or null to decode into buffers.
+     */
+    public static MediaCodecWrapper fromCodec(MediaCodec codec, final MediaFormat trackFormat,
+            Surface surface) {
+        try {
+            configurator(trackFormat, surface, null).configure(codec);
+        } catch (RuntimeException e) {
+            codec.release();
+            throw e;
+        }
+        return new MediaCodecWrapper(codec, null, null);
+    }
+
+    /**
+     * Constructs a {@link MediaCodecWrapper} around an audio decoder producing PCM, which is
+     * read with {@link #peekOutputBuffer()}.
+     *
+     * @param trackFormat The format of the audio track to be decoded.
+     * @return The wrapper, or null if {@code trackFormat} is not an audio format.
+     */
+    public static MediaCodecWrapper fromAudioFormat(final MediaFormat trackFormat)
+            throws IOException {
+        final String mimeType = trackFormat.getString(MediaFormat.KEY_MIME);
+        if (!mimeType.startsWith("audio/")) {
+            return null;
+        }
+        return new MediaCodecWrapper(
+                CodecSelector.createDecoder(trackFormat, true,
+                        configurator(trackFormat, null, null)),
+                null, null);
+    }
+
+    // Wraps a decoder that is already configured, e.g. by configurator(), and starts it.
+    static MediaCodecWrapper fromConfiguredCodec(MediaCodec codec) {
+        return new MediaCodecWrapper(codec, null, null);
+    }
+
+    // Configures a decoder for trackFormat the way the factories here do. profile may be null.
+    static CodecSelector.Configurator configurator(final MediaFormat trackFormat,
+            final Surface surface, final DecodeProfile profile) {
+        return new CodecSelector.Configurator() {
+            @Override
+            public void configure(MediaCodec codec) {
+                if (profile != null) {
+                    profile.apply(trackFormat, codec);
+                }
+                codec.configure(trackFormat, surface, null, 0);
+                if (surface != null) {
+                    codec.setVideoScalingMode(VIDEO_SCALING_MODE_SCALE_TO_FIT);
+                }
+            }
+        };
+    }
+
+    /**
+     * Constructs a {@link MediaCodecWrapper} that decodes into {@link ByteBuffer}s rather than
+     * a {@link Surface}, for headless frame extraction. Decoded frames are handed out through
+     * {@link #setOutputSampleListener(OutputSampleListener)}, {@link #peekOutputBuffer()} or
+     * {@link #peekOutputImage()}.
+     *
+     * @param trackFormat The format of the media object to be decoded. Its
+     * {@link MediaFormat#KEY_COLOR_FORMAT} is overwritten with {@code colorFormat}.
+     * @param colorFormat The raw output color format, typically
+     * {@link MediaCodecInfo.CodecCapabilities#COLOR_FormatYUV420Flexible}.
+     * @return The wrapper, or null if {@code trackFormat} is not a video format.
+     */
+    public static MediaCodecWrapper fromVideoFormatHeadless(final MediaFormat trackFormat,
+            int colorFormat) throws IOException {
+        return fromVideoFormat(trackFormat, null, colorFormat, null, null);
+    }
+
+    /**
+     * Headless variant of {@link #fromVideoFormat(MediaFormat, Surface)} producing flexible
+     * YUV 4:2:0 output.
+     */
+    public static MediaCodecWrapper fromVideoFormatHeadless(final MediaFormat trackFormat)
+            throws IOException {
+        return fromVideoFormatHeadless(trackFormat,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+    }
+
+    // colorFormat is only applied when decoding without a surface; 0 keeps the codec default.
+    // pool and profile may be null.
+    private static MediaCodecWrapper fromVideoFormat(final MediaFormat trackFormat,
+            Surface surface, int colorFormat, CodecPool pool, DecodeProfile profile)
+            throws IOException {
         MediaCodecWrapper result = null;
         MediaCodec videoCodec = null;
 
@@ -146,16 +351,30 @@ public class MediaCodecWrapper {
         // Check to see if this is actually a video mime type. If it is, then create
         // a codec that can decode this mime type.
         if (mimeType.contains("video/")) {
-            videoCodec = MediaCodec.createDecoderByType(mimeType);
-            videoCodec.configure(trackFormat, surface, null,  0);
-            videoCodec.setVideoScalingMode(VIDEO_SCALING_MODE_SCALE_TO_FIT );
-
+            if (surface == null && colorFormat != 0) {
+                trackFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+            }
+            CodecSelector.Configurator configurator =
+                    configurator(trackFormat, surface, profile);
+            if (pool != null) {
+                videoCodec = pool.acquire(trackFormat, surface != null, false);
+                try {
+                    configurator.configure(videoCodec);
+                } catch (RuntimeException e) {
+                    pool.discard(videoCodec);
+                    // Go down the ranking instead. The pool releases the codec, which it
+                    // doesn't know, when it is given back.
+                    videoCodec = CodecSelector.createDecoder(trackFormat, true, configurator);
+                }
+            } else {
+                videoCodec = CodecSelector.createDecoder(trackFormat, true, configurator);
+            }
         }
 
         // If codec creation was successful, then create a wrapper object around the
         // newly created codec.
         if (videoCodec != null) {
-            result = new MediaCodecWrapper(videoCodec);
+            result = new MediaCodecWrapper(videoCodec, pool, profile);
         }
         // END_INCLUDE(create_codec)
 
@@ -190,12 +409,16 @@ public class MediaCodecWrapper {
         boolean result = false;
         int size = input.remaining();
 
-        // check if we have dequed input buffers available from the codec
-        if (size > 0 &&  !mAvailableInputBuffers.isEmpty()) {
-            int index = mAvailableInputBuffers.remove();
-            ByteBuffer buffer = mInputBuffers[index];
+        // check if we have dequed input buffers available from the codec. An empty sample is
+        // only worth writing if it carries the end-of-stream flag.
+        boolean endOfStream = (flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        if ((size > 0 || endOfStream) && !mAvailableInputBuffers.isEmpty()
+                && (endOfStream || !inFlightLimitReached())) {
+            int index = mAvailableInputBuffers.peek();
+            ByteBuffer buffer = mDecoder.getInputBuffer(index);
 
-            // we can't write our sample to a lesser capacity input buffer.
+            // we can't write our sample to a lesser capacity input buffer. The index stays
+            // queued so the buffer isn't lost.
             if (size > buffer.capacity()) {
                 throw new MediaCodecWrapper.WriteException(String.format(Locale.US,
                         "Insufficient capacity in MediaCodec buffer: "
@@ -203,6 +426,7 @@ public class MediaCodecWrapper {
                         input.remaining(),
                         buffer.capacity()));
             }
+            mAvailableInputBuffers.remove();
 
             buffer.clear();
             buffer.put(input);
@@ -214,6 +438,7 @@ public class MediaCodecWrapper {
             } else {
                 mDecoder.queueSecureInputBuffer(index, 0, crypto, presentationTimeUs, flags);
             }
+            recordQueueIn(presentationTimeUs);
             result = true;
         }
         return result;
@@ -243,15 +468,58 @@ public class MediaCodecWrapper {
             final boolean isSecure,
             final long presentationTimeUs,
             int flags) {
-        boolean result = false;
+        return queueSample(extractor, isSecure, presentationTimeUs, flags) != NO_INPUT_BUFFER;
+    }
 
-        if (!mAvailableInputBuffers.isEmpty()) {
+    /**
+     * Writes samples from {@code extractor} to the decoder, advancing it after each one, until
+     * the decoder has no free input buffer left, {@code budget} is used up or the end of stream
+     * has been queued. Once it has, the extractor's {@link MediaExtractor#getSampleTime()} is
+     * -1.
+     *
+     * @return The number of samples queued, also available from {@code budget}.
+     */
+    public int writeSamples(final MediaExtractor extractor, final FeedBudget budget) {
+        // pick up every input buffer the codec has freed since we last looked.
+        update();
+        budget.start();
+        while (budget.hasRemaining()) {
+            long presentationTimeUs = extractor.getSampleTime();
+            int sampleFlags = presentationTimeUs < 0 ? 0 : extractor.getSampleFlags();
+            int flags = (sampleFlags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                    ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+            int size = queueSample(extractor,
+                    (sampleFlags & MediaExtractor.SAMPLE_FLAG_ENCRYPTED) != 0,
+                    Math.max(presentationTimeUs, 0), flags);
+            if (size == NO_INPUT_BUFFER) {
+                break;
+            }
+            budget.consume(size);
+            if (presentationTimeUs < 0) {
+                break;
+            }
+            extractor.advance();
+        }
+        return budget.getSamples();
+    }
+
+    // Queues the extractor's current sample. Returns its size, or NO_INPUT_BUFFER.
+    private int queueSample(final MediaExtractor extractor,
+            final boolean isSecure,
+            final long presentationTimeUs,
+            int flags) {
+        int size = NO_INPUT_BUFFER;
+
+        // The end of stream is never held back.
+        if (!mAvailableInputBuffers.isEmpty()
+                && (extractor.getSampleTime() < 0 || !inFlightLimitReached())) {
             int index = mAvailableInputBuffers.remove();
-            ByteBuffer buffer = mInputBuffers[index];
+            ByteBuffer buffer = mDecoder.getInputBuffer(index);
 
             // reads the sample from the file using extractor into the buffer
-            int size = extractor.readSampleData(buffer, 0);
+            size = extractor.readSampleData(buffer, 0);
             if (size <= 0) {
+                size = 0;
                 flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
             }
 
@@ -263,10 +531,9 @@ public class MediaCodecWrapper {
                 extractor.getSampleCryptoInfo(sCryptoInfo);
                 mDecoder.queueSecureInputBuffer(index, 0, sCryptoInfo, presentationTimeUs, flags);
             }
-
-            result = true;
+            recordQueueIn(presentationTimeUs);
         }
-        return result;
+        return size;
     }
 
     /**
@@ -283,38 +550,237 @@ public class MediaCodecWrapper {
         boolean result = false;
         if (!mAvailableOutputBuffers.isEmpty()) {
             int index = mAvailableOutputBuffers.peek();
-            MediaCodec.BufferInfo info = mOutputBufferInfo[index];
             // metadata of the sample
-            out_bufferInfo.set(
-                    info.offset,
-                    info.size,
-                    info.presentationTimeUs,
-                    info.flags);
+            getOutputBufferInfo(index, out_bufferInfo);
             result = true;
         }
         return result;
     }
 
+    /**
+     * Returns a read-only view of the output buffer at the head of the queue, positioned on
+     * the decoded data. No data is copied. The view is valid until the next
+     * {@link #popSample(boolean)}.
+     *
+     * @return The buffer, or null if no output is available or the codec renders to a
+     * {@link Surface}.
+     */
+    public ByteBuffer peekOutputBuffer() {
+        update();
+        if (mAvailableOutputBuffers.isEmpty()) {
+            return null;
+        }
+        return mDecoder.getOutputBuffer(mAvailableOutputBuffers.peek());
+    }
+
+    /**
+     * Returns the output buffer at the head of the queue as an {@link Image}, giving direct
+     * access to the planes of a raw video frame without copying. The image is valid until the
+     * next {@link #popSample(boolean)}; close it once done.
+     *
+     * @return The image, or null if no output is available, the codec renders to a
+     * {@link Surface} or its output format can't be represented as an {@link Image}.
+     */
+    public Image peekOutputImage() {
+        update();
+        if (mAvailableOutputBuffers.isEmpty()) {
+            return null;
+        }
+        return mDecoder.getOutputImage(mAvailableOutputBuffers.peek());
+    }
+
     /**
      * Processes, releases and optionally renders the output buffer available at the head of the
      * queue. All observers are notified with a callback. See {@link
-     * OutputSampleListener#outputSample(MediaCodecWrapper, android.media.MediaCodec.BufferInfo,
-     * java.nio.ByteBuffer)}
+     * OutputSampleListener#outputSample(MediaCodecWrapper, OutputSampleLease)}. If a listener
+     * is registered the buffer is released once its lease is closed rather than right away.
      *
      * @param render True, if the buffer is to be rendered on the {@link Surface} configured
      *
      */
     public void popSample(boolean render) {
+        popSample(render, NO_RENDER_TIMESTAMP);
+    }
+
+    /**
+     * Like {@link #popSample(boolean)}, but asks the {@link Surface} to display the buffer at
+     * {@code renderTimestampNs} rather than as soon as possible. The compositor uses the
+     * timestamp to present the frame on the matching vsync, and may drop frames whose time has
+     * passed.
+     *
+     * @param renderTimestampNs A {@link System#nanoTime()} value.
+     */
+    public void popSample(long renderTimestampNs) {
+        popSample(true, renderTimestampNs);
+    }
+
+    private void popSample(boolean render, long renderTimestampNs) {
         // dequeue available buffers and synchronize our data structures with the codec.
         update();
         if (!mAvailableOutputBuffers.isEmpty()) {
             int index = mAvailableOutputBuffers.remove();
 
-            // releases the buffer back to the codec
+            if (mOutputSampleListener != null) {
+                // Observers get a lease on the buffer. The release back to the codec is
+                // deferred until they have closed it.
+                // One reference for the listener and one held by us until it returns, so a
+                // listener that closes the lease right away doesn't release it under our feet.
+                OutputSampleLease lease = openLease(index, render, renderTimestampNs, 2);
+                try {
+                    mOutputSampleListener.outputSample(this, lease);
+                } finally {
+                    lease.close();
+                }
+            } else {
+                // releases the buffer back to the codec
+                long presentationTimeUs = mOutputBufferInfo.getPresentationTimeUs(index);
+                releaseOutputBuffer(index, render, renderTimestampNs);
+                recordRelease(presentationTimeUs, render);
+            }
+        }
+    }
+
+    @Override
+    public OutputSampleLease leaseSample(boolean render) {
+        return leaseSample(render, NO_RENDER_TIMESTAMP);
+    }
+
+    @Override
+    public OutputSampleLease leaseSample(long renderTimestampNs) {
+        return leaseSample(true, renderTimestampNs);
+    }
+
+    private OutputSampleLease leaseSample(boolean render, long renderTimestampNs) {
+        update();
+        if (mAvailableOutputBuffers.isEmpty()) {
+            return null;
+        }
+        return openLease(mAvailableOutputBuffers.remove(), render, renderTimestampNs, 1);
+    }
+
+    private OutputSampleLease openLease(int index, boolean render, long renderTimestampNs,
+            int references) {
+        OutputSampleLease lease = mLeases[index];
+        if (lease == null) {
+            lease = new OutputSampleLease(mLeaseOwner, index);
+            mLeases[index] = lease;
+        }
+        getOutputBufferInfo(index, lease.info());
+        synchronized (mLeaseLock) {
+            mOutstandingLeases++;
+        }
+        lease.open(mDecoder.getOutputBuffer(index), render, renderTimestampNs, references);
+        return lease;
+    }
+
+    /**
+     * Discards every queued input sample and decoded output buffer, e.g. after seeking the
+     * source. Decoding resumes with the next written sample, which should be a sync sample.
+     *
+     * @throws IllegalStateException if output buffers are still leased.
+     */
+    public void flush() {
+        synchronized (mLeaseLock) {
+            if (mOutstandingLeases > 0) {
+                throw new IllegalStateException(
+                        mOutstandingLeases + " output buffers are still leased");
+            }
+        }
+        mDecoder.flush();
+        // Every buffer is back with the codec; they are dequeued again by update().
+        mAvailableInputBuffers.clear();
+        mAvailableOutputBuffers.clear();
+        mSamplesSinceOutput = 0;
+        mInFlightLimitLifted = false;
+    }
+
+    @Override
+    public int getOutstandingLeaseCount() {
+        synchronized (mLeaseLock) {
+            return mOutstandingLeases;
+        }
+    }
+
+    // Called through mLeaseOwner, possibly on another thread, once the last reference to a
+    // lease is closed.
+    private void releaseLeasedBuffer(int index, long presentationTimeUs, boolean render,
+            long renderTimestampNs) {
+        synchronized (mLeaseLock) {
+            mOutstandingLeases--;
+            // Leases closed after stopAndRelease() have nothing left to give back.
+            if (mDecoder != null) {
+                releaseOutputBuffer(index, render, renderTimestampNs);
+                recordRelease(presentationTimeUs, render);
+            }
+        }
+    }
+
+    private void releaseOutputBuffer(int index, boolean render, long renderTimestampNs) {
+        boolean immediate = mProfile != null && mProfile.isImmediateRelease();
+        if (render && renderTimestampNs != NO_RENDER_TIMESTAMP && !immediate) {
+            mDecoder.releaseOutputBuffer(index, renderTimestampNs);
+        } else {
             mDecoder.releaseOutputBuffer(index, render);
         }
     }
 
+    /**
+     * @return The latest output format reported by the codec, or null if none was reported yet.
+     */
+    public MediaFormat getOutputFormat() {
+        return mOutputFormat;
+    }
+
+    public void setPipelineMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    private void recordQueueIn(long presentationTimeUs) {
+        mSamplesSinceOutput++;
+        mLastProgressNs = System.nanoTime();
+        PipelineMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.record(PipelineMetrics.STAGE_QUEUE_IN, presentationTimeUs);
+            metrics.setQueueDepth(PipelineMetrics.QUEUE_CODEC_INPUT,
+                    mAvailableInputBuffers.size());
+        }
+        if (mProfile != null) {
+            mProfile.getMetrics().record(PipelineMetrics.STAGE_QUEUE_IN, presentationTimeUs);
+        }
+    }
+
+    private void getOutputBufferInfo(int index, MediaCodec.BufferInfo out_bufferInfo) {
+        out_bufferInfo.set(mOutputBufferInfo.getOffset(index), mOutputBufferInfo.getSize(index),
+                mOutputBufferInfo.getPresentationTimeUs(index),
+                mOutputBufferInfo.getFlags(index));
+    }
+
+    private void recordRelease(long presentationTimeUs, boolean render) {
+        PipelineMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.recordRelease(presentationTimeUs, render);
+        }
+        if (mProfile != null) {
+            mProfile.getMetrics().recordRelease(presentationTimeUs, render);
+        }
+    }
+
+    // True if no more samples should be queued until the codec has output some.
+    private boolean inFlightLimitReached() {
+        if (mMaxSamplesInFlight <= 0 || mInFlightLimitLifted
+                || mSamplesSinceOutput < mMaxSamplesInFlight) {
+            return false;
+        }
+        if (mAvailableOutputBuffers.isEmpty()
+                && System.nanoTime() - mLastProgressNs > IN_FLIGHT_STALL_NS) {
+            // The codec holds on to more samples before it outputs one. Let it have them
+            // rather than stall, until it does.
+            mInFlightLimitLifted = true;
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Synchronize this object's state with the internal state of the wrapped
      * MediaCodec.
@@ -326,21 +792,24 @@ public class MediaCodecWrapper {
         // Get valid input buffers from the codec to fill later in the same order they were
         // made available by the codec.
         while ((index = mDecoder.dequeueInputBuffer(0)) != MediaCodec.INFO_TRY_AGAIN_LATER) {
+            // Every index the codec hands out is a distinct buffer, so index + 1 bounds the
+            // number of them that can be queued at once.
+            mAvailableInputBuffers.ensureCapacity(index + 1);
             mAvailableInputBuffers.add(index);
         }
 
 
         // Likewise with output buffers. If the output buffers have changed, start using the
         // new set of output buffers. If the output format has changed, notify listeners.
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        MediaCodec.BufferInfo info = mDequeueBufferInfo;
         while ((index = mDecoder.dequeueOutputBuffer(info, 0)) !=  MediaCodec.INFO_TRY_AGAIN_LATER) {
             switch (index) {
                 case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
-                    mOutputBuffers = mDecoder.getOutputBuffers();
-                    mOutputBufferInfo = new MediaCodec.BufferInfo[mOutputBuffers.length];
-                    mAvailableOutputBuffers.clear();
+                    // Only relevant to the deprecated getOutputBuffers() array; buffers are
+                    // looked up by index, so there's nothing to refresh.
                     break;
                 case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                    mOutputFormat = mDecoder.getOutputFormat();
                     if (mOutputFormatChangedListener != null) {
                         mHandler.post(new Runnable() {
                             @Override
@@ -359,8 +828,24 @@ public class MediaCodecWrapper {
                     // INFO_OUTPUT_BUFFERS_CHANGED i.e all the other possible return codes but
                     // asserting index value anyways for future-proofing the code.
                     if (index >= 0) {
-                        mOutputBufferInfo[index] = info;
+                        ensureOutputCapacity(index + 1);
+                        mOutputBufferInfo.set(index, info.offset, info.size,
+                                info.presentationTimeUs, info.flags);
                         mAvailableOutputBuffers.add(index);
+                        mSamplesSinceOutput = 0;
+                        mInFlightLimitLifted = false;
+                        mLastProgressNs = System.nanoTime();
+                        PipelineMetrics metrics = mMetrics;
+                        if (metrics != null) {
+                            metrics.record(PipelineMetrics.STAGE_DEQUEUE_OUT,
+                                    info.presentationTimeUs);
+                            metrics.setQueueDepth(PipelineMetrics.QUEUE_CODEC_OUTPUT,
+                                    mAvailableOutputBuffers.size());
+                        }
+                        if (mProfile != null) {
+                            mProfile.getMetrics().record(PipelineMetrics.STAGE_DEQUEUE_OUT,
+                                    info.presentationTimeUs);
+                        }
                     } else {
                         throw new IllegalStateException("Unknown status from dequeueOutputBuffer");
                     }
@@ -372,8 +857,23 @@ public class MediaCodecWrapper {
 
     }
 
-    private class WriteException extends Throwable {
-        private WriteException(final String detailMessage) {
+    // Grows the per-index output bookkeeping, for codecs with more output buffers than
+    // INITIAL_BUFFERS.
+    private void ensureOutputCapacity(int capacity) {
+        mOutputBufferInfo.ensureCapacity(capacity);
+        mAvailableOutputBuffers.ensureCapacity(capacity);
+        if (capacity > mLeases.length) {
+            synchronized (mLeaseLock) {
+                mLeases = Arrays.copyOf(mLeases, capacity);
+            }
+        }
+    }
+
+    /**
+     * Thrown when a sample doesn't fit into the codec's input buffer.
+     */
+    public static class WriteException extends Throwable {
+        WriteException(final String detailMessage) {
             super(detailMessage);
         }
     }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+
+/**
+ * Seeks a {@link DemuxStage} and the {@link CodecEngine} it feeds, using a {@link SeekIndex}
+ * to pick the sync sample to restart decoding from.
+ *
+ * {@link #MODE_CLOSEST_SYNC} is the fast mode for scrubbing: playback resumes at the key frame
+ * nearest to the requested time. {@link #MODE_EXACT} resumes exactly at the requested time by
+ * decoding from the key frame before it and discarding the frames in between; call
+ * {@link #discardUntilTarget} before presenting frames so those never reach the screen.
+ *
+ * Must be used from the thread that feeds the codec.
+ */
+public class MediaSeeker {
+
+    /** Resume at the sync sample closest to the requested time. */
+    public static final int MODE_CLOSEST_SYNC = 0;
+    /** Resume at the requested time, decoding and discarding the frames before it. */
+    public static final int MODE_EXACT = 1;
+
+    private final SeekIndex mIndex;
+    private final DemuxStage mDemuxStage;
+    private final CodecEngine mCodec;
+
+    // Output frames presented before this are discarded.
+    private long mTargetUs = -1;
+
+    public MediaSeeker(SeekIndex index, DemuxStage demuxStage, CodecEngine codec) {
+        mIndex = index;
+        mDemuxStage = demuxStage;
+        mCodec = codec;
+    }
+
+    public SeekIndex getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * Moves playback to {@code timeUs}. Any frame decoded before the call is discarded.
+     *
+     * @param mode {@link #MODE_CLOSEST_SYNC} or {@link #MODE_EXACT}.
+     * @return The presentation time playback resumes at.
+     */
+    public long seekTo(long timeUs, int mode) {
+        timeUs = Math.max(0, Math.min(timeUs, mIndex.getDurationUs()));
+        long syncUs = mode == MODE_EXACT
+                ? mIndex.syncAtOrBefore(timeUs) : mIndex.closestSync(timeUs);
+        if (syncUs < 0) {
+            // No sync samples indexed; let the extractor find one.
+            syncUs = timeUs;
+        }
+        mDemuxStage.seekTo(syncUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        mCodec.flush();
+        mTargetUs = mode == MODE_EXACT ? timeUs : -1;
+        return mode == MODE_EXACT ? timeUs : syncUs;
+    }
+
+    /**
+     * @return True while an exact seek is still decoding towards its target.
+     */
+    public boolean isDiscarding() {
+        return mTargetUs >= 0;
+    }
+
+    /**
+     * Releases, without rendering, every decoded frame at the head of the codec's queue that
+     * is before the target of the last exact seek.
+     *
+     * @param out_bufferInfo Scratch space for the buffer metadata.
+     * @return The number of frames discarded.
+     */
+    public int discardUntilTarget(MediaCodec.BufferInfo out_bufferInfo) {
+        int discarded = 0;
+        while (mTargetUs >= 0 && mCodec.peekSample(out_bufferInfo)) {
+            if (out_bufferInfo.presentationTimeUs >= mTargetUs
+                    || (out_bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mTargetUs = -1;
+                break;
+            }
+            mCodec.popSample(false);
+            discarded++;
+        }
+        return discarded;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import java.util.Arrays;
+
+/**
+ * Metadata of codec output buffers, by buffer index, stored as preallocated parallel primitive
+ * arrays. Every index keeps its own offset, size, presentation time and flags, and reading or
+ * writing an entry never allocates.
+ *
+ * The table does no synchronization of its own; callers publish entries to other threads
+ * through whatever hands over the buffer index.
+ */
+final class OutputBufferTable {
+
+    private int[] mOffsets;
+    private int[] mSizes;
+    private long[] mPresentationTimesUs;
+    private int[] mFlags;
+
+    OutputBufferTable(int capacity) {
+        mOffsets = new int[capacity];
+        mSizes = new int[capacity];
+        mPresentationTimesUs = new long[capacity];
+        mFlags = new int[capacity];
+    }
+
+    /**
+     * Makes room for indices below {@code capacity}, keeping the existing entries. Call it on
+     * the thread that writes entries, before publishing the index.
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > mOffsets.length) {
+            // Doubling keeps a codec whose indices climb one at a time from copying each time.
+            int length = Math.max(capacity, 2 * mOffsets.length);
+            mOffsets = Arrays.copyOf(mOffsets, length);
+            mSizes = Arrays.copyOf(mSizes, length);
+            mPresentationTimesUs = Arrays.copyOf(mPresentationTimesUs, length);
+            mFlags = Arrays.copyOf(mFlags, length);
+        }
+    }
+
+    void set(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mOffsets[index] = offset;
+        mSizes[index] = size;
+        mPresentationTimesUs[index] = presentationTimeUs;
+        mFlags[index] = flags;
+    }
+
+    int getOffset(int index) {
+        return mOffsets[index];
+    }
+
+    int getSize(int index) {
+        return mSizes[index];
+    }
+
+    long getPresentationTimeUs(int index) {
+        return mPresentationTimesUs[index];
+    }
+
+    int getFlags(int index) {
+        return mFlags[index];
+    }
+}
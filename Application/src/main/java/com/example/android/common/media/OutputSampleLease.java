@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Temporary, reference counted ownership of a decoded codec output buffer.
+ *
+ * A lease gives direct, read-only access to the codec's memory: no copy is made. The codec
+ * buffer is handed back to the codec when the last reference is closed, so every lease must
+ * be closed, either explicitly or with try-with-resources. Holding on to leases holds on to
+ * codec buffers, and the codec stalls once all of its output buffers are leased.
+ *
+ * Use {@link #retain()} to pass the lease to another thread; each retain needs a matching
+ * {@link #close()}. Leases are recycled per buffer index and must not be used after the last
+ * close.
+ */
+public final class OutputSampleLease implements AutoCloseable {
+
+    /**
+     * The codec engine a lease's buffer goes back to.
+     */
+    interface Owner {
+        // Called, possibly on another thread, once the last reference is closed. The
+        // presentation time is passed along as the entry for index may be reused as soon as
+        // the buffer is back with the codec.
+        void releaseLeasedBuffer(int index, long presentationTimeUs, boolean render,
+                long renderTimestampNs);
+    }
+
+    private final Owner mOwner;
+    private final int mIndex;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private ByteBuffer mBuffer;
+    private boolean mRender;
+    private long mRenderTimestampNs;
+    private int mReferences;
+
+    OutputSampleLease(Owner owner, int index) {
+        mOwner = owner;
+        mIndex = index;
+    }
+
+    // Called by the owner before the lease is handed out.
+    synchronized void open(ByteBuffer buffer, boolean render, long renderTimestampNs,
+            int references) {
+        mBuffer = buffer;
+        mRender = render;
+        mRenderTimestampNs = renderTimestampNs;
+        mReferences = references;
+    }
+
+    // The owner fills this in before the lease is handed out.
+    MediaCodec.BufferInfo info() {
+        return mInfo;
+    }
+
+    /**
+     * @return Offset, size, presentation time and flags of the sample.
+     */
+    public MediaCodec.BufferInfo getInfo() {
+        return mInfo;
+    }
+
+    /**
+     * @return Read-only view of the decoded data, or null if the codec renders to a surface.
+     */
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    public long getPresentationTimeUs() {
+        return mInfo.presentationTimeUs;
+    }
+
+    /**
+     * Adds a reference, e.g. before handing the lease to another thread.
+     */
+    public synchronized OutputSampleLease retain() {
+        if (mReferences <= 0) {
+            throw new IllegalStateException("Lease already closed");
+        }
+        mReferences++;
+        return this;
+    }
+
+    /**
+     * Drops one reference. The buffer goes back to the codec when the last one is dropped.
+     */
+    @Override
+    public void close() {
+        long presentationTimeUs;
+        boolean render;
+        long renderTimestampNs;
+        synchronized (this) {
+            if (mReferences <= 0) {
+                throw new IllegalStateException("Lease already closed");
+            }
+            if (--mReferences > 0) {
+                return;
+            }
+            mBuffer = null;
+            presentationTimeUs = mInfo.presentationTimeUs;
+            render = mRender;
+            renderTimestampNs = mRenderTimestampNs;
+        }
+        mOwner.releaseLeasedBuffer(mIndex, presentationTimeUs, render, renderTimestampNs);
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-frame latency and throughput instrumentation for the decode pipeline.
+ *
+ * Each frame is identified by its presentation timestamp. The pipeline reports when the frame
+ * passes each {@code STAGE_*} point; the timestamps are kept in a preallocated ring of slots
+ * located by a hash of the presentation time, and every report is turned into latency samples
+ * right away. Two latencies are tracked for every stage: from the previous stage the frame went
+ * through, and from {@link #STAGE_QUEUE_IN}.
+ *
+ * All methods are thread-safe. Recording is lock-free and never allocates, so it can be called
+ * from codec callbacks and image listeners. Reads are best effort: they may miss records that
+ * happen concurrently. A frame whose slot is reused before it finishes is counted by
+ * {@link #getEvictedFrames()}; reports for frames that have no slot are counted by
+ * {@link #getUnmatchedRecords()}.
+ */
+public final class PipelineMetrics {
+
+    /** A sample was queued to the codec. */
+    public static final int STAGE_QUEUE_IN = 0;
+    /** The codec produced the decoded frame. */
+    public static final int STAGE_DEQUEUE_OUT = 1;
+    /** The output buffer was released to be rendered. */
+    public static final int STAGE_RENDER_RELEASE = 2;
+    /** The rendered frame reached an {@link android.media.ImageReader}. */
+    public static final int STAGE_IMAGE_AVAILABLE = 3;
+    /** The frame was converted, e.g. by {@link ImageUtil#imageToFrame}. */
+    public static final int STAGE_CONVERSION_DONE = 4;
+    public static final int STAGE_COUNT = 5;
+
+    /** Samples prefetched by the demuxer and not yet queued to the codec. */
+    public static final int QUEUE_DEMUX = 0;
+    /** Free codec input buffers. */
+    public static final int QUEUE_CODEC_INPUT = 1;
+    /** Decoded frames waiting to be released. */
+    public static final int QUEUE_CODEC_OUTPUT = 2;
+    public static final int QUEUE_COUNT = 3;
+
+    private static final String[] STAGE_NAMES = {
+            "queue-in", "dequeue-out", "render-release", "image-available", "conversion-done"};
+    private static final String[] QUEUE_NAMES = {"demux", "codec-input", "codec-output"};
+
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final long EMPTY = Long.MIN_VALUE;
+    // Number of consecutive slots a frame may occupy, starting at the one its presentation
+    // time hashes to.
+    private static final int MAX_PROBES = 8;
+
+    private final int mMask;
+    // Presentation time owning each slot, or EMPTY.
+    private final AtomicLongArray mKeys;
+    // STAGE_COUNT timestamps per slot, in System.nanoTime() units; 0 means not reached yet.
+    private final AtomicLongArray mTimes;
+
+    private final LatencyHistogram[] mStageLatency = new LatencyHistogram[STAGE_COUNT];
+    private final LatencyHistogram[] mTotalLatency = new LatencyHistogram[STAGE_COUNT];
+    private final AtomicLongArray mStageCounts = new AtomicLongArray(STAGE_COUNT);
+
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mEvicted = new AtomicLong();
+    private final AtomicLong mUnmatched = new AtomicLong();
+    private final AtomicLong mFirstRenderNs = new AtomicLong();
+    private final AtomicLong mLastRenderNs = new AtomicLong();
+
+    private final AtomicIntegerArray mQueueDepths = new AtomicIntegerArray(QUEUE_COUNT);
+    private final AtomicIntegerArray mMaxQueueDepths = new AtomicIntegerArray(QUEUE_COUNT);
+
+    public PipelineMetrics() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Number of frames that can be in flight at once, rounded up to a power of
+     * two. It should comfortably exceed the number of buffers in the pipeline.
+     */
+    public PipelineMetrics(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mMask = size - 1;
+        mKeys = new AtomicLongArray(size);
+        mTimes = new AtomicLongArray(size * STAGE_COUNT);
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mStageLatency[i] = new LatencyHistogram();
+            mTotalLatency[i] = new LatencyHistogram();
+        }
+        clearSlots();
+    }
+
+    /**
+     * Records that the frame with the given presentation time reached {@code stage} now.
+     */
+    public void record(int stage, long presentationTimeUs) {
+        record(stage, presentationTimeUs, System.nanoTime());
+    }
+
+    /**
+     * Records that the frame with the given presentation time reached {@code stage} at
+     * {@code timeNs}, a {@link System#nanoTime()} value.
+     */
+    public void record(int stage, long presentationTimeUs, long timeNs) {
+        if (stage < 0 || stage >= STAGE_COUNT) {
+            throw new IllegalArgumentException("Unknown stage " + stage);
+        }
+        mStageCounts.getAndIncrement(stage);
+        if (stage == STAGE_QUEUE_IN) {
+            claimSlot(presentationTimeUs, timeNs);
+            return;
+        }
+
+        int slot = findSlot(presentationTimeUs);
+        if (slot < 0) {
+            mUnmatched.getAndIncrement();
+            return;
+        }
+        int base = slot * STAGE_COUNT;
+        mTimes.set(base + stage, timeNs);
+        for (int i = stage - 1; i >= 0; i--) {
+            long previous = mTimes.get(base + i);
+            if (previous != 0) {
+                mStageLatency[stage].record(timeNs - previous);
+                break;
+            }
+        }
+        long queuedIn = mTimes.get(base);
+        if (queuedIn != 0) {
+            mTotalLatency[stage].record(timeNs - queuedIn);
+        }
+    }
+
+    /**
+     * Records the release of a decoded frame. Frames released without rendering count as
+     * dropped; rendered ones reach {@link #STAGE_RENDER_RELEASE} and count towards
+     * {@link #getFramesPerSecond()}.
+     */
+    public void recordRelease(long presentationTimeUs, boolean rendered) {
+        if (!rendered) {
+            mDropped.getAndIncrement();
+            return;
+        }
+        long now = System.nanoTime();
+        record(STAGE_RENDER_RELEASE, presentationTimeUs, now);
+        mFirstRenderNs.compareAndSet(0, now);
+        mLastRenderNs.set(now);
+    }
+
+    /**
+     * Updates the current depth of one of the {@code QUEUE_*} queues.
+     */
+    public void setQueueDepth(int queue, int depth) {
+        mQueueDepths.set(queue, depth);
+        int max;
+        while (depth > (max = mMaxQueueDepths.get(queue))) {
+            if (mMaxQueueDepths.compareAndSet(queue, max, depth)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @param stage One of the {@code STAGE_*} constants.
+     * @param percentile Between 0 and 100, e.g. 50, 95 or 99.
+     * @return Latency from the previous stage each frame went through, in nanoseconds.
+     */
+    public long getLatencyNs(int stage, double percentile) {
+        return mStageLatency[stage].percentile(percentile);
+    }
+
+    /**
+     * @return Latency from {@link #STAGE_QUEUE_IN} to {@code stage}, in nanoseconds.
+     */
+    public long getLatencySinceQueueInNs(int stage, double percentile) {
+        return mTotalLatency[stage].percentile(percentile);
+    }
+
+    /**
+     * @return Number of records of {@code stage}.
+     */
+    public long getStageCount(int stage) {
+        return mStageCounts.get(stage);
+    }
+
+    /**
+     * @return Rendered frames per second since the first rendered frame, or 0 if fewer than two
+     * were rendered.
+     */
+    public double getFramesPerSecond() {
+        long first = mFirstRenderNs.get();
+        long elapsed = mLastRenderNs.get() - first;
+        long frames = mStageCounts.get(STAGE_RENDER_RELEASE);
+        if (first == 0 || elapsed <= 0 || frames < 2) {
+            return 0;
+        }
+        return (frames - 1) * 1e9 / elapsed;
+    }
+
+    /**
+     * @return Number of frames released without being rendered.
+     */
+    public long getDroppedFrames() {
+        return mDropped.get();
+    }
+
+    /**
+     * @return Number of frames whose slot was reused before they were rendered.
+     */
+    public long getEvictedFrames() {
+        return mEvicted.get();
+    }
+
+    /**
+     * @return Number of records for frames that had not been queued, or had been evicted.
+     */
+    public long getUnmatchedRecords() {
+        return mUnmatched.get();
+    }
+
+    /**
+     * @return Samples queued to the codec that it hasn't produced output for yet.
+     */
+    public long getSamplesInCodec() {
+        return mStageCounts.get(STAGE_QUEUE_IN) - mStageCounts.get(STAGE_DEQUEUE_OUT);
+    }
+
+    public int getQueueDepth(int queue) {
+        return mQueueDepths.get(queue);
+    }
+
+    public int getMaxQueueDepth(int queue) {
+        return mMaxQueueDepths.get(queue);
+    }
+
+    /**
+     * Clears all recorded data.
+     */
+    public void reset() {
+        clearSlots();
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mStageLatency[i].reset();
+            mTotalLatency[i].reset();
+            mStageCounts.set(i, 0);
+        }
+        for (int i = 0; i < QUEUE_COUNT; i++) {
+            mQueueDepths.set(i, 0);
+            mMaxQueueDepths.set(i, 0);
+        }
+        mDropped.set(0);
+        mEvicted.set(0);
+        mUnmatched.set(0);
+        mFirstRenderNs.set(0);
+        mLastRenderNs.set(0);
+    }
+
+    /**
+     * @return A human readable report, for logging.
+     */
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "fps=%.1f dropped=%d evicted=%d in-codec=%d%n",
+                getFramesPerSecond(), getDroppedFrames(), getEvictedFrames(),
+                getSamplesInCodec()));
+        for (int stage = 1; stage < STAGE_COUNT; stage++) {
+            sb.append(String.format(Locale.US,
+                    "%s: n=%d p50/p95/p99 %.2f/%.2f/%.2f ms, since queue-in %.2f/%.2f/%.2f ms%n",
+                    STAGE_NAMES[stage], getStageCount(stage),
+                    getLatencyNs(stage, 50) / 1e6, getLatencyNs(stage, 95) / 1e6,
+                    getLatencyNs(stage, 99) / 1e6,
+                    getLatencySinceQueueInNs(stage, 50) / 1e6,
+                    getLatencySinceQueueInNs(stage, 95) / 1e6,
+                    getLatencySinceQueueInNs(stage, 99) / 1e6));
+        }
+        for (int queue = 0; queue < QUEUE_COUNT; queue++) {
+            sb.append(String.format(Locale.US, "queue %s: %d (max %d)%n",
+                    QUEUE_NAMES[queue], getQueueDepth(queue), getMaxQueueDepth(queue)));
+        }
+        return sb.toString();
+    }
+
+    private void clearSlots() {
+        for (int i = 0; i <= mMask; i++) {
+            mKeys.set(i, EMPTY);
+        }
+        for (int i = 0; i < mTimes.length(); i++) {
+            mTimes.set(i, 0);
+        }
+    }
+
+    // Takes over a slot for a newly queued frame: the frame's own slot if it is queued again,
+    // else an empty one, else the one queued longest ago among the candidates.
+    private void claimSlot(long presentationTimeUs, long timeNs) {
+        int home = homeSlotOf(presentationTimeUs);
+        int victim = -1;
+        long oldest = Long.MAX_VALUE;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = (home + probe) & mMask;
+            long key = mKeys.get(slot);
+            if (key == presentationTimeUs || key == EMPTY) {
+                victim = slot;
+                break;
+            }
+            long queuedIn = mTimes.get(slot * STAGE_COUNT);
+            if (queuedIn - oldest < 0 || victim < 0) {
+                victim = slot;
+                oldest = queuedIn;
+            }
+        }
+
+        int base = victim * STAGE_COUNT;
+        long key = mKeys.get(victim);
+        if (key != EMPTY && key != presentationTimeUs
+                && mTimes.get(base + STAGE_RENDER_RELEASE) == 0) {
+            mEvicted.getAndIncrement();
+        }
+        for (int i = 1; i < STAGE_COUNT; i++) {
+            mTimes.set(base + i, 0);
+        }
+        mTimes.set(base, timeNs);
+        mKeys.set(victim, presentationTimeUs);
+    }
+
+    private int findSlot(long presentationTimeUs) {
+        int home = homeSlotOf(presentationTimeUs);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = (home + probe) & mMask;
+            if (mKeys.get(slot) == presentationTimeUs) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int homeSlotOf(long presentationTimeUs) {
+        // Presentation times are usually multiples of the frame duration; mix the bits so that
+        // they spread over all slots.
+        long h = presentationTimeUs * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mMask;
+    }
+}
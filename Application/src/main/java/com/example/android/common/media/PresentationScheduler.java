@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+
+import java.util.Locale;
+
+/**
+ * Decides when decoded video frames are presented, against a {@link MasterClock}.
+ *
+ * Frames due within the render-ahead window are released with a render timestamp, so the
+ * compositor shows them on the right vsync instead of whenever they happen to be released.
+ * Frames that are later than the late threshold are dropped without rendering, which lets
+ * playback catch up with the clock instead of falling further behind. Every decision is
+ * recorded in the drift statistics: how far the clock was past (positive) or before (negative)
+ * the frame's presentation time.
+ *
+ * Not thread-safe; call it from the thread that drives the codec.
+ */
+public final class PresentationScheduler {
+
+    /** The frame isn't due yet. */
+    public static final int ACTION_WAIT = 0;
+    /** Render the frame at {@link #getRenderTimeNs()}. */
+    public static final int ACTION_RENDER = 1;
+    /** The frame is too late; release it without rendering. */
+    public static final int ACTION_DROP = 2;
+
+    // A bit more than one frame at 30 fps.
+    private static final long DEFAULT_LATE_THRESHOLD_US = 40000;
+    // Android composes a frame a vsync or two ahead of when it is shown, so releasing earlier
+    // than that gains nothing and only ties up the buffer.
+    private static final long DEFAULT_RENDER_AHEAD_US = 50000;
+    // Fraction of a vsync period by which to release ahead of the target vsync, so that the
+    // frame is latched for that vsync and not the following one.
+    private static final int VSYNC_OFFSET_PERCENT = 80;
+    // Number of rendered frames remembered for mapping render timestamps back to presentation
+    // times. Covers the frames in flight between release and image delivery with room to spare.
+    private static final int RENDER_HISTORY = 32;
+
+    private MasterClock mClock;
+    private long mLateThresholdUs = DEFAULT_LATE_THRESHOLD_US;
+    private long mRenderAheadUs = DEFAULT_RENDER_AHEAD_US;
+    private long mVsyncPeriodNs;
+    private long mLastVsyncNs;
+
+    private long mRenderTimeNs;
+
+    // Render timestamp and presentation time of the most recently rendered frames, in a ring
+    // indexed by mRenderHistoryNext. Guarded by mRenderHistoryTimesNs, since images arrive on
+    // another thread.
+    private final long[] mRenderHistoryTimesNs = new long[RENDER_HISTORY];
+    private final long[] mRenderHistoryPtsUs = new long[RENDER_HISTORY];
+    private int mRenderHistoryNext;
+    private int mRenderHistorySize;
+
+    private long mRendered;
+    private long mDropped;
+    // Running drift statistics, in microseconds (Welford's algorithm).
+    private long mDriftCount;
+    private double mDriftMean;
+    private double mDriftM2;
+    private long mDriftMin;
+    private long mDriftMax;
+
+    public PresentationScheduler(MasterClock clock) {
+        mClock = clock;
+    }
+
+    public MasterClock getClock() {
+        return mClock;
+    }
+
+    /**
+     * Presents against {@code clock} from now on, e.g. when the audio the previous clock
+     * followed went away.
+     */
+    public void setClock(MasterClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * @param lateThresholdUs Frames later than this are dropped.
+     */
+    public void setLateThresholdUs(long lateThresholdUs) {
+        mLateThresholdUs = lateThresholdUs;
+    }
+
+    /**
+     * @param renderAheadUs How long before its presentation time a frame is released.
+     */
+    public void setRenderAheadUs(long renderAheadUs) {
+        mRenderAheadUs = renderAheadUs;
+    }
+
+    /**
+     * Enables snapping render timestamps to the display's vsync grid.
+     *
+     * @param periodNs Duration of a display refresh, e.g. 1e9 / refresh rate.
+     */
+    public void setVsyncPeriodNs(long periodNs) {
+        mVsyncPeriodNs = periodNs;
+    }
+
+    /**
+     * Reports a vsync, e.g. from a {@link android.view.Choreographer.FrameCallback}, to align
+     * render timestamps with.
+     */
+    public void onVsync(long frameTimeNanos) {
+        mLastVsyncNs = frameTimeNanos;
+    }
+
+    /**
+     * Decides what to do with the frame presented at {@code presentationTimeUs}.
+     *
+     * @param nowNs The current {@link System#nanoTime()}.
+     * @return One of the {@code ACTION_*} constants.
+     */
+    public int schedule(long presentationTimeUs, long nowNs) {
+        long clockUs = mClock.getMediaTimeUs(nowNs);
+        if (clockUs == MasterClock.TIME_UNSET) {
+            return ACTION_WAIT;
+        }
+        long earlyUs = presentationTimeUs - clockUs;
+        if (earlyUs > mRenderAheadUs) {
+            return ACTION_WAIT;
+        }
+        recordDrift(-earlyUs);
+        if (-earlyUs > mLateThresholdUs) {
+            mDropped++;
+            return ACTION_DROP;
+        }
+
+        long renderTimeNs = nowNs + (long) (earlyUs * 1000 / mClock.getPlaybackRate());
+        if (mVsyncPeriodNs > 0 && mLastVsyncNs != 0) {
+            long vsyncs = Math.round((renderTimeNs - mLastVsyncNs) / (double) mVsyncPeriodNs);
+            renderTimeNs = mLastVsyncNs + vsyncs * mVsyncPeriodNs
+                    - mVsyncPeriodNs * VSYNC_OFFSET_PERCENT / 100;
+        }
+        mRenderTimeNs = Math.max(renderTimeNs, nowNs);
+        mRendered++;
+        return ACTION_RENDER;
+    }
+
+    /**
+     * @return The render timestamp chosen by the last {@link #schedule} that returned
+     * {@link #ACTION_RENDER}.
+     */
+    public long getRenderTimeNs() {
+        return mRenderTimeNs;
+    }
+
+    /**
+     * Releases every frame at the head of {@code engine} that is due, rendering or dropping it.
+     * Stops at the first frame that isn't due yet and at an empty end-of-stream buffer, which is
+     * left for the caller. Some decoders attach the end of stream to the last frame instead;
+     * that buffer is scheduled like any other frame and, once released, reported as an empty
+     * end-of-stream buffer.
+     *
+     * @param out_bufferInfo Receives the metadata of the buffer left at the head of the queue,
+     * or is cleared if there is none. The stream has ended once it has
+     * {@link MediaCodec#BUFFER_FLAG_END_OF_STREAM} set and a size of 0.
+     * @return The number of frames released.
+     */
+    public int drain(CodecEngine engine, MediaCodec.BufferInfo out_bufferInfo) {
+        int released = 0;
+        while (engine.peekSample(out_bufferInfo)) {
+            boolean endOfStream =
+                    (out_bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            if (endOfStream && out_bufferInfo.size <= 0) {
+                return released;
+            }
+            int action = schedule(out_bufferInfo.presentationTimeUs, System.nanoTime());
+            if (action == ACTION_WAIT) {
+                return released;
+            } else if (action == ACTION_DROP) {
+                engine.popSample(false);
+            } else {
+                engine.popSample(mRenderTimeNs);
+                rememberRender(mRenderTimeNs, out_bufferInfo.presentationTimeUs);
+            }
+            released++;
+            if (endOfStream) {
+                out_bufferInfo.set(0, 0, out_bufferInfo.presentationTimeUs,
+                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                return released;
+            }
+        }
+        out_bufferInfo.set(0, 0, 0, 0);
+        return released;
+    }
+
+    /**
+     * Maps the timestamp of a frame rendered by {@link #drain}, as reported by
+     * {@link android.media.Image#getTimestamp()} on the receiving surface, back to the frame's
+     * presentation time. The surface sees the render timestamp rather than the presentation
+     * time whenever a frame is released with one. Safe to call from any thread.
+     *
+     * @return The presentation time in microseconds, or {@link MasterClock#TIME_UNSET} if the
+     * frame is not among the recently rendered ones.
+     */
+    public long getPresentationTimeUs(long renderTimeNs) {
+        synchronized (mRenderHistoryTimesNs) {
+            // Newest first, in case snapping put two frames on the same vsync.
+            for (int i = 1; i <= mRenderHistorySize; i++) {
+                int slot = (mRenderHistoryNext - i + RENDER_HISTORY) % RENDER_HISTORY;
+                if (mRenderHistoryTimesNs[slot] == renderTimeNs) {
+                    return mRenderHistoryPtsUs[slot];
+                }
+            }
+        }
+        return MasterClock.TIME_UNSET;
+    }
+
+    private void rememberRender(long renderTimeNs, long presentationTimeUs) {
+        synchronized (mRenderHistoryTimesNs) {
+            mRenderHistoryTimesNs[mRenderHistoryNext] = renderTimeNs;
+            mRenderHistoryPtsUs[mRenderHistoryNext] = presentationTimeUs;
+            mRenderHistoryNext = (mRenderHistoryNext + 1) % RENDER_HISTORY;
+            mRenderHistorySize = Math.min(mRenderHistorySize + 1, RENDER_HISTORY);
+        }
+    }
+
+    public long getRenderedFrames() {
+        return mRendered;
+    }
+
+    public long getDroppedFrames() {
+        return mDropped;
+    }
+
+    /**
+     * @return Average lateness of released frames relative to the clock, in microseconds.
+     * Negative values mean frames were released ahead of time.
+     */
+    public double getMeanDriftUs() {
+        return mDriftMean;
+    }
+
+    /**
+     * @return Standard deviation of the drift, in microseconds.
+     */
+    public double getDriftStdDevUs() {
+        return mDriftCount > 1 ? Math.sqrt(mDriftM2 / (mDriftCount - 1)) : 0;
+    }
+
+    public long getMinDriftUs() {
+        return mDriftMin;
+    }
+
+    public long getMaxDriftUs() {
+        return mDriftMax;
+    }
+
+    public void resetStatistics() {
+        mRendered = 0;
+        mDropped = 0;
+        mDriftCount = 0;
+        mDriftMean = 0;
+        mDriftM2 = 0;
+        mDriftMin = 0;
+        mDriftMax = 0;
+    }
+
+    /**
+     * @return A human readable report, for logging.
+     */
+    public String summary() {
+        return String.format(Locale.US,
+                "rendered=%d dropped=%d drift mean=%.2f ms stddev=%.2f ms min=%.2f ms max=%.2f ms",
+                mRendered, mDropped, mDriftMean / 1000, getDriftStdDevUs() / 1000,
+                mDriftMin / 1000.0, mDriftMax / 1000.0);
+    }
+
+    private void recordDrift(long driftUs) {
+        if (mDriftCount == 0) {
+            mDriftMin = driftUs;
+            mDriftMax = driftUs;
+        } else {
+            mDriftMin = Math.min(mDriftMin, driftUs);
+            mDriftMax = Math.max(mDriftMax, driftUs);
+        }
+        mDriftCount++;
+        double delta = driftUs - mDriftMean;
+        mDriftMean += delta / mDriftCount;
+        mDriftM2 += delta * (driftUs - mDriftMean);
+    }
+}
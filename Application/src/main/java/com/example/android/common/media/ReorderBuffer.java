@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Merges frames decoded concurrently from consecutive segments back into presentation order.
+ *
+ * Frames of the oldest unfinished segment, the head, go straight through to the sink; frames
+ * of later segments are held until every segment before them is finished. Decoders output
+ * each segment in presentation order, and segments cover consecutive time ranges, so that is
+ * all the reordering needed. Held frames are sorted by presentation time anyway before they
+ * are released.
+ *
+ * At most {@code capacity} frames are held. Producers of later segments wait for room, which
+ * keeps them from running away from the head; the head itself never waits, so the merge
+ * always makes progress. Thread-safe. The sink is called with the buffer's lock held, one
+ * frame at a time.
+ *
+ * @param <T> The frame type.
+ */
+public final class ReorderBuffer<T> {
+
+    /**
+     * Receives the frames in presentation order.
+     */
+    public interface Sink<T> {
+        void onFrame(long presentationTimeUs, T frame);
+    }
+
+    private static final class Held<T> {
+        final long presentationTimeUs;
+        final T frame;
+
+        Held(long presentationTimeUs, T frame) {
+            this.presentationTimeUs = presentationTimeUs;
+            this.frame = frame;
+        }
+    }
+
+    private static final Comparator<Held<?>> BY_TIME = new Comparator<Held<?>>() {
+        @Override
+        public int compare(Held<?> a, Held<?> b) {
+            return a.presentationTimeUs < b.presentationTimeUs ? -1
+                    : (a.presentationTimeUs == b.presentationTimeUs ? 0 : 1);
+        }
+    };
+
+    private final Sink<T> mSink;
+    private final int mCapacity;
+
+    // Guarded by this.
+    private final List<List<Held<T>>> mHeld;
+    private final boolean[] mFinished;
+    private int mHead;
+    private int mHeldCount;
+    private boolean mAborted;
+    private long mPeakHeldCount;
+
+    /**
+     * @param segmentCount Number of segments to merge.
+     * @param capacity Most frames held at once.
+     */
+    public ReorderBuffer(int segmentCount, int capacity, Sink<T> sink) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mSink = sink;
+        mCapacity = capacity;
+        mFinished = new boolean[segmentCount];
+        mHeld = new ArrayList<>(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            mHeld.add(new ArrayList<Held<T>>());
+        }
+    }
+
+    /**
+     * Hands over a frame of {@code segment}, waiting for room if it has to be held.
+     *
+     * @return False if the merge was aborted; the frame then still belongs to the caller.
+     */
+    public synchronized boolean offer(int segment, long presentationTimeUs, T frame)
+            throws InterruptedException {
+        if (mFinished[segment]) {
+            throw new IllegalStateException("Segment " + segment + " is finished");
+        }
+        while (!mAborted && segment != mHead && mHeldCount >= mCapacity) {
+            wait();
+        }
+        if (mAborted) {
+            return false;
+        }
+        if (segment == mHead) {
+            mSink.onFrame(presentationTimeUs, frame);
+        } else {
+            mHeld.get(segment).add(new Held<>(presentationTimeUs, frame));
+            mHeldCount++;
+            mPeakHeldCount = Math.max(mPeakHeldCount, mHeldCount);
+        }
+        return true;
+    }
+
+    /**
+     * Marks every frame of {@code segment} as offered. Releases the frames held for the
+     * segments that become the head as a result.
+     */
+    public synchronized void finishSegment(int segment) {
+        mFinished[segment] = true;
+        while (mHead < mFinished.length && mFinished[mHead]) {
+            mHead++;
+            if (mHead < mFinished.length && !mAborted) {
+                List<Held<T>> held = mHeld.get(mHead);
+                Collections.sort(held, BY_TIME);
+                for (Held<T> h : held) {
+                    mSink.onFrame(h.presentationTimeUs, h.frame);
+                }
+                mHeldCount -= held.size();
+                held.clear();
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return True once every segment is finished.
+     */
+    public synchronized boolean isDone() {
+        return mHead == mFinished.length;
+    }
+
+    /**
+     * Stops the merge. Waiting and later offers return false.
+     *
+     * @return The frames that were held, for the caller to dispose of.
+     */
+    public synchronized List<T> abort() {
+        mAborted = true;
+        List<T> frames = new ArrayList<>(mHeldCount);
+        for (List<Held<T>> held : mHeld) {
+            for (Held<T> h : held) {
+                frames.add(h.frame);
+            }
+            held.clear();
+        }
+        mHeldCount = 0;
+        notifyAll();
+        return frames;
+    }
+
+    public synchronized boolean isAborted() {
+        return mAborted;
+    }
+
+    /**
+     * @return The most frames held at once so far.
+     */
+    public synchronized long getPeakHeldCount() {
+        return mPeakHeldCount;
+    }
+}
@@ -0,0 +1,525 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A compact index of every sample of a media file, kept in a sidecar file so that reopening
+ * the file doesn't require another pass over it.
+ *
+ * The index holds the formats of all tracks and, for each sample in decode order, its
+ * presentation time, size, extractor flags, track and offset. {@link MediaExtractor} doesn't
+ * expose where samples are stored in the file, so the offset is the position of the sample's
+ * data within its track's data stream, i.e. the sum of the sizes of the samples before it.
+ *
+ * The sidecar is written with NIO and read through a memory-mapped {@link FileChannel}; the
+ * per-sample arrays are views of the mapping and are never copied. It records the format
+ * version and the size and modification time of the media file, and is ignored as soon as
+ * any of them changes.
+ */
+public final class SampleIndex {
+
+    private static final String TAG = "SampleIndex";
+
+    private static final int MAGIC = 0x53494458; // "SIDX"
+    private static final int VERSION = 1;
+    // magic, version, media size, media mtime, track count, sample count, formats length
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 4;
+    // time, offset, size, flags, track
+    private static final int SAMPLE_SIZE = 8 + 8 + 4 + 4 + 1;
+
+    // Format keys worth persisting; MediaFormat can't enumerate its keys before API 29.
+    private static final String[] FORMAT_KEYS = {
+            MediaFormat.KEY_MIME, MediaFormat.KEY_LANGUAGE, MediaFormat.KEY_WIDTH,
+            MediaFormat.KEY_HEIGHT, MediaFormat.KEY_DURATION, MediaFormat.KEY_MAX_INPUT_SIZE,
+            MediaFormat.KEY_FRAME_RATE, MediaFormat.KEY_SAMPLE_RATE,
+            MediaFormat.KEY_CHANNEL_COUNT, MediaFormat.KEY_IS_ADTS, "rotation-degrees",
+            "profile", "level", "csd-0", "csd-1", "csd-2"};
+
+    private static final byte TYPE_INT = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_FLOAT = 3;
+    private static final byte TYPE_STRING = 4;
+    private static final byte TYPE_BUFFER = 5;
+
+    // Used when the track format doesn't advertise KEY_MAX_INPUT_SIZE.
+    private static final int DEFAULT_MAX_SAMPLE_SIZE = 1024 * 1024;
+
+    private final long mMediaSize;
+    private final long mMediaLastModified;
+    private final byte[] mFormats;
+    private final MediaFormat[] mTrackFormats;
+    private final int mSampleCount;
+    private final LongBuffer mPresentationTimesUs;
+    private final LongBuffer mOffsets;
+    private final IntBuffer mSizes;
+    private final IntBuffer mFlags;
+    private final ByteBuffer mTracks;
+
+    private SampleIndex(long mediaSize, long mediaLastModified, byte[] formats, int trackCount,
+            int sampleCount, LongBuffer presentationTimesUs, LongBuffer offsets, IntBuffer sizes,
+            IntBuffer flags, ByteBuffer tracks) throws IOException {
+        mMediaSize = mediaSize;
+        mMediaLastModified = mediaLastModified;
+        mFormats = formats;
+        mTrackFormats = readFormats(formats, trackCount);
+        mSampleCount = sampleCount;
+        mPresentationTimesUs = presentationTimesUs;
+        mOffsets = offsets;
+        mSizes = sizes;
+        mFlags = flags;
+        mTracks = tracks;
+    }
+
+    /**
+     * @return The default location of the sidecar index of {@code media}, next to it.
+     */
+    public static File sidecarFor(File media) {
+        return new File(media.getPath() + ".sidx");
+    }
+
+    /**
+     * Indexes every sample of the tracks selected on {@code extractor}, reading through the
+     * whole file, then rewinds the extractor.
+     *
+     * @param mediaSize Size of the media file, used to detect a stale sidecar.
+     * @param mediaLastModified Modification time of the media file, likewise.
+     */
+    public static SampleIndex build(MediaExtractor extractor, long mediaSize,
+            long mediaLastModified) throws IOException {
+        int trackCount = extractor.getTrackCount();
+        if (trackCount > Byte.MAX_VALUE) {
+            throw new IOException("Too many tracks: " + trackCount);
+        }
+        int maxInputSize = 0;
+        ByteArrayOutputStream formats = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(formats);
+        for (int i = 0; i < trackCount; i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            writeFormat(format, out);
+            if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                maxInputSize = Math.max(maxInputSize,
+                        format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+            }
+        }
+        out.flush();
+
+        int capacity = 1024;
+        long[] times = new long[capacity];
+        long[] offsets = new long[capacity];
+        int[] sizes = new int[capacity];
+        int[] flags = new int[capacity];
+        byte[] tracks = new byte[capacity];
+        long[] trackOffsets = new long[trackCount];
+        int count = 0;
+
+        // API 21 has no getSampleSize(), so the size is learned by reading the sample.
+        ByteBuffer scratch = ByteBuffer.allocateDirect(
+                maxInputSize > 0 ? maxInputSize : DEFAULT_MAX_SAMPLE_SIZE);
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        int track;
+        while ((track = extractor.getSampleTrackIndex()) >= 0) {
+            int size;
+            while (true) {
+                scratch.clear();
+                try {
+                    size = extractor.readSampleData(scratch, 0);
+                    break;
+                } catch (IllegalArgumentException e) {
+                    scratch = ByteBuffer.allocateDirect(scratch.capacity() * 2);
+                }
+            }
+            if (count == capacity) {
+                capacity *= 2;
+                times = Arrays.copyOf(times, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+                tracks = Arrays.copyOf(tracks, capacity);
+            }
+            times[count] = extractor.getSampleTime();
+            offsets[count] = trackOffsets[track];
+            sizes[count] = Math.max(size, 0);
+            flags[count] = extractor.getSampleFlags();
+            tracks[count] = (byte) track;
+            trackOffsets[track] += sizes[count];
+            count++;
+            extractor.advance();
+        }
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+
+        return new SampleIndex(mediaSize, mediaLastModified, formats.toByteArray(), trackCount,
+                count, LongBuffer.wrap(times, 0, count).slice(),
+                LongBuffer.wrap(offsets, 0, count).slice(), IntBuffer.wrap(sizes, 0, count).slice(),
+                IntBuffer.wrap(flags, 0, count).slice(), ByteBuffer.wrap(tracks, 0, count).slice());
+    }
+
+    /**
+     * Maps the sidecar {@code file}.
+     *
+     * @return The index, or null if the file doesn't exist, was written by another version or
+     * for a media file of another size or modification time, or is damaged.
+     */
+    public static SampleIndex open(File file, long mediaSize, long mediaLastModified) {
+        if (!file.isFile()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            // The mapping stays valid once the channel is closed.
+            ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (map.remaining() < HEADER_SIZE || map.getInt() != MAGIC
+                    || map.getInt() != VERSION) {
+                return null;
+            }
+            long size = map.getLong();
+            long lastModified = map.getLong();
+            if (size != mediaSize || lastModified != mediaLastModified) {
+                return null;
+            }
+            int trackCount = map.getInt();
+            int sampleCount = map.getInt();
+            int formatsLength = map.getInt();
+            // Every track takes at least a 2-byte entry count in the formats and every sample
+            // SAMPLE_SIZE bytes in the arrays. Bounding the counts by the file size keeps a
+            // damaged header from making us allocate more than the file holds.
+            if (trackCount < 0 || sampleCount < 0 || formatsLength < 0
+                    || formatsLength > map.remaining()
+                    || trackCount > formatsLength / 2
+                    || (long) sampleCount * SAMPLE_SIZE > map.remaining()) {
+                return null;
+            }
+            byte[] formats = new byte[formatsLength];
+            map.get(formats);
+
+            map.position(align8(map.position()));
+            LongBuffer times = slice(map, sampleCount * 8).asLongBuffer();
+            LongBuffer offsets = slice(map, sampleCount * 8).asLongBuffer();
+            IntBuffer sizes = slice(map, sampleCount * 4).asIntBuffer();
+            IntBuffer flags = slice(map, sampleCount * 4).asIntBuffer();
+            ByteBuffer tracks = slice(map, sampleCount);
+            return new SampleIndex(size, lastModified, formats, trackCount, sampleCount,
+                    times, offsets, sizes, flags, tracks);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Log.w(TAG, "Ignoring unreadable sample index " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the sidecar {@code file} if it is up to date, else builds the index from
+     * {@code extractor} and writes it there.
+     */
+    public static SampleIndex openOrBuild(File file, MediaExtractor extractor, long mediaSize,
+            long mediaLastModified) throws IOException {
+        SampleIndex index = open(file, mediaSize, mediaLastModified);
+        if (index == null) {
+            index = build(extractor, mediaSize, mediaLastModified);
+            try {
+                index.write(file);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to write sample index " + file, e);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Writes the index to {@code file}, replacing it atomically.
+     */
+    public void write(File file) throws IOException {
+        int arraysStart = align8(HEADER_SIZE + mFormats.length);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(arraysStart + mSampleCount * SAMPLE_SIZE);
+        buffer.putInt(MAGIC)
+                .putInt(VERSION)
+                .putLong(mMediaSize)
+                .putLong(mMediaLastModified)
+                .putInt(mTrackFormats.length)
+                .putInt(mSampleCount)
+                .putInt(mFormats.length)
+                .put(mFormats);
+        buffer.position(arraysStart);
+        buffer.asLongBuffer().put(mPresentationTimesUs.duplicate());
+        buffer.position(buffer.position() + mSampleCount * 8);
+        buffer.asLongBuffer().put(mOffsets.duplicate());
+        buffer.position(buffer.position() + mSampleCount * 8);
+        buffer.asIntBuffer().put(mSizes.duplicate());
+        buffer.position(buffer.position() + mSampleCount * 4);
+        buffer.asIntBuffer().put(mFlags.duplicate());
+        buffer.position(buffer.position() + mSampleCount * 4);
+        buffer.put(mTracks.duplicate());
+        buffer.flip();
+
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            channel.truncate(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to rename " + temp + " to " + file);
+        }
+    }
+
+    public int getTrackCount() {
+        return mTrackFormats.length;
+    }
+
+    /**
+     * @return The persisted subset of the track's format: mime type, dimensions, duration,
+     * sample rate and channels, codec specific data and the like. Callers may modify it.
+     */
+    public MediaFormat getTrackFormat(int track) {
+        try {
+            return readFormats(mFormats, mTrackFormats.length)[track];
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String getMimeType(int track) {
+        return mTrackFormats[track].getString(MediaFormat.KEY_MIME);
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    public long getPresentationTimeUs(int sample) {
+        return mPresentationTimesUs.get(sample);
+    }
+
+    /**
+     * @return Position of the sample's data within the data of its track.
+     */
+    public long getOffset(int sample) {
+        return mOffsets.get(sample);
+    }
+
+    public int getSize(int sample) {
+        return mSizes.get(sample);
+    }
+
+    /**
+     * @return The sample's {@link MediaExtractor#getSampleFlags() extractor flags}.
+     */
+    public int getFlags(int sample) {
+        return mFlags.get(sample);
+    }
+
+    public int getTrackIndex(int sample) {
+        return mTracks.get(sample);
+    }
+
+    /**
+     * @return Size of the largest sample of {@code track}, e.g. to size sample buffers
+     * exactly.
+     */
+    public int getMaxSampleSize(int track) {
+        int max = 0;
+        for (int i = 0; i < mSampleCount; i++) {
+            if (mTracks.get(i) == track) {
+                max = Math.max(max, mSizes.get(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return A {@link SeekIndex} over the sync samples of {@code track}.
+     */
+    public SeekIndex toSeekIndex(int track) {
+        long[] times = new long[16];
+        int count = 0;
+        long durationUs = 0;
+        for (int i = 0; i < mSampleCount; i++) {
+            if (mTracks.get(i) != track) {
+                continue;
+            }
+            long timeUs = mPresentationTimesUs.get(i);
+            durationUs = Math.max(durationUs, timeUs);
+            if ((mFlags.get(i) & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                if (count == times.length) {
+                    times = Arrays.copyOf(times, count * 2);
+                }
+                times[count++] = timeUs;
+            }
+        }
+        times = Arrays.copyOf(times, count);
+        Arrays.sort(times);
+        return SeekIndex.fromSyncTimes(times, durationUs);
+    }
+
+    private static void writeFormat(MediaFormat format, DataOutputStream out)
+            throws IOException {
+        int count = 0;
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream entryOut = new DataOutputStream(entries);
+        for (String key : FORMAT_KEYS) {
+            if (format.containsKey(key) && writeEntry(format, key, entryOut)) {
+                count++;
+            }
+        }
+        entryOut.flush();
+        out.writeShort(count);
+        entries.writeTo(out);
+    }
+
+    // MediaFormat has typed getters only, so try the types a key may have in turn.
+    private static boolean writeEntry(MediaFormat format, String key, DataOutputStream out)
+            throws IOException {
+        try {
+            int value = format.getInteger(key);
+            out.writeByte(TYPE_INT);
+            out.writeUTF(key);
+            out.writeInt(value);
+            return true;
+        } catch (ClassCastException | NullPointerException ignored) {
+        }
+        try {
+            long value = format.getLong(key);
+            out.writeByte(TYPE_LONG);
+            out.writeUTF(key);
+            out.writeLong(value);
+            return true;
+        } catch (ClassCastException | NullPointerException ignored) {
+        }
+        try {
+            float value = format.getFloat(key);
+            out.writeByte(TYPE_FLOAT);
+            out.writeUTF(key);
+            out.writeFloat(value);
+            return true;
+        } catch (ClassCastException | NullPointerException ignored) {
+        }
+        try {
+            String value = format.getString(key);
+            if (value != null) {
+                out.writeByte(TYPE_STRING);
+                out.writeUTF(key);
+                out.writeUTF(value);
+                return true;
+            }
+        } catch (ClassCastException ignored) {
+        }
+        try {
+            ByteBuffer value = format.getByteBuffer(key);
+            if (value != null) {
+                ByteBuffer data = value.duplicate();
+                data.clear();
+                byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                out.writeByte(TYPE_BUFFER);
+                out.writeUTF(key);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                return true;
+            }
+        } catch (ClassCastException ignored) {
+        }
+        return false;
+    }
+
+    private static MediaFormat[] readFormats(byte[] data, int trackCount) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        MediaFormat[] formats = new MediaFormat[trackCount];
+        for (int i = 0; i < trackCount; i++) {
+            MediaFormat format = new MediaFormat();
+            int count = in.readShort();
+            for (int j = 0; j < count; j++) {
+                byte type = in.readByte();
+                String key = in.readUTF();
+                switch (type) {
+                    case TYPE_INT:
+                        format.setInteger(key, in.readInt());
+                        break;
+                    case TYPE_LONG:
+                        format.setLong(key, in.readLong());
+                        break;
+                    case TYPE_FLOAT:
+                        format.setFloat(key, in.readFloat());
+                        break;
+                    case TYPE_STRING:
+                        format.setString(key, in.readUTF());
+                        break;
+                    case TYPE_BUFFER:
+                        // Checked up front so a damaged length can't make us allocate
+                        // gigabytes; the input is an in-memory array, so available() is exact.
+                        int length = in.readInt();
+                        if (length < 0 || length > in.available()) {
+                            throw new IOException("Format entry " + key + " is truncated");
+                        }
+                        byte[] bytes = new byte[length];
+                        in.readFully(bytes);
+                        format.setByteBuffer(key, ByteBuffer.wrap(bytes));
+                        break;
+                    default:
+                        throw new IOException("Unknown format entry type " + type);
+                }
+            }
+            formats[i] = format;
+        }
+        return formats;
+    }
+
+    private static ByteBuffer slice(ByteBuffer map, int length) {
+        if (length < 0 || length > map.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        ByteBuffer slice = map.slice();
+        slice.limit(length);
+        map.position(map.position() + length);
+        return slice;
+    }
+
+    private static int align8(int position) {
+        return (position + 7) & ~7;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import android.media.MediaExtractor;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The presentation times of the sync samples (key frames) of a track, for seeking.
+ *
+ * The index is built by one scan over the extractor's samples, which only reads sample
+ * headers, or derived from a {@link SampleIndex}, which is cached on disk. Lookups are binary
+ * searches over a sorted {@code long[]}. Instances are immutable.
+ */
+public final class SeekIndex {
+
+    private final long[] mSyncTimesUs;
+    private final long mDurationUs;
+
+    private SeekIndex(long[] syncTimesUs, long durationUs) {
+        mSyncTimesUs = syncTimesUs;
+        mDurationUs = durationUs;
+    }
+
+    /**
+     * Scans every sample of the selected tracks of {@code extractor}, then rewinds it to the
+     * start. Select a single track first.
+     */
+    public static SeekIndex build(MediaExtractor extractor) {
+        long[] times = new long[256];
+        int count = 0;
+        long durationUs = 0;
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        long timeUs;
+        while ((timeUs = extractor.getSampleTime()) >= 0) {
+            if ((extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                if (count == times.length) {
+                    times = Arrays.copyOf(times, count * 2);
+                }
+                times[count++] = timeUs;
+            }
+            durationUs = Math.max(durationUs, timeUs);
+            extractor.advance();
+        }
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+
+        times = Arrays.copyOf(times, count);
+        // Sync samples come in decode order, which matches presentation order for key frames
+        // of all common formats; sort anyway, the binary searches depend on it.
+        Arrays.sort(times);
+        return new SeekIndex(times, durationUs);
+    }
+
+    // Sync times must be sorted.
+    static SeekIndex fromSyncTimes(long[] syncTimesUs, long durationUs) {
+        return new SeekIndex(syncTimesUs, durationUs);
+    }
+
+    /**
+     * Splits the track into at most {@code segmentCount} segments that can be decoded
+     * independently, see {@link GopSplitter#split(long[], long, int)}.
+     */
+    public List<GopSplitter.Segment> split(int segmentCount) {
+        return GopSplitter.split(mSyncTimesUs, mDurationUs, segmentCount);
+    }
+
+    public int getSyncSampleCount() {
+        return mSyncTimesUs.length;
+    }
+
+    public long getSyncTimeUs(int i) {
+        return mSyncTimesUs[i];
+    }
+
+    /**
+     * @return Presentation time of the last sample.
+     */
+    public long getDurationUs() {
+        return mDurationUs;
+    }
+
+    /**
+     * @return The latest sync time at or before {@code timeUs}, or the first one if there is
+     * none, or -1 if the index is empty.
+     */
+    public long syncAtOrBefore(long timeUs) {
+        if (mSyncTimesUs.length == 0) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(mSyncTimesUs, timeUs);
+        if (i < 0) {
+            i = Math.max(-i - 2, 0);
+        }
+        return mSyncTimesUs[i];
+    }
+
+    /**
+     * @return The earliest sync time at or after {@code timeUs}, or the last one if there is
+     * none, or -1 if the index is empty.
+     */
+    public long syncAtOrAfter(long timeUs) {
+        if (mSyncTimesUs.length == 0) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(mSyncTimesUs, timeUs);
+        if (i < 0) {
+            i = Math.min(-i - 1, mSyncTimesUs.length - 1);
+        }
+        return mSyncTimesUs[i];
+    }
+
+    /**
+     * @return The sync time closest to {@code timeUs}, or -1 if the index is empty.
+     */
+    public long closestSync(long timeUs) {
+        long before = syncAtOrBefore(timeUs);
+        long after = syncAtOrAfter(timeUs);
+        return Math.abs(timeUs - before) <= Math.abs(after - timeUs) ? before : after;
+    }
+}
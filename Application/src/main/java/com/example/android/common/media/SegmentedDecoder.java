@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes a whole stream with several decoders at once, one segment per decoder at a time,
+ * for batch jobs such as exporting or fingerprinting every frame.
+ *
+ * The stream is cut into independent segments by {@link GopSplitter}. Worker threads take the
+ * segments in order and decode each with a {@link SegmentSource}, and a {@link ReorderBuffer}
+ * merges their frames back into presentation order for the caller's sink. Frames a source
+ * produces outside of its segment's time range are dropped here, so sources may decode a
+ * little past the end of a segment, as they must for open GOPs.
+ *
+ * Decoding real media is done by {@link ExtractorSegmentSource}; anything else implementing
+ * {@link SegmentSource}, including fakes, works the same way.
+ */
+public final class SegmentedDecoder {
+
+    /**
+     * Decodes one segment.
+     */
+    public interface SegmentSource {
+
+        /**
+         * Decodes {@code segment}, handing its frames to {@code output} in presentation order.
+         * Returns once all are handed over, or early if {@code output} returns false.
+         */
+        void decode(GopSplitter.Segment segment, FrameOutput output)
+                throws IOException, InterruptedException;
+    }
+
+    /**
+     * Takes the frames a {@link SegmentSource} decodes.
+     */
+    public interface FrameOutput {
+
+        /**
+         * Takes ownership of {@code frame}, possibly waiting for room.
+         *
+         * @return False if decoding was aborted; the source should stop. The frame has been
+         * released in that case.
+         */
+        boolean onFrame(long presentationTimeUs, FrameBuffer frame) throws InterruptedException;
+    }
+
+    private final SegmentSource mSource;
+    private final int mParallelism;
+    private final int mReorderCapacity;
+
+    private final AtomicLong mFramesDecoded = new AtomicLong();
+    private final AtomicLong mFramesDropped = new AtomicLong();
+    private final AtomicLong mSegmentTimeNs = new AtomicLong();
+    private volatile long mWallTimeNs;
+    private volatile long mPeakHeldFrames;
+
+    /**
+     * @param parallelism Number of segments decoded at once. Keep it at or below the number
+     * of decoder instances the device can run, see
+     * {@link CodecSelector#getMaxSupportedInstances}.
+     * @param reorderCapacity Most decoded frames held back for reordering.
+     */
+    public SegmentedDecoder(SegmentSource source, int parallelism, int reorderCapacity) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        mSource = source;
+        mParallelism = parallelism;
+        mReorderCapacity = reorderCapacity;
+    }
+
+    /**
+     * Decodes {@code segments} and hands every frame to {@code sink} in presentation order,
+     * on the worker threads, one at a time. The sink owns the frames it is given. Returns once
+     * everything has been decoded.
+     *
+     * @throws IOException If a segment failed to decode. Decoding stops at the first failure.
+     */
+    public void decode(final List<GopSplitter.Segment> segments,
+            ReorderBuffer.Sink<FrameBuffer> sink) throws IOException, InterruptedException {
+        final ReorderBuffer<FrameBuffer> reorder =
+                new ReorderBuffer<>(segments.size(), mReorderCapacity, sink);
+        final AtomicInteger next = new AtomicInteger();
+        final Exception[] failure = new Exception[1];
+        mFramesDecoded.set(0);
+        mFramesDropped.set(0);
+        mSegmentTimeNs.set(0);
+        long start = System.nanoTime();
+
+        Thread[] workers = new Thread[Math.min(mParallelism, segments.size())];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // Segments are taken in order, so the head of the merge is always being
+                    // decoded and the reorder buffer can't fill up with nothing to drain it.
+                    int index;
+                    while (!reorder.isAborted()
+                            && (index = next.getAndIncrement()) < segments.size()) {
+                        try {
+                            decodeSegment(segments.get(index), reorder);
+                        } catch (IOException | InterruptedException | RuntimeException e) {
+                            synchronized (failure) {
+                                if (failure[0] == null) {
+                                    failure[0] = e;
+                                }
+                            }
+                            for (FrameBuffer frame : reorder.abort()) {
+                                frame.release();
+                            }
+                            return;
+                        }
+                    }
+                }
+            }, "SegmentedDecoder-" + i);
+            workers[i].start();
+        }
+
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            for (FrameBuffer frame : reorder.abort()) {
+                frame.release();
+            }
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            throw e;
+        } finally {
+            mWallTimeNs = System.nanoTime() - start;
+            mPeakHeldFrames = reorder.getPeakHeldCount();
+        }
+
+        Exception e = failure[0];
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof InterruptedException) {
+            throw (InterruptedException) e;
+        } else if (e != null) {
+            throw (RuntimeException) e;
+        }
+    }
+
+    private void decodeSegment(final GopSplitter.Segment segment,
+            final ReorderBuffer<FrameBuffer> reorder) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        mSource.decode(segment, new FrameOutput() {
+            @Override
+            public boolean onFrame(long presentationTimeUs, FrameBuffer frame)
+                    throws InterruptedException {
+                if (!segment.contains(presentationTimeUs)) {
+                    // Leading frames of an open GOP, decoded by the previous segment, or
+                    // frames decoded past the end to complete this one.
+                    frame.release();
+                    mFramesDropped.incrementAndGet();
+                    return true;
+                }
+                if (!reorder.offer(segment.getIndex(), presentationTimeUs, frame)) {
+                    frame.release();
+                    return false;
+                }
+                mFramesDecoded.incrementAndGet();
+                return true;
+            }
+        });
+        reorder.finishSegment(segment.getIndex());
+        mSegmentTimeNs.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * @return Frames handed to the sink by the last {@link #decode}.
+     */
+    public long getFramesDecoded() {
+        return mFramesDecoded.get();
+    }
+
+    /**
+     * @return Frames decoded outside of their segment and dropped by the last {@link #decode}.
+     */
+    public long getFramesDropped() {
+        return mFramesDropped.get();
+    }
+
+    /**
+     * @return Segment decoding time summed over all workers, divided by the wall time: the
+     * speedup over decoding the segments one after the other.
+     */
+    public double getSpeedup() {
+        long wallTimeNs = mWallTimeNs;
+        return wallTimeNs == 0 ? 0 : (double) mSegmentTimeNs.get() / wallTimeNs;
+    }
+
+    /**
+     * @return A one line report, for logging.
+     */
+    public String summary() {
+        return String.format(Locale.US,
+                "frames=%d dropped=%d wall=%.1f ms speedup=%.2fx peak held=%d",
+                mFramesDecoded.get(), mFramesDropped.get(), mWallTimeNs / 1e6, getSpeedup(),
+                mPeakHeldFrames);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free queue of non-negative ints for exactly one producer thread and one consumer
+ * thread. Used to hand codec buffer indices from the codec callback thread to the thread
+ * feeding and draining the codec without boxing or locking.
+ *
+ * The queue is bounded, but the producer can grow it with {@link #ensureCapacity(int)}.
+ */
+final class SpscIntQueue {
+
+    /** Returned by {@link #peek()} and {@link #poll()} when the queue is empty. */
+    static final int EMPTY = -1;
+
+    // A ring of slots. Growing links in a larger segment that holds every position from its
+    // start on; positions before that stay in the segment they were written to.
+    private static final class Segment {
+        final int[] mElements;
+        final int mMask;
+        final long mStart;
+        // Linked by the producer before it publishes the first position stored in it.
+        volatile Segment mNext;
+
+        Segment(int capacity, long start) {
+            mElements = new int[capacity];
+            mMask = capacity - 1;
+            mStart = start;
+        }
+    }
+
+    // Only used by the producer.
+    private Segment mProducerSegment;
+    // Only used by the consumer.
+    private Segment mConsumerSegment;
+
+    // Next position to read, only advanced by the consumer.
+    private final AtomicLong mHead = new AtomicLong();
+    // Next position to write, only advanced by the producer.
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * @param capacity Maximum number of queued elements, rounded up to a power of two.
+     */
+    SpscIntQueue(int capacity) {
+        mProducerSegment = new Segment(roundUp(capacity), 0);
+        mConsumerSegment = mProducerSegment;
+    }
+
+    private static int roundUp(int capacity) {
+        return Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    }
+
+    /**
+     * Producer side. Grows the queue to hold at least {@code capacity} elements, rounded up to
+     * a power of two. Queued elements stay where they are and keep their order.
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity <= mProducerSegment.mElements.length) {
+            return;
+        }
+        Segment grown = new Segment(roundUp(capacity), mTail.get());
+        mProducerSegment.mNext = grown;
+        mProducerSegment = grown;
+    }
+
+    /**
+     * Producer side. Returns false if the queue is full.
+     */
+    boolean offer(int value) {
+        final long tail = mTail.get();
+        final Segment segment = mProducerSegment;
+        // Counts elements still held by earlier segments too, which only makes this stricter.
+        if (tail - mHead.get() >= segment.mElements.length) {
+            return false;
+        }
+        segment.mElements[(int) tail & segment.mMask] = value;
+        // Publishes the element (and anything written before the call) to the consumer.
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side. Returns the head element without removing it, or {@link #EMPTY}.
+     */
+    int peek() {
+        final long head = mHead.get();
+        if (head == mTail.get()) {
+            return EMPTY;
+        }
+        final Segment segment = consumerSegment(head);
+        return segment.mElements[(int) head & segment.mMask];
+    }
+
+    /**
+     * Consumer side. Removes and returns the head element, or {@link #EMPTY}.
+     */
+    int poll() {
+        final long head = mHead.get();
+        if (head == mTail.get()) {
+            return EMPTY;
+        }
+        final Segment segment = consumerSegment(head);
+        int value = segment.mElements[(int) head & segment.mMask];
+        mHead.lazySet(head + 1);
+        return value;
+    }
+
+    // Moves the consumer on to the segment holding the published position head.
+    private Segment consumerSegment(long head) {
+        Segment segment = mConsumerSegment;
+        Segment next;
+        while ((next = segment.mNext) != null && head >= next.mStart) {
+            segment = next;
+        }
+        mConsumerSegment = segment;
+        return segment;
+    }
+
+    boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+    int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    /**
+     * Producer side.
+     */
+    int capacity() {
+        return mProducerSegment.mElements.length;
+    }
+
+    /**
+     * Consumer side. Drops every queued element.
+     */
+    void clear() {
+        mHead.lazySet(mTail.get());
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+/**
+ * A {@link MasterClock} driven by {@link System#nanoTime()}, for video without audio. It starts
+ * at a given media time and then advances at the playback rate.
+ */
+public final class SystemMasterClock implements MasterClock {
+
+    // The clock read mAnchorMediaTimeUs at mAnchorSystemTimeNs. Guarded by this.
+    private long mAnchorMediaTimeUs = TIME_UNSET;
+    private long mAnchorSystemTimeNs;
+    private float mRate = 1f;
+    private boolean mRunning;
+
+    /**
+     * Starts, or restarts, the clock at {@code mediaTimeUs}.
+     */
+    public synchronized void start(long mediaTimeUs) {
+        mAnchorMediaTimeUs = mediaTimeUs;
+        mAnchorSystemTimeNs = System.nanoTime();
+        mRunning = true;
+    }
+
+    /**
+     * Freezes the clock at its current time.
+     */
+    public synchronized void pause() {
+        if (mRunning) {
+            long now = System.nanoTime();
+            mAnchorMediaTimeUs = mediaTimeAt(now);
+            mAnchorSystemTimeNs = now;
+            mRunning = false;
+        }
+    }
+
+    /**
+     * Lets a paused clock run again from where it was paused.
+     */
+    public synchronized void resume() {
+        if (!mRunning && mAnchorMediaTimeUs != TIME_UNSET) {
+            mAnchorSystemTimeNs = System.nanoTime();
+            mRunning = true;
+        }
+    }
+
+    /**
+     * @return True once started, unless paused.
+     */
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    public synchronized void setPlaybackRate(float rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Playback rate must be positive: " + rate);
+        }
+        long now = System.nanoTime();
+        if (mRunning) {
+            mAnchorMediaTimeUs = mediaTimeAt(now);
+            mAnchorSystemTimeNs = now;
+        }
+        mRate = rate;
+    }
+
+    @Override
+    public synchronized float getPlaybackRate() {
+        return mRate;
+    }
+
+    @Override
+    public synchronized long getMediaTimeUs(long systemTimeNs) {
+        if (mAnchorMediaTimeUs == TIME_UNSET) {
+            return TIME_UNSET;
+        }
+        return mRunning ? mediaTimeAt(systemTimeNs) : mAnchorMediaTimeUs;
+    }
+
+    private long mediaTimeAt(long systemTimeNs) {
+        return mAnchorMediaTimeUs + (long) ((systemTimeNs - mAnchorSystemTimeNs) / 1000 * mRate);
+    }
+}
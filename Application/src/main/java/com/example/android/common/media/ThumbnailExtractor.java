@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Produces evenly spaced thumbnails of a video, for poster frames and scrub strips, by
+ * decoding sync samples only.
+ *
+ * Each thumbnail time is mapped to the closest sync sample and only those samples are queued,
+ * back to back, to a single decoder. Sync samples don't depend on anything else, so the work
+ * grows with the number of thumbnails, not with the length of the video. Thumbnails that land
+ * on the same sync sample are produced once.
+ *
+ * Frames are either downscaled into NV21 buffers or rendered to a {@link Surface}, typically
+ * an {@link android.media.ImageReader} of the thumbnail size, which leaves the scaling to the
+ * hardware.
+ */
+public class ThumbnailExtractor {
+
+    // Time the thread sleeps when the codec has nothing to take or give.
+    private static final long IDLE_WAIT_NS = 1000000;
+
+    /**
+     * A decoded thumbnail. Release its frame when done with it.
+     */
+    public static final class Thumbnail {
+        private final long mPresentationTimeUs;
+        private final FrameBuffer mFrame;
+        private final int mWidth;
+        private final int mHeight;
+
+        Thumbnail(long presentationTimeUs, FrameBuffer frame, int width, int height) {
+            mPresentationTimeUs = presentationTimeUs;
+            mFrame = frame;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        public long getPresentationTimeUs() {
+            return mPresentationTimeUs;
+        }
+
+        /**
+         * @return The NV21 frame, or null if the thumbnail was rendered to a surface.
+         */
+        public FrameBuffer getFrame() {
+            return mFrame;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+    }
+
+    private final MediaExtractor mExtractor;
+    private final int mTrack;
+    private final SeekIndex mSeekIndex;
+    private int mFramesDecoded;
+
+    /**
+     * @param extractor Extractor on the media. The extractor is used exclusively by the
+     * thumbnail extractor from here on; its track selection and position are changed.
+     * @param track Index of the video track.
+     * @param seekIndex Sync samples of the track, or null to find them with extractor seeks.
+     */
+    public ThumbnailExtractor(MediaExtractor extractor, int track, SeekIndex seekIndex) {
+        mExtractor = extractor;
+        mTrack = track;
+        mSeekIndex = seekIndex;
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            if (i == track) {
+                extractor.selectTrack(i);
+            } else {
+                extractor.unselectTrack(i);
+            }
+        }
+    }
+
+    /**
+     * Decodes {@code count} evenly spaced thumbnails, downscaled to {@code width} x
+     * {@code height} NV21 frames from {@code pool}. Frames are never upscaled: a dimension
+     * larger than the video's is clamped to it, and {@link Thumbnail#getWidth()} and
+     * {@link Thumbnail#getHeight()} report the size actually produced.
+     *
+     * @return The thumbnails in presentation order; fewer than {@code count} if some share
+     * a sync sample.
+     */
+    public List<Thumbnail> extract(int count, int width, int height, FrameBufferPool pool)
+            throws IOException {
+        MediaFormat format = mExtractor.getTrackFormat(mTrack);
+        MediaCodecWrapper codec = MediaCodecWrapper.fromVideoFormatHeadless(format);
+        if (codec == null) {
+            throw new IOException("Track " + mTrack + " is not a video track");
+        }
+        try {
+            return decode(codec, syncTimes(format, count), width, height, pool);
+        } finally {
+            codec.stopAndRelease();
+        }
+    }
+
+    /**
+     * Decodes {@code count} evenly spaced thumbnails and renders each to {@code surface},
+     * scaled to fit it.
+     *
+     * @return The thumbnails in the order they were rendered, without frames.
+     */
+    public List<Thumbnail> extract(int count, Surface surface) throws IOException {
+        MediaFormat format = mExtractor.getTrackFormat(mTrack);
+        MediaCodecWrapper codec = MediaCodecWrapper.fromVideoFormat(format, surface);
+        if (codec == null) {
+            throw new IOException("Track " + mTrack + " is not a video track");
+        }
+        try {
+            return decode(codec, syncTimes(format, count), 0, 0, null);
+        } finally {
+            codec.stopAndRelease();
+        }
+    }
+
+    /**
+     * @return Number of frames decoded by the last {@code extract} call.
+     */
+    public int getFramesDecoded() {
+        return mFramesDecoded;
+    }
+
+    // Times of the distinct sync samples closest to count evenly spaced points, ascending.
+    private long[] syncTimes(MediaFormat format, int count) {
+        long durationUs = format.containsKey(MediaFormat.KEY_DURATION)
+                ? format.getLong(MediaFormat.KEY_DURATION) : 0;
+        if (durationUs <= 0 && mSeekIndex != null) {
+            durationUs = mSeekIndex.getDurationUs();
+        }
+        long[] times = new long[count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            // The middle of each of count equal spans, which avoids the often black very
+            // first frame.
+            long targetUs = durationUs * (2 * i + 1) / (2 * count);
+            long syncUs;
+            if (mSeekIndex != null) {
+                syncUs = mSeekIndex.closestSync(targetUs);
+            } else {
+                mExtractor.seekTo(targetUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                syncUs = mExtractor.getSampleTime();
+            }
+            if (syncUs >= 0 && (n == 0 || syncUs > times[n - 1])) {
+                times[n++] = syncUs;
+            }
+        }
+        long[] result = new long[n];
+        System.arraycopy(times, 0, result, 0, n);
+        return result;
+    }
+
+    private List<Thumbnail> decode(MediaCodecWrapper codec, long[] syncTimesUs, int width,
+            int height, FrameBufferPool pool) throws IOException {
+        List<Thumbnail> thumbnails = new ArrayList<>(syncTimesUs.length);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        int next = 0;
+        boolean inputDone = false;
+        mFramesDecoded = 0;
+        try {
+            while (true) {
+                boolean progress = false;
+
+                // Each decoded sync sample comes out once the decoder has seen the next one,
+                // or the end of stream.
+                while (codec.peekSample(info)) {
+                    boolean endOfStream =
+                            (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                    if (!endOfStream || info.size > 0) {
+                        thumbnails.add(pool != null
+                                ? copy(codec.peekOutputImage(), info, width, height, pool)
+                                : new Thumbnail(info.presentationTimeUs, null, 0, 0));
+                        mFramesDecoded++;
+                    }
+                    codec.popSample(pool == null);
+                    if (endOfStream) {
+                        return thumbnails;
+                    }
+                    progress = true;
+                }
+
+                if (!inputDone) {
+                    if (next == syncTimesUs.length) {
+                        inputDone = codec.writeSample(empty, null, 0,
+                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    } else {
+                        long syncUs = syncTimesUs[next];
+                        if (mExtractor.getSampleTime() != syncUs) {
+                            mExtractor.seekTo(syncUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                        }
+                        if (codec.writeSample(mExtractor, false, mExtractor.getSampleTime(),
+                                MediaCodec.BUFFER_FLAG_KEY_FRAME)) {
+                            next++;
+                            progress = true;
+                        }
+                    }
+                    progress |= inputDone;
+                }
+
+                if (!progress) {
+                    LockSupport.parkNanos(this, IDLE_WAIT_NS);
+                }
+            }
+        } catch (MediaCodecWrapper.WriteException e) {
+            releaseAll(thumbnails);
+            throw new IOException("Unable to queue end of stream", e);
+        } catch (RuntimeException e) {
+            releaseAll(thumbnails);
+            throw e;
+        }
+    }
+
+    private static void releaseAll(List<Thumbnail> thumbnails) {
+        for (Thumbnail thumbnail : thumbnails) {
+            if (thumbnail.mFrame != null) {
+                thumbnail.mFrame.release();
+            }
+        }
+    }
+
+    private static Thumbnail copy(Image image, MediaCodec.BufferInfo info, int width,
+            int height, FrameBufferPool pool) {
+        if (image == null) {
+            throw new IllegalStateException("Decoder output can't be read as an Image");
+        }
+        try {
+            // The converter only scales down.
+            width = Math.min(width, image.getWidth());
+            height = Math.min(height, image.getHeight());
+            FrameBuffer frame = ImageUtil.imageToNv21Frame(image, width, height, pool);
+            return new Thumbnail(info.presentationTimeUs, frame, width, height);
+        } finally {
+            image.close();
+        }
+    }
+}
@@ -0,0 +1,599 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.TreeSet;
+
+/**
+ * Plays a video track at 1/4x to 16x, forward or in reverse, showing at most one frame per
+ * display refresh.
+ *
+ * How frames are decoded depends on the rate. Up to 2x forward, every sample is decoded in
+ * order. Up to 4x forward, H.264 samples that no other frame references are left out before
+ * they reach the codec. Above 4x in either direction only sync samples are decoded, spaced so
+ * that each one stays on screen for at least a refresh. In reverse up to 4x, each GOP is
+ * decoded once, front to back, into a {@link FrameCache} and shown from the back, while the
+ * GOP before it is decoded.
+ *
+ * Decoded frames stay in the cache whatever the mode, so changing the rate or direction reuses
+ * what is already there. For reverse play the cache should hold two GOPs of frames; with less,
+ * GOPs are decoded again, which {@link #getGopRedecodes()} counts.
+ *
+ * Drive the player with {@link #tick(long)} on every display refresh, e.g. from a
+ * {@link android.animation.TimeAnimator}. Decoding runs on that thread within a time budget.
+ * Not thread-safe.
+ */
+public class TrickPlayer {
+
+    public static final float MIN_RATE = 0.25f;
+    public static final float MAX_RATE = 16f;
+
+    // Above these rates, non-reference frames are skipped and then only sync samples are
+    // decoded.
+    private static final float SKIP_NON_REFERENCE_RATE = 2f;
+    private static final float SYNC_ONLY_RATE = 4f;
+
+    // Frames are decoded ahead of the position by this much playback time, in real time.
+    private static final long LOOKAHEAD_US = 500000;
+
+    private static final long DEFAULT_DECODE_BUDGET_NS = 8000000;
+    private static final long DEFAULT_REFRESH_PERIOD_US = 16667;
+
+    private static final int MODE_NONE = -1;
+    private static final int MODE_SEQUENTIAL = 0;
+    private static final int MODE_SYNC_ONLY = 1;
+    private static final int MODE_REVERSE = 2;
+
+    /**
+     * Receives the frames to show.
+     */
+    public interface Display {
+        /**
+         * @param frame The frame in NV21. It belongs to the player and is only valid during
+         * the call.
+         */
+        void show(long presentationTimeUs, FrameBuffer frame, int width, int height);
+    }
+
+    private final MediaExtractor mExtractor;
+    private final SeekIndex mSeekIndex;
+    private final MediaCodecWrapper mCodec;
+    private final FrameBufferPool mPool;
+    private final FrameCache mCache;
+    private final Display mDisplay;
+    private final boolean mAvc;
+    private final long mDurationUs;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private final ByteBuffer mEmpty = ByteBuffer.allocate(0);
+    private ByteBuffer mSample;
+
+    private float mRate = 1f;
+    private long mPositionUs;
+    private long mLastTickNs;
+    private long mRefreshPeriodUs = DEFAULT_REFRESH_PERIOD_US;
+    private long mDecodeBudgetNs = DEFAULT_DECODE_BUDGET_NS;
+    private boolean mEnded;
+    // Presentation time of the frame on screen, or -1.
+    private long mShownUs = -1;
+
+    // Decoding state, reset whenever the mode or direction changes.
+    private int mMode = MODE_NONE;
+    private boolean mForward;
+    private boolean mPositioned;
+    private boolean mInputDone;
+    private FrameCache.Entry mPrevious;
+    // Sequential: the last sync sample queued. Sync only: the next one to queue, or -1.
+    private long mFedSyncUs;
+    private long mNextSyncUs;
+    // Reverse: the GOP being decoded, or -1, and the number of its samples queued so far.
+    private long mGopUs;
+    private int mGopSamples;
+    // Reverse: GOPs whose frames are all in the cache, by sync time.
+    private final TreeSet<Long> mDecodedGops = new TreeSet<>();
+
+    private long mFramesDecoded;
+    private long mFramesSkipped;
+    private long mFramesShown;
+    private long mGopsDecoded;
+    private long mGopRedecodes;
+
+    /**
+     * @param extractor Extractor on the media. The extractor is used exclusively by the
+     * player from here on; its track selection and position are changed.
+     * @param track Index of the video track.
+     * @param seekIndex Sync samples of the track.
+     * @param pool Pool for the cached frames.
+     * @param cacheBytes Budget of the frame cache.
+     * @param display Receives the frames to show, from {@link #tick(long)}.
+     */
+    public TrickPlayer(MediaExtractor extractor, int track, SeekIndex seekIndex,
+            FrameBufferPool pool, long cacheBytes, Display display) throws IOException {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            if (i == track) {
+                extractor.selectTrack(i);
+            } else {
+                extractor.unselectTrack(i);
+            }
+        }
+        MediaFormat format = extractor.getTrackFormat(track);
+        mCodec = MediaCodecWrapper.fromVideoFormatHeadless(format);
+        if (mCodec == null) {
+            throw new IOException("Track " + track + " is not a video track");
+        }
+        mExtractor = extractor;
+        mSeekIndex = seekIndex;
+        mPool = pool;
+        mCache = new FrameCache(cacheBytes);
+        mDisplay = display;
+        mAvc = "video/avc".equals(format.getString(MediaFormat.KEY_MIME));
+        mDurationUs = seekIndex.getDurationUs();
+        mSample = ByteBuffer.allocateDirect(DemuxStage.maxSampleSize(format));
+    }
+
+    /**
+     * @param rate Playback rate, negative for reverse. Its magnitude must be between
+     * {@link #MIN_RATE} and {@link #MAX_RATE}.
+     */
+    public void setRate(float rate) {
+        float speed = Math.abs(rate);
+        if (speed < MIN_RATE || speed > MAX_RATE) {
+            throw new IllegalArgumentException("Unsupported playback rate: " + rate);
+        }
+        mRate = rate;
+        mEnded = false;
+    }
+
+    public float getRate() {
+        return mRate;
+    }
+
+    /**
+     * Moves playback to {@code positionUs}. Cached frames are kept.
+     */
+    public void seekTo(long positionUs) {
+        mPositionUs = Math.max(0, Math.min(positionUs, mDurationUs));
+        mEnded = false;
+        mShownUs = -1;
+        mMode = MODE_NONE;
+    }
+
+    public long getPositionUs() {
+        return mPositionUs;
+    }
+
+    /**
+     * @return True once playback has reached the end, or the start in reverse. Changing the
+     * rate or seeking lets it go on.
+     */
+    public boolean isEnded() {
+        return mEnded;
+    }
+
+    /**
+     * Sets the time {@link #tick(long)} may spend decoding.
+     */
+    public void setDecodeBudgetNs(long budgetNs) {
+        mDecodeBudgetNs = budgetNs;
+    }
+
+    /**
+     * Advances the position by the time since the last tick, decodes what is needed next and
+     * shows the frame for the new position if it isn't on screen already.
+     *
+     * @param nowNs The current {@link System#nanoTime()}, or the frame time of the refresh.
+     * @return False once playback has ended.
+     */
+    public boolean tick(long nowNs) throws IOException {
+        if (mLastTickNs != 0) {
+            long elapsedUs = (nowNs - mLastTickNs) / 1000;
+            if (elapsedUs > 0) {
+                // Smoothed, so a single janky refresh doesn't change the sync sample spacing.
+                mRefreshPeriodUs = (3 * mRefreshPeriodUs + elapsedUs) / 4;
+                advance(elapsedUs);
+            }
+        }
+        mLastTickNs = nowNs;
+
+        int mode = Math.abs(mRate) > SYNC_ONLY_RATE ? MODE_SYNC_ONLY
+                : mRate > 0 ? MODE_SEQUENTIAL : MODE_REVERSE;
+        if (mode != mMode || mForward != mRate > 0) {
+            reset(mode);
+        }
+        decode(System.nanoTime() + mDecodeBudgetNs);
+        present();
+        return !mEnded;
+    }
+
+    public long getFramesDecoded() {
+        return mFramesDecoded;
+    }
+
+    /**
+     * @return Number of non-reference samples left out during fast forward.
+     */
+    public long getFramesSkipped() {
+        return mFramesSkipped;
+    }
+
+    public long getFramesShown() {
+        return mFramesShown;
+    }
+
+    /**
+     * @return Number of GOPs decoded for reverse play.
+     */
+    public long getGopsDecoded() {
+        return mGopsDecoded;
+    }
+
+    /**
+     * @return Number of times a GOP had to be decoded again in reverse play because its frames
+     * had been evicted before they were shown. Non-zero means the cache is too small.
+     */
+    public long getGopRedecodes() {
+        return mGopRedecodes;
+    }
+
+    /**
+     * @return A one line report, for logging.
+     */
+    public String summary() {
+        return String.format(Locale.US,
+                "rate=%.2fx decoded=%d skipped=%d shown=%d gops=%d redecodes=%d cached=%d "
+                        + "(%d KB) evictions=%d",
+                mRate, mFramesDecoded, mFramesSkipped, mFramesShown, mGopsDecoded,
+                mGopRedecodes, mCache.size(), mCache.getBytes() / 1024, mCache.getEvictions());
+    }
+
+    /**
+     * Releases the codec and the cached frames. The extractor stays with the caller.
+     */
+    public void release() {
+        mCodec.stopAndRelease();
+        mCache.clear();
+        mDecodedGops.clear();
+    }
+
+    private void advance(long elapsedUs) {
+        if (mEnded) {
+            return;
+        }
+        long positionUs = mPositionUs + (long) (elapsedUs * mRate);
+        if (positionUs <= 0 && mRate < 0) {
+            positionUs = 0;
+            mEnded = true;
+        } else if (positionUs >= mDurationUs && mRate > 0) {
+            positionUs = mDurationUs;
+            mEnded = true;
+        }
+        mPositionUs = positionUs;
+    }
+
+    private void reset(int mode) {
+        mCodec.flush();
+        mMode = mode;
+        mForward = mRate > 0;
+        mPositioned = false;
+        mInputDone = false;
+        mPrevious = null;
+        mFedSyncUs = Long.MIN_VALUE;
+        mNextSyncUs = -1;
+        mGopUs = -1;
+        mGopSamples = 0;
+        // Frames may have been evicted in the meantime, so GOPs are decoded again rather than
+        // trusted to be complete.
+        mDecodedGops.clear();
+    }
+
+    private void decode(long deadlineNs) throws IOException {
+        try {
+            while (true) {
+                boolean progress = drain();
+                if (mMode == MODE_SEQUENTIAL) {
+                    progress |= feedSequential();
+                } else if (mMode == MODE_SYNC_ONLY) {
+                    progress |= feedSyncSamples();
+                } else {
+                    progress |= feedReverse();
+                }
+                // Whatever the codec isn't ready for yet is picked up on the next tick.
+                if (!progress || System.nanoTime() >= deadlineNs) {
+                    return;
+                }
+            }
+        } catch (MediaCodecWrapper.WriteException e) {
+            throw new IOException("Unable to queue sample", e);
+        }
+    }
+
+    // Moves every decoded frame into the cache.
+    private boolean drain() {
+        boolean progress = false;
+        while (mCodec.peekSample(mInfo)) {
+            boolean endOfStream = (mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            long presentationTimeUs = mInfo.presentationTimeUs;
+            // In reverse, leading frames of an open GOP belong to the GOP before and can't be
+            // decoded correctly without it.
+            boolean keep = mMode != MODE_REVERSE || presentationTimeUs >= mGopUs;
+            if ((!endOfStream || mInfo.size > 0) && keep) {
+                // Sync samples are decoded out of display order, so they aren't linked.
+                FrameCache.Entry previous = mMode == MODE_SYNC_ONLY ? null : mPrevious;
+                mPrevious = ImageUtil.cacheNv21Frame(mCodec.peekOutputImage(),
+                        presentationTimeUs, mPool, mCache, previous);
+                mFramesDecoded++;
+            }
+            mCodec.popSample(false);
+            progress = true;
+            if (endOfStream) {
+                if (mMode == MODE_REVERSE && mGopUs >= 0) {
+                    mDecodedGops.add(mGopUs);
+                    mGopsDecoded++;
+                    mCodec.flush();
+                    mGopUs = -1;
+                    mInputDone = false;
+                    mPrevious = null;
+                }
+                break;
+            }
+        }
+        return progress;
+    }
+
+    // Queues samples in decode order up to the lookahead, skipping non-reference frames when
+    // going fast. Jumps ahead if decoding has fallen a GOP behind.
+    private boolean feedSequential() throws MediaCodecWrapper.WriteException {
+        long syncUs = Math.max(mSeekIndex.syncAtOrBefore(mPositionUs), 0);
+        if (!mPositioned || (!mInputDone && mFedSyncUs < syncUs
+                && mExtractor.getSampleTime() >= 0 && mExtractor.getSampleTime() != syncUs)) {
+            if (mPositioned) {
+                mCodec.flush();
+                mPrevious = null;
+            }
+            mExtractor.seekTo(syncUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            mPositioned = true;
+        }
+
+        boolean skipNonReference = mAvc && Math.abs(mRate) > SKIP_NON_REFERENCE_RATE;
+        long limitUs = mPositionUs + (long) (LOOKAHEAD_US * Math.abs(mRate));
+        boolean progress = false;
+        while (!mInputDone) {
+            long sampleUs = mExtractor.getSampleTime();
+            if (sampleUs < 0) {
+                mInputDone = mCodec.writeSample(mEmpty, null, 0,
+                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                return progress | mInputDone;
+            }
+            if (sampleUs > limitUs) {
+                break;
+            }
+            int sampleFlags = mExtractor.getSampleFlags();
+            boolean sync = (sampleFlags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+            boolean read = skipNonReference && !sync
+                    && (sampleFlags & MediaExtractor.SAMPLE_FLAG_ENCRYPTED) == 0
+                    && readSample();
+            if (read && isNonReference(mSample)) {
+                mExtractor.advance();
+                mFramesSkipped++;
+                progress = true;
+                continue;
+            }
+            if (!queue(sampleUs, sampleFlags, read)) {
+                break;
+            }
+            if (sync) {
+                mFedSyncUs = sampleUs;
+            }
+            mExtractor.advance();
+            progress = true;
+        }
+        return progress;
+    }
+
+    // Queues sync samples back to back in the playing direction, each at least a refresh
+    // worth of playback time after the one before, up to the lookahead.
+    private boolean feedSyncSamples() throws MediaCodecWrapper.WriteException {
+        long onScreenUs = mSeekIndex.syncAtOrBefore(mPositionUs);
+        if (!mPositioned) {
+            mNextSyncUs = onScreenUs;
+            mPositioned = true;
+        } else if (mNextSyncUs >= 0
+                && (mForward ? mNextSyncUs < onScreenUs : mNextSyncUs > onScreenUs)) {
+            // Fallen behind; skip to the sync sample due now.
+            mNextSyncUs = onScreenUs;
+        }
+
+        long lookaheadUs = (long) (LOOKAHEAD_US * Math.abs(mRate));
+        long limitUs = mForward ? mPositionUs + lookaheadUs : mPositionUs - lookaheadUs;
+        long strideUs = Math.max((long) (mRefreshPeriodUs * Math.abs(mRate)), 1);
+        boolean progress = false;
+        while (!mInputDone) {
+            if (mNextSyncUs < 0) {
+                mInputDone = mCodec.writeSample(mEmpty, null, 0,
+                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                return progress | mInputDone;
+            }
+            if (mForward ? mNextSyncUs > limitUs : mNextSyncUs < limitUs) {
+                break;
+            }
+            if (mCache.getExact(mNextSyncUs) == null) {
+                if (mExtractor.getSampleTime() != mNextSyncUs) {
+                    mExtractor.seekTo(mNextSyncUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                }
+                if (!queue(mNextSyncUs, mExtractor.getSampleFlags(), false)) {
+                    break;
+                }
+            }
+            mNextSyncUs = nextSync(mNextSyncUs, strideUs);
+            progress = true;
+        }
+        return progress;
+    }
+
+    // Decodes the GOP on screen if it isn't cached, else the one before it.
+    private boolean feedReverse() throws MediaCodecWrapper.WriteException {
+        long currentUs = Math.max(mSeekIndex.syncAtOrBefore(mPositionUs), 0);
+        long targetUs = -1;
+        if (!mDecodedGops.contains(currentUs)) {
+            targetUs = currentUs;
+        } else if (mSeekIndex.getSyncSampleCount() > 0
+                && currentUs > mSeekIndex.getSyncTimeUs(0)) {
+            long previousUs = mSeekIndex.syncAtOrBefore(currentUs - 1);
+            if (!mDecodedGops.contains(previousUs)) {
+                targetUs = previousUs;
+            }
+        }
+        if (mGopUs >= 0 && mGopUs != targetUs) {
+            // Playback moved on from the GOP being decoded.
+            mCodec.flush();
+            mGopUs = -1;
+            mInputDone = false;
+            mPrevious = null;
+        }
+        if (targetUs < 0) {
+            return false;
+        }
+        if (mGopUs < 0) {
+            if (targetUs != currentUs && mShownUs >= 0) {
+                // Frames after the one on screen have been shown; make room for the GOP before.
+                mCache.retain(Long.MIN_VALUE, mShownUs);
+                mDecodedGops.tailSet(currentUs, false).clear();
+            }
+            mExtractor.seekTo(targetUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            mGopUs = targetUs;
+            mGopSamples = 0;
+        }
+
+        boolean progress = false;
+        while (!mInputDone) {
+            long sampleUs = mExtractor.getSampleTime();
+            int sampleFlags = sampleUs < 0 ? 0 : mExtractor.getSampleFlags();
+            if (sampleUs < 0
+                    || (mGopSamples > 0 && (sampleFlags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0)) {
+                // The GOP ends at the next sync sample.
+                mInputDone = mCodec.writeSample(mEmpty, null, 0,
+                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                return progress | mInputDone;
+            }
+            if (!queue(sampleUs, sampleFlags, false)) {
+                break;
+            }
+            mExtractor.advance();
+            mGopSamples++;
+            progress = true;
+        }
+        return progress;
+    }
+
+    // Shows the latest cached frame at or before the position, as long as it is recent enough
+    // to be the right one or a stand-in for it.
+    private void present() {
+        FrameCache.Entry entry = mCache.floor(mPositionUs);
+        long oldestUs;
+        if (mMode == MODE_SYNC_ONLY) {
+            oldestUs = mSeekIndex.syncAtOrBefore(
+                    mPositionUs - (long) (mRefreshPeriodUs * Math.abs(mRate)));
+        } else {
+            oldestUs = mSeekIndex.syncAtOrBefore(mPositionUs);
+        }
+        if (entry == null || entry.getPresentationTimeUs() < oldestUs) {
+            if (mMode == MODE_REVERSE && mDecodedGops.remove(oldestUs)) {
+                // Evicted before it was shown.
+                mGopRedecodes++;
+            }
+            return;
+        }
+        long presentationTimeUs = entry.getPresentationTimeUs();
+        if (presentationTimeUs != mShownUs) {
+            mDisplay.show(presentationTimeUs, entry.getFrame(), entry.getWidth(),
+                    entry.getHeight());
+            mShownUs = presentationTimeUs;
+            mFramesShown++;
+        }
+    }
+
+    // The next sync sample at least strideUs away in the playing direction, or -1.
+    private long nextSync(long syncUs, long strideUs) {
+        if (mForward) {
+            long next = mSeekIndex.syncAtOrAfter(syncUs + strideUs);
+            return next > syncUs ? next : -1;
+        }
+        long next = mSeekIndex.syncAtOrBefore(syncUs - strideUs);
+        return next < syncUs ? next : -1;
+    }
+
+    // Queues the extractor's current sample, from mSample if it has been read there already.
+    private boolean queue(long presentationTimeUs, int sampleFlags, boolean read)
+            throws MediaCodecWrapper.WriteException {
+        int flags = (sampleFlags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+        if (read) {
+            return mCodec.writeSample(mSample, null, presentationTimeUs, flags);
+        }
+        return mCodec.writeSample(mExtractor,
+                (sampleFlags & MediaExtractor.SAMPLE_FLAG_ENCRYPTED) != 0,
+                presentationTimeUs, flags);
+    }
+
+    // Reads the extractor's current sample into mSample. Returns false at the end of stream.
+    private boolean readSample() {
+        int size;
+        while (true) {
+            mSample.clear();
+            try {
+                size = mExtractor.readSampleData(mSample, 0);
+                break;
+            } catch (IllegalArgumentException e) {
+                // The sample doesn't fit; grow the buffer and try again.
+                mSample = ByteBuffer.allocateDirect(mSample.capacity() * 2);
+            }
+        }
+        if (size < 0) {
+            return false;
+        }
+        mSample.position(0);
+        mSample.limit(size);
+        return true;
+    }
+
+    // True if sample holds H.264 slices, in Annex B form as MediaExtractor delivers them, that
+    // all have nal_ref_idc 0: no other frame refers to the picture, so it can be left out.
+    private static boolean isNonReference(ByteBuffer sample) {
+        boolean slices = false;
+        int zeros = 0;
+        for (int i = sample.position(); i < sample.limit() - 1; i++) {
+            int b = sample.get(i) & 0xff;
+            if (zeros >= 2 && b == 1) {
+                int header = sample.get(i + 1) & 0xff;
+                int type = header & 0x1f;
+                if (type >= 1 && type <= 5) {
+                    if ((header & 0x60) != 0) {
+                        return false;
+                    }
+                    slices = true;
+                }
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        return slices;
+    }
+}
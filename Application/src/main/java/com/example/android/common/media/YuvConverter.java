@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Color conversion kernels for YUV 4:2:0 frames. Everything in here works on plain
+ * {@link ByteBuffer}s and arrays so it can run (and be measured) on a desktop JVM.
+ *
+ * The source planes are described the same way {@link android.media.Image.Plane} describes
+ * them: a buffer positioned at the first pixel, a row stride and, for chroma, a pixel stride.
+ * Buffer positions are restored before returning.
+ */
+public final class YuvConverter {
+
+    private YuvConverter() {
+    }
+
+    /**
+     * @return The number of bytes needed to hold an NV21 frame of the given dimensions.
+     */
+    public static int nv21Size(int width, int height) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        return width * height + 2 * chromaWidth * chromaHeight;
+    }
+
+    /**
+     * Converts a YUV 4:2:0 frame with arbitrary strides into NV21 (full Y plane followed by
+     * interleaved V/U samples).
+     *
+     * @param yPlane Luma plane, positioned at the first pixel.
+     * @param yRowStride Distance in bytes between the start of two luma rows.
+     * @param uPlane Cb plane, positioned at the first sample.
+     * @param vPlane Cr plane, positioned at the first sample.
+     * @param uvRowStride Distance in bytes between the start of two chroma rows.
+     * @param uvPixelStride Distance in bytes between two chroma samples of the same row.
+     * @param width Frame width in pixels.
+     * @param height Frame height in pixels.
+     * @param out Destination, at least {@link #nv21Size(int, int)} bytes long. It is meant to be
+     * reused from frame to frame.
+     */
+    public static void yuv420ToNv21(ByteBuffer yPlane, int yRowStride,
+            ByteBuffer uPlane, ByteBuffer vPlane, int uvRowStride, int uvPixelStride,
+            int width, int height, byte[] out) {
+        if (out.length < nv21Size(width, height)) {
+            throw new IllegalArgumentException("Destination too small for a "
+                    + width + "x" + height + " NV21 frame: " + out.length);
+        }
+        copyPlane(yPlane, yRowStride, width, height, out, 0);
+        interleaveChroma(uPlane, vPlane, uvRowStride, uvPixelStride,
+                (width + 1) / 2, (height + 1) / 2, out, width * height);
+    }
+
+    /**
+     * Converts a YUV 4:2:0 frame with arbitrary strides into a smaller NV21 frame. Each
+     * destination sample is the average of the source samples it covers, so there's no
+     * aliasing even for large reductions.
+     *
+     * @param out Destination, at least {@link #nv21Size(int, int)} bytes long for
+     * {@code dstWidth} x {@code dstHeight}.
+     * @see #yuv420ToNv21
+     */
+    public static void scaleYuv420ToNv21(ByteBuffer yPlane, int yRowStride,
+            ByteBuffer uPlane, ByteBuffer vPlane, int uvRowStride, int uvPixelStride,
+            int width, int height, int dstWidth, int dstHeight, byte[] out) {
+        if (dstWidth <= 0 || dstHeight <= 0 || dstWidth > width || dstHeight > height) {
+            throw new IllegalArgumentException("Can't scale " + width + "x" + height
+                    + " down to " + dstWidth + "x" + dstHeight);
+        }
+        if (out.length < nv21Size(dstWidth, dstHeight)) {
+            throw new IllegalArgumentException("Destination too small for a "
+                    + dstWidth + "x" + dstHeight + " NV21 frame: " + out.length);
+        }
+        scalePlane(yPlane, yRowStride, 1, width, height, dstWidth, dstHeight, out, 0, 1);
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int dstChromaWidth = (dstWidth + 1) / 2;
+        int dstChromaHeight = (dstHeight + 1) / 2;
+        int offset = dstWidth * dstHeight;
+        scalePlane(vPlane, uvRowStride, uvPixelStride, chromaWidth, chromaHeight,
+                dstChromaWidth, dstChromaHeight, out, offset, 2);
+        scalePlane(uPlane, uvRowStride, uvPixelStride, chromaWidth, chromaHeight,
+                dstChromaWidth, dstChromaHeight, out, offset + 1, 2);
+    }
+
+    /**
+     * Box-filters a plane into {@code out}, writing a sample every {@code outPixelStride}
+     * bytes from {@code offset}.
+     */
+    private static void scalePlane(ByteBuffer src, int rowStride, int pixelStride,
+            int width, int height, int dstWidth, int dstHeight,
+            byte[] out, int offset, int outPixelStride) {
+        final int base = src.position();
+        int dst = offset;
+        for (int dy = 0; dy < dstHeight; dy++) {
+            int y0 = dy * height / dstHeight;
+            int y1 = Math.max(y0 + 1, (dy + 1) * height / dstHeight);
+            for (int dx = 0; dx < dstWidth; dx++) {
+                int x0 = dx * width / dstWidth;
+                int x1 = Math.max(x0 + 1, (dx + 1) * width / dstWidth);
+                int sum = 0;
+                for (int y = y0; y < y1; y++) {
+                    int row = base + y * rowStride;
+                    for (int x = x0; x < x1; x++) {
+                        sum += src.get(row + x * pixelStride) & 0xff;
+                    }
+                }
+                out[dst] = (byte) (sum / ((y1 - y0) * (x1 - x0)));
+                dst += outPixelStride;
+            }
+        }
+    }
+
+    /**
+     * Copies a plane with one byte per pixel into a tightly packed destination.
+     */
+    private static void copyPlane(ByteBuffer src, int rowStride, int width, int height,
+            byte[] out, int offset) {
+        final int base = src.position();
+        if (rowStride == width) {
+            // Tightly packed: the whole plane is a single bulk copy.
+            src.get(out, offset, width * height);
+        } else {
+            for (int row = 0; row < height; row++) {
+                src.position(base + row * rowStride);
+                src.get(out, offset + row * width, width);
+            }
+        }
+        src.position(base);
+    }
+
+    /**
+     * Writes the chroma planes as V/U pairs starting at {@code offset}.
+     */
+    private static void interleaveChroma(ByteBuffer uPlane, ByteBuffer vPlane,
+            int rowStride, int pixelStride, int chromaWidth, int chromaHeight,
+            byte[] out, int offset) {
+        final int uBase = uPlane.position();
+        final int vBase = vPlane.position();
+        final int rowBytes = 2 * chromaWidth;
+
+        if (pixelStride == 2) {
+            // Semi-planar output. The V plane already holds V,U,V,U... for NV21 sources, so
+            // it is copied in bulk and every other byte is then patched from the U plane.
+            // Patching is needed whether or not U and V view the same memory, and telling
+            // the two apart would mean writing to the codec's buffer.
+            if (rowStride == rowBytes) {
+                int length = rowBytes * chromaHeight;
+                vPlane.get(out, offset, length - 1);
+                for (int col = 0; col < length; col += 2) {
+                    out[offset + col + 1] = uPlane.get(uBase + col);
+                }
+            } else {
+                for (int row = 0; row < chromaHeight; row++) {
+                    int dst = offset + row * rowBytes;
+                    int src = row * rowStride;
+                    vPlane.position(vBase + src);
+                    vPlane.get(out, dst, rowBytes - 1);
+                    for (int col = 0; col < rowBytes; col += 2) {
+                        out[dst + col + 1] = uPlane.get(uBase + src + col);
+                    }
+                }
+            }
+        } else {
+            for (int row = 0; row < chromaHeight; row++) {
+                int dst = offset + row * rowBytes;
+                int src = row * rowStride;
+                for (int col = 0; col < chromaWidth; col++) {
+                    out[dst++] = vPlane.get(vBase + src);
+                    out[dst++] = uPlane.get(uBase + src);
+                    src += pixelStride;
+                }
+            }
+        }
+        uPlane.position(uBase);
+        vPlane.position(vBase);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * {@link FrameEncoder} backed by the platform's {@link YuvImage#compressToJpeg}.
+ *
+ * A {@link YuvImage} can't be pointed at new data, so the last one is kept and reused as long
+ * as frames keep arriving in the same array at the same size, as they do from a
+ * {@link FrameBufferPool}. Not thread-safe.
+ */
+public final class YuvImageFrameEncoder implements FrameEncoder {
+
+    private final int mQuality;
+    private final Rect mRect = new Rect();
+    private YuvImage mYuvImage;
+
+    /**
+     * @param quality JPEG quality, 0 to 100.
+     */
+    public YuvImageFrameEncoder(int quality) {
+        mQuality = quality;
+    }
+
+    @Override
+    public void encode(byte[] nv21, int width, int height, OutputStream out) throws IOException {
+        YuvImage yuv = mYuvImage;
+        if (yuv == null || yuv.getYuvData() != nv21 || yuv.getWidth() != width
+                || yuv.getHeight() != height) {
+            yuv = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+            mYuvImage = yuv;
+        }
+        mRect.set(0, 0, width, height);
+        if (!yuv.compressToJpeg(mRect, mQuality, out)) {
+            throw new IOException("YuvImage failed to compress a " + width + "x" + height
+                    + " frame");
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link IntRingQueue} with the {@code ArrayDeque<Integer>} it replaced in
+ * {@link MediaCodecWrapper}. One op is one codec update cycle: {@code depth} buffer indices
+ * are dequeued from the codec, then peeked and consumed one by one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IntRingQueueBenchmark {
+
+    // Indices above 127 aren't covered by the Integer cache, which is what happens with codecs
+    // exposing many buffers or once index values are offset.
+    @Param({"0", "200"})
+    public int indexBase;
+
+    @Param({"4", "16"})
+    public int depth;
+
+    private IntRingQueue mRing;
+    private Queue<Integer> mDeque;
+
+    @Setup
+    public void setUp() {
+        mRing = new IntRingQueue(depth);
+        mDeque = new ArrayDeque<>(depth);
+    }
+
+    @Benchmark
+    public int intRingQueue() {
+        for (int i = 0; i < depth; i++) {
+            mRing.add(indexBase + i);
+        }
+        int sum = 0;
+        while (!mRing.isEmpty()) {
+            sum += mRing.peek();
+            sum += mRing.remove();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int arrayDequeOfInteger() {
+        for (int i = 0; i < depth; i++) {
+            mDeque.add(indexBase + i);
+        }
+        int sum = 0;
+        while (!mDeque.isEmpty()) {
+            sum += mDeque.peek();
+            sum += mDeque.remove();
+        }
+        return sum;
+    }
+}
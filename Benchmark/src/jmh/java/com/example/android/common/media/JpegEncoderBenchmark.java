@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Compares {@link JpegEncoder} with the JDK's JPEG writer on synthetic NV21 frames.
+ *
+ * {@link YuvImageFrameEncoder} needs the Android framework, so the JDK writer stands in for a
+ * platform encoder here. It is handed a ready RGB image, which leaves the color conversion the
+ * platform path performs out of its numbers.
+ */
+@State(Scope.Thread)
+public class JpegEncoderBenchmark {
+
+    @Param({"320x240", "1280x720", "1920x1080"})
+    public String resolution;
+
+    @Param({"75", "100"})
+    public int quality;
+
+    /**
+     * JAVA_420 and JAVA_444: {@link JpegEncoder} with the given chroma subsampling.
+     * IMAGEIO: the JDK's writer, which subsamples to 4:2:0.
+     */
+    @Param({"JAVA_420", "JAVA_444", "IMAGEIO"})
+    public String backend;
+
+    private int mWidth;
+    private int mHeight;
+    private byte[] mNv21;
+    private BufferedImage mRgb;
+    private FrameBufferPool mPool;
+    private FrameBufferOutputStream mOut;
+    private JpegEncoder mEncoder;
+    private ImageWriter mWriter;
+    private ImageWriteParam mWriteParam;
+
+    @Setup
+    public void setUp() {
+        String[] size = resolution.split("x");
+        mWidth = Integer.parseInt(size[0]);
+        mHeight = Integer.parseInt(size[1]);
+        mNv21 = syntheticFrame(mWidth, mHeight);
+        mPool = new FrameBufferPool();
+        mOut = new FrameBufferOutputStream(mPool);
+
+        if ("IMAGEIO".equals(backend)) {
+            mRgb = toRgb(mNv21, mWidth, mHeight);
+            mWriter = ImageIO.getImageWritersByFormatName("jpeg").next();
+            mWriteParam = mWriter.getDefaultWriteParam();
+            mWriteParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            mWriteParam.setCompressionQuality(quality / 100f);
+        } else {
+            mEncoder = new JpegEncoder(quality, "JAVA_444".equals(backend)
+                    ? JpegEncoder.SUBSAMPLING_444 : JpegEncoder.SUBSAMPLING_420);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mWriter != null) {
+            mWriter.dispose();
+        }
+        mOut.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int usPerFrame() throws IOException {
+        return encode();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int framesPerSecond() throws IOException {
+        return encode();
+    }
+
+    // Returns the encoded size so the work can't be optimized away.
+    private int encode() throws IOException {
+        if (mWriter != null) {
+            MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(mOut);
+            mWriter.setOutput(stream);
+            mWriter.write(null, new IIOImage(mRgb, null, null), mWriteParam);
+            stream.close();
+        } else {
+            mEncoder.encode(mNv21, mWidth, mHeight, mOut);
+        }
+        FrameBuffer frame = mOut.detach();
+        int length = frame.getLength();
+        frame.release();
+        return length;
+    }
+
+    // Smooth gradients plus a little noise, closer to decoded video than pure noise, which
+    // is the worst case for any JPEG encoder.
+    private static byte[] syntheticFrame(int width, int height) {
+        byte[] nv21 = new byte[YuvConverter.nv21Size(width, height)];
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int value = 16 + (x * 160 / width) + (y * 60 / height) + random.nextInt(8);
+                nv21[y * width + x] = (byte) value;
+            }
+        }
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int offset = width * height;
+        for (int y = 0; y < chromaHeight; y++) {
+            for (int x = 0; x < chromaWidth; x++) {
+                nv21[offset++] = (byte) (96 + x * 64 / chromaWidth);
+                nv21[offset++] = (byte) (160 - y * 64 / chromaHeight);
+            }
+        }
+        return nv21;
+    }
+
+    private static BufferedImage toRgb(byte[] nv21, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int chromaWidth = (width + 1) / 2;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int c = width * height + ((y / 2) * chromaWidth + x / 2) * 2;
+                int luma = nv21[y * width + x] & 0xff;
+                int cr = (nv21[c] & 0xff) - 128;
+                int cb = (nv21[c + 1] & 0xff) - 128;
+                int r = clamp(luma + (int) (1.402f * cr));
+                int g = clamp(luma - (int) (0.344f * cb + 0.714f * cr));
+                int b = clamp(luma + (int) (1.772f * cb));
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link YuvConverter#yuv420ToNv21} on synthetic frames laid out the way decoders
+ * commonly expose them through {@link android.media.Image}.
+ */
+@State(Scope.Thread)
+public class YuvConverterBenchmark {
+
+    // Row strides of padded layouts are rounded up to this many bytes, a typical
+    // hardware alignment.
+    private static final int STRIDE_ALIGNMENT = 64;
+
+    @Param({"320x240", "1280x720", "1920x1080", "3840x2160"})
+    public String resolution;
+
+    /**
+     * PLANAR: I420, tightly packed. PLANAR_PADDED: I420 with aligned row strides.
+     * SEMI_PLANAR: NV21 where U and V alias one buffer. SEMI_PLANAR_PADDED: NV12-like with
+     * separate chroma buffers and aligned row strides.
+     */
+    @Param({"PLANAR", "PLANAR_PADDED", "SEMI_PLANAR", "SEMI_PLANAR_PADDED"})
+    public String layout;
+
+    private int mWidth;
+    private int mHeight;
+    private ByteBuffer mY;
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    private int mYRowStride;
+    private int mUvRowStride;
+    private int mUvPixelStride;
+    private byte[] mNv21;
+
+    @Setup
+    public void setUp() {
+        String[] size = resolution.split("x");
+        mWidth = Integer.parseInt(size[0]);
+        mHeight = Integer.parseInt(size[1]);
+        int chromaWidth = (mWidth + 1) / 2;
+        int chromaHeight = (mHeight + 1) / 2;
+        boolean padded = layout.endsWith("_PADDED");
+        boolean semiPlanar = layout.startsWith("SEMI_PLANAR");
+
+        mYRowStride = padded ? align(mWidth) : mWidth;
+        mUvPixelStride = semiPlanar ? 2 : 1;
+        mUvRowStride = padded ? align(chromaWidth * mUvPixelStride)
+                : chromaWidth * mUvPixelStride;
+
+        Random random = new Random(42);
+        mY = randomDirect(random, mYRowStride * mHeight);
+        if ("SEMI_PLANAR".equals(layout)) {
+            ByteBuffer chroma = randomDirect(random, mUvRowStride * chromaHeight);
+            mV = chroma.slice();
+            chroma.position(1);
+            mU = chroma.slice();
+        } else {
+            mU = randomDirect(random, mUvRowStride * chromaHeight);
+            mV = randomDirect(random, mUvRowStride * chromaHeight);
+        }
+        mNv21 = new byte[YuvConverter.nv21Size(mWidth, mHeight)];
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public byte[] nsPerFrame() {
+        return convert();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public byte[] framesPerSecond() {
+        return convert();
+    }
+
+    private byte[] convert() {
+        YuvConverter.yuv420ToNv21(mY, mYRowStride, mU, mV, mUvRowStride, mUvPixelStride,
+                mWidth, mHeight, mNv21);
+        return mNv21;
+    }
+
+    private static int align(int value) {
+        return (value + STRIDE_ALIGNMENT - 1) / STRIDE_ALIGNMENT * STRIDE_ALIGNMENT;
+    }
+
+    private static ByteBuffer randomDirect(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(data);
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncCodecBuffersTest {
+
+    /**
+     * Scripted codec. Callbacks are delivered on the test thread, when the test asks for them.
+     */
+    private static final class FakeAsyncCodec implements AsyncCodec {
+        final List<long[]> mQueued = new ArrayList<>();
+        final List<long[]> mReleased = new ArrayList<>();
+        Callback mCallback;
+        int mInputBuffers = 4;
+        boolean mFlushed;
+        boolean mResumed;
+        boolean mStopped;
+        // Announced from within flush(), like callbacks that were already on their way.
+        int mStaleOutputOnFlush = -1;
+        // Announced from within releaseOutputBuffer(), as a codec reusing the index at once.
+        long mReuseOnReleaseUs = -1;
+
+        @Override
+        public void start(Callback callback) {
+            mCallback = callback;
+            announceInputs();
+        }
+
+        void announceInputs() {
+            for (int i = 0; i < mInputBuffers; i++) {
+                mCallback.onInputBufferAvailable(i);
+            }
+        }
+
+        void output(int index, int size, long presentationTimeUs, int flags) {
+            mCallback.onOutputBufferAvailable(index, 0, size, presentationTimeUs, flags);
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            return ByteBuffer.allocate(16);
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return ByteBuffer.allocate(16);
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+                int flags) {
+            mQueued.add(new long[] {index, size, presentationTimeUs, flags});
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index, boolean render) {
+            mReleased.add(new long[] {index, render ? 1 : 0, -1});
+            reuse(index);
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index, long renderTimestampNs) {
+            mReleased.add(new long[] {index, 1, renderTimestampNs});
+            reuse(index);
+        }
+
+        private void reuse(int index) {
+            if (mReuseOnReleaseUs >= 0) {
+                long presentationTimeUs = mReuseOnReleaseUs;
+                mReuseOnReleaseUs = -1;
+                output(index, 1, presentationTimeUs, 0);
+            }
+        }
+
+        @Override
+        public void flush() {
+            mFlushed = true;
+            if (mStaleOutputOnFlush >= 0) {
+                output(mStaleOutputOnFlush, 1, 0, 0);
+            }
+        }
+
+        @Override
+        public void resume() {
+            mResumed = true;
+            announceInputs();
+        }
+
+        @Override
+        public void release() {
+            mStopped = true;
+        }
+    }
+
+    private FakeAsyncCodec mCodec;
+    private AsyncCodecBuffers mBuffers;
+
+    @Before
+    public void setUp() {
+        mCodec = new FakeAsyncCodec();
+        mBuffers = new AsyncCodecBuffers(mCodec);
+        mBuffers.start();
+    }
+
+    @Test
+    public void writeUsesInputBuffersInAnnouncedOrder() {
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, mBuffers.peekInputBuffer());
+            int index = mBuffers.pollInputBuffer();
+            assertEquals(i, index);
+            mBuffers.queueInputBuffer(index, 10 + i, 1000 * i, 0);
+        }
+        assertEquals(AsyncCodecBuffers.NO_BUFFER, mBuffers.pollInputBuffer());
+        assertEquals(4, mCodec.mQueued.size());
+        long[] last = mCodec.mQueued.get(3);
+        assertEquals(3, last[0]);
+        assertEquals(13, last[1]);
+        assertEquals(3000, last[2]);
+
+        // A buffer announced again once the codec is done with it can be written again.
+        mCodec.mCallback.onInputBufferAvailable(1);
+        assertEquals(1, mBuffers.pollInputBuffer());
+    }
+
+    @Test
+    public void peekAndPopOutput() {
+        assertEquals(AsyncCodecBuffers.NO_BUFFER, mBuffers.peekOutputBuffer());
+        mCodec.output(2, 100, 33000, 1);
+        mCodec.output(0, 200, 66000, 0);
+
+        assertEquals(2, mBuffers.peekOutputBuffer());
+        OutputBufferTable info = mBuffers.getOutputBufferInfo();
+        assertEquals(100, info.getSize(2));
+        assertEquals(33000, info.getPresentationTimeUs(2));
+        assertEquals(1, info.getFlags(2));
+
+        assertEquals(2, mBuffers.popOutputBuffer(true, AsyncCodecBuffers.NO_RENDER_TIMESTAMP));
+        assertEquals(0, mBuffers.popOutputBuffer(true, 12345));
+        assertEquals(AsyncCodecBuffers.NO_BUFFER, mBuffers.popOutputBuffer(false,
+                AsyncCodecBuffers.NO_RENDER_TIMESTAMP));
+
+        assertEquals(2, mCodec.mReleased.size());
+        assertEquals(2, mCodec.mReleased.get(0)[0]);
+        assertEquals(-1, mCodec.mReleased.get(0)[2]);
+        assertEquals(0, mCodec.mReleased.get(1)[0]);
+        assertEquals(12345, mCodec.mReleased.get(1)[2]);
+    }
+
+    @Test
+    public void growsForHighBufferIndices() {
+        for (int i = 0; i < 200; i++) {
+            mCodec.output(199 - i, i, i, 0);
+        }
+        for (int i = 0; i < 200; i++) {
+            int index = mBuffers.pollOutputBuffer();
+            assertEquals(199 - i, index);
+            assertEquals(i, mBuffers.getOutputBufferInfo().getPresentationTimeUs(index));
+        }
+        mCodec.mCallback.onInputBufferAvailable(500);
+        mBuffers.checkError();
+    }
+
+    @Test
+    public void flushDropsQueuedAndStaleBuffers() {
+        mBuffers.pollInputBuffer();
+        mCodec.output(0, 1, 0, 0);
+        mCodec.mStaleOutputOnFlush = 1;
+
+        mBuffers.flush();
+
+        assertTrue(mCodec.mFlushed);
+        assertTrue(mCodec.mResumed);
+        assertEquals(AsyncCodecBuffers.NO_BUFFER, mBuffers.peekOutputBuffer());
+        // Only the input buffers announced after resuming are queued.
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, mBuffers.pollInputBuffer());
+        }
+        assertEquals(AsyncCodecBuffers.NO_BUFFER, mBuffers.pollInputBuffer());
+    }
+
+    @Test
+    public void codecErrorIsRethrownOnCaller() {
+        IOException error = new IOException("decoder died");
+        mCodec.mCallback.onError(error);
+        try {
+            mBuffers.checkError();
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(error, e.getCause());
+        }
+    }
+
+    @Test
+    public void invalidIndexIsReportedNotThrown() {
+        mCodec.output(-1, 1, 0, 0);
+        assertEquals(AsyncCodecBuffers.NO_BUFFER, mBuffers.peekOutputBuffer());
+        try {
+            mBuffers.checkError();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void releaseReportsPresentationTimeOfReleasedBuffer() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        mBuffers.setPipelineMetrics(metrics);
+        int input = mBuffers.pollInputBuffer();
+        mBuffers.queueInputBuffer(input, 1, 1000, 0);
+        mCodec.output(0, 1, 1000, 0);
+        // The codec hands index 0 out again for a frame that was never queued.
+        mCodec.mReuseOnReleaseUs = 2000;
+
+        mBuffers.popOutputBuffer(true, AsyncCodecBuffers.NO_RENDER_TIMESTAMP);
+
+        assertEquals(1, metrics.getStageCount(PipelineMetrics.STAGE_RENDER_RELEASE));
+        // Only the reused buffer's dequeue has no matching queue-in.
+        assertEquals(1, metrics.getUnmatchedRecords());
+    }
+
+    @Test
+    public void inFlightLimitHoldsInputUntilOutput() {
+        AsyncCodecBuffers buffers = new AsyncCodecBuffers(mCodec, 2, false, null);
+        buffers.start();
+        assertFalse(buffers.inFlightLimitReached());
+        buffers.queueInputBuffer(buffers.pollInputBuffer(), 1, 0, 0);
+        assertFalse(buffers.inFlightLimitReached());
+        buffers.queueInputBuffer(buffers.pollInputBuffer(), 1, 1000, 0);
+        assertTrue(buffers.inFlightLimitReached());
+
+        mCodec.output(0, 1, 0, 0);
+        assertFalse(buffers.inFlightLimitReached());
+        buffers.queueInputBuffer(buffers.pollInputBuffer(), 1, 2000, 0);
+        buffers.queueInputBuffer(buffers.pollInputBuffer(), 1, 3000, 0);
+        assertTrue(buffers.inFlightLimitReached());
+
+        // Nothing was in flight any more after a flush.
+        buffers.popOutputBuffer(false, AsyncCodecBuffers.NO_RENDER_TIMESTAMP);
+        buffers.flush();
+        assertFalse(buffers.inFlightLimitReached());
+    }
+
+    @Test
+    public void inFlightLimitIsLiftedWhenCodecStalls() throws InterruptedException {
+        AsyncCodecBuffers buffers = new AsyncCodecBuffers(mCodec, 1, false, null);
+        buffers.start();
+        buffers.queueInputBuffer(buffers.pollInputBuffer(), 1, 0, 0);
+        assertTrue(buffers.inFlightLimitReached());
+        // A codec that reorders frames needs more than one sample before it outputs any.
+        Thread.sleep(150);
+        assertFalse(buffers.inFlightLimitReached());
+        buffers.queueInputBuffer(buffers.pollInputBuffer(), 1, 1000, 0);
+        assertFalse(buffers.inFlightLimitReached());
+
+        // Output puts the limit back in place.
+        mCodec.output(0, 1, 0, 0);
+        buffers.queueInputBuffer(buffers.pollInputBuffer(), 1, 2000, 0);
+        assertTrue(buffers.inFlightLimitReached());
+    }
+
+    @Test
+    public void noInFlightLimitByDefault() {
+        for (int i = 0; i < 4; i++) {
+            mBuffers.queueInputBuffer(mBuffers.pollInputBuffer(), 1, 1000 * i, 0);
+            assertFalse(mBuffers.inFlightLimitReached());
+        }
+    }
+
+    @Test
+    public void immediateReleaseIgnoresRenderTimestamp() {
+        PipelineMetrics profileMetrics = new PipelineMetrics();
+        AsyncCodecBuffers buffers = new AsyncCodecBuffers(mCodec, 0, true, profileMetrics);
+        buffers.start();
+        buffers.queueInputBuffer(buffers.pollInputBuffer(), 1, 1000, 0);
+        mCodec.output(0, 1, 1000, 0);
+
+        buffers.popOutputBuffer(true, 12345);
+
+        assertEquals(1, mCodec.mReleased.size());
+        assertEquals(1, mCodec.mReleased.get(0)[1]);
+        assertEquals(-1, mCodec.mReleased.get(0)[2]);
+        // The profile's metrics see the whole trip of the sample.
+        assertEquals(1, profileMetrics.getStageCount(PipelineMetrics.STAGE_QUEUE_IN));
+        assertEquals(1, profileMetrics.getStageCount(PipelineMetrics.STAGE_DEQUEUE_OUT));
+        assertEquals(1, profileMetrics.getStageCount(PipelineMetrics.STAGE_RENDER_RELEASE));
+        assertEquals(0, profileMetrics.getUnmatchedRecords());
+    }
+
+    @Test
+    public void releaseStopsCodecAndDropsBuffers() {
+        mCodec.output(0, 1, 0, 0);
+        mBuffers.release();
+        assertTrue(mCodec.mStopped);
+        assertEquals(AsyncCodecBuffers.NO_BUFFER, mBuffers.peekInputBuffer());
+        assertEquals(AsyncCodecBuffers.NO_BUFFER, mBuffers.peekOutputBuffer());
+    }
+}
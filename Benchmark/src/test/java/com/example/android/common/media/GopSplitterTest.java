@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GopSplitterTest {
+
+    @Test
+    public void balancesUnevenGopsByDuration() {
+        long[] syncTimesUs = {0, 1000000, 1500000, 2000000, 5000000, 6000000};
+        List<GopSplitter.Segment> segments = GopSplitter.split(syncTimesUs, 8000000, 3);
+
+        assertEquals(3, segments.size());
+        // Thirds of the duration end at 2.67 s and 5.33 s; segments start at the next sync.
+        assertSegment(segments.get(0), 0, 0, 5000000, 4);
+        assertSegment(segments.get(1), 1, 5000000, 6000000, 1);
+        assertSegment(segments.get(2), 2, 6000000, Long.MAX_VALUE, 1);
+    }
+
+    @Test
+    public void segmentsAreContiguousAndCoverEveryGop() {
+        long[] syncTimesUs = {0, 100, 200, 1000, 1100, 5000, 5100, 5200, 9000};
+        for (int count = 1; count <= 12; count++) {
+            List<GopSplitter.Segment> segments = GopSplitter.split(syncTimesUs, 10000, count);
+            assertEquals(Math.min(count, syncTimesUs.length), segments.size());
+            int gops = 0;
+            for (int i = 0; i < segments.size(); i++) {
+                GopSplitter.Segment segment = segments.get(i);
+                assertEquals(i, segment.getIndex());
+                assertTrue(segment.getGopCount() >= 1);
+                assertEquals(syncTimesUs[gops], segment.getStartUs());
+                gops += segment.getGopCount();
+                long expectedEndUs =
+                        gops == syncTimesUs.length ? Long.MAX_VALUE : syncTimesUs[gops];
+                assertEquals(expectedEndUs, segment.getEndUs());
+            }
+            assertEquals(syncTimesUs.length, gops);
+        }
+    }
+
+    @Test
+    public void fewerGopsThanSegments() {
+        long[] syncTimesUs = {0, 1000000};
+        List<GopSplitter.Segment> segments = GopSplitter.split(syncTimesUs, 2000000, 4);
+
+        assertEquals(2, segments.size());
+        assertSegment(segments.get(0), 0, 0, 1000000, 1);
+        assertSegment(segments.get(1), 1, 1000000, Long.MAX_VALUE, 1);
+    }
+
+    @Test
+    public void unknownDurationEndsAtLastSync() {
+        long[] syncTimesUs = {0, 1000000, 2000000, 3000000};
+        List<GopSplitter.Segment> segments = GopSplitter.split(syncTimesUs, 0, 2);
+
+        assertEquals(2, segments.size());
+        assertSegment(segments.get(0), 0, 0, 2000000, 2);
+        assertSegment(segments.get(1), 1, 2000000, Long.MAX_VALUE, 2);
+    }
+
+    @Test
+    public void noSyncSamplesGiveNoSegments() {
+        assertTrue(GopSplitter.split(new long[0], 1000000, 4).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveSegmentCount() {
+        GopSplitter.split(new long[] {0}, 1000000, 0);
+    }
+
+    @Test
+    public void containsIsHalfOpen() {
+        GopSplitter.Segment segment = GopSplitter.split(new long[] {0, 1000}, 2000, 2).get(0);
+        assertTrue(segment.contains(0));
+        assertTrue(segment.contains(999));
+        assertFalse(segment.contains(1000));
+        assertFalse(segment.contains(-1));
+    }
+
+    private static void assertSegment(GopSplitter.Segment segment, int index, long startUs,
+            long endUs, int gopCount) {
+        assertEquals(index, segment.getIndex());
+        assertEquals(startUs, segment.getStartUs());
+        assertEquals(endUs, segment.getEndUs());
+        assertEquals(gopCount, segment.getGopCount());
+    }
+}
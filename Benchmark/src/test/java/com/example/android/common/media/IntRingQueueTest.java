@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import org.junit.Test;
+
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IntRingQueueTest {
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(2, new IntRingQueue(1).capacity());
+        assertEquals(8, new IntRingQueue(5).capacity());
+        assertEquals(64, new IntRingQueue(64).capacity());
+    }
+
+    @Test
+    public void keepsFifoOrderAcrossWraparound() {
+        IntRingQueue queue = new IntRingQueue(4);
+        int next = 0;
+        int expected = 0;
+        // Three elements in flight, so head and tail keep crossing the end of the array.
+        for (int i = 0; i < 3; i++) {
+            queue.add(next++);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(expected, queue.peek());
+            assertEquals(expected++, queue.remove());
+            queue.add(next++);
+            assertEquals(3, queue.size());
+        }
+    }
+
+    @Test
+    public void ensureCapacityKeepsWrappedContents() {
+        IntRingQueue queue = new IntRingQueue(4);
+        for (int i = 0; i < 4; i++) {
+            queue.add(i);
+        }
+        queue.remove();
+        queue.remove();
+        queue.add(4);
+        queue.add(5);
+        queue.ensureCapacity(5);
+        assertEquals(8, queue.capacity());
+        for (int i = 6; i < 10; i++) {
+            queue.add(i);
+        }
+        for (int i = 2; i < 10; i++) {
+            assertEquals(i, queue.remove());
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void emptyQueue() {
+        IntRingQueue queue = new IntRingQueue(4);
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.size());
+        queue.add(7);
+        assertFalse(queue.isEmpty());
+        queue.remove();
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void removeFromEmptyThrows() {
+        new IntRingQueue(4).remove();
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void peekAtEmptyThrows() {
+        new IntRingQueue(4).peek();
+    }
+
+    @Test
+    public void addToFullThrows() {
+        IntRingQueue queue = new IntRingQueue(4);
+        for (int i = 0; i < 4; i++) {
+            queue.add(i);
+        }
+        try {
+            queue.add(4);
+            throw new AssertionError("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+        // The failed add leaves the contents alone.
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, queue.remove());
+        }
+    }
+
+    @Test
+    public void clearEmptiesAndQueueIsReusable() {
+        IntRingQueue queue = new IntRingQueue(4);
+        queue.add(1);
+        queue.add(2);
+        queue.remove();
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        for (int i = 0; i < 4; i++) {
+            queue.add(10 + i);
+        }
+        for (int i = 0; i < 4; i++) {
+            assertEquals(10 + i, queue.remove());
+        }
+    }
+}
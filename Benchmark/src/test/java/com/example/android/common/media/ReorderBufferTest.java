@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReorderBufferTest {
+
+    // Collects the frames, which are their own presentation times here.
+    private static final class Collector implements ReorderBuffer.Sink<Long> {
+        final List<Long> frames = Collections.synchronizedList(new ArrayList<Long>());
+
+        @Override
+        public void onFrame(long presentationTimeUs, Long frame) {
+            assertEquals(presentationTimeUs, (long) frame);
+            frames.add(frame);
+        }
+    }
+
+    @Test
+    public void mergesSegmentsFinishedOutOfOrder() throws Exception {
+        Collector sink = new Collector();
+        ReorderBuffer<Long> buffer = new ReorderBuffer<>(3, 16, sink);
+
+        offer(buffer, 2, 200, 210);
+        offer(buffer, 1, 100, 110);
+        buffer.finishSegment(2);
+        buffer.finishSegment(1);
+        assertTrue(sink.frames.isEmpty());
+
+        // The head passes straight through.
+        offer(buffer, 0, 0, 10);
+        assertEquals(Arrays.asList(0L, 10L), sink.frames);
+        assertFalse(buffer.isDone());
+
+        buffer.finishSegment(0);
+        assertEquals(Arrays.asList(0L, 10L, 100L, 110L, 200L, 210L), sink.frames);
+        assertTrue(buffer.isDone());
+        assertEquals(4, buffer.getPeakHeldCount());
+    }
+
+    @Test
+    public void heldFramesAreSortedByTime() throws Exception {
+        Collector sink = new Collector();
+        ReorderBuffer<Long> buffer = new ReorderBuffer<>(2, 16, sink);
+
+        offer(buffer, 1, 130, 110, 120);
+        buffer.finishSegment(0);
+        assertEquals(Arrays.asList(110L, 120L, 130L), sink.frames);
+    }
+
+    @Test(timeout = 10000)
+    public void laterSegmentsWaitForRoomButHeadDoesNot() throws Exception {
+        Collector sink = new Collector();
+        final ReorderBuffer<Long> buffer = new ReorderBuffer<>(2, 1, sink);
+        offer(buffer, 1, 100);
+
+        final AtomicReference<Boolean> accepted = new AtomicReference<>();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    accepted.set(buffer.offer(1, 110, 110L));
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        producer.start();
+        awaitWaiting(producer);
+
+        // The buffer is full, yet the head goes through.
+        offer(buffer, 0, 0, 10);
+        assertEquals(Arrays.asList(0L, 10L), sink.frames);
+        assertEquals(Thread.State.WAITING, producer.getState());
+
+        buffer.finishSegment(0);
+        producer.join();
+        assertTrue(accepted.get());
+        assertEquals(Arrays.asList(0L, 10L, 100L, 110L), sink.frames);
+    }
+
+    @Test(timeout = 10000)
+    public void abortReturnsHeldFramesAndReleasesWaiters() throws Exception {
+        Collector sink = new Collector();
+        final ReorderBuffer<Long> buffer = new ReorderBuffer<>(3, 2, sink);
+        offer(buffer, 1, 100);
+        offer(buffer, 2, 200);
+
+        final AtomicReference<Boolean> accepted = new AtomicReference<>();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    accepted.set(buffer.offer(2, 210, 210L));
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        producer.start();
+        awaitWaiting(producer);
+
+        List<Long> held = buffer.abort();
+        producer.join();
+
+        Collections.sort(held);
+        assertEquals(Arrays.asList(100L, 200L), held);
+        assertFalse(accepted.get());
+        assertTrue(buffer.isAborted());
+        assertFalse(buffer.offer(0, 0, 0L));
+        buffer.finishSegment(0);
+        assertTrue(sink.frames.isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsFramesOfFinishedSegments() throws Exception {
+        ReorderBuffer<Long> buffer = new ReorderBuffer<>(2, 4, new Collector());
+        buffer.finishSegment(1);
+        offer(buffer, 1, 100);
+    }
+
+    private static void offer(ReorderBuffer<Long> buffer, int segment, long... timesUs)
+            throws InterruptedException {
+        for (long timeUs : timesUs) {
+            assertTrue(buffer.offer(segment, timeUs, timeUs));
+        }
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentedDecoderTest {
+
+    private static final long FRAME_US = 10000;
+
+    // Frames every FRAME_US from 0 until DURATION_US, with a sync sample every GOP_US.
+    private static final long GOP_US = 100000;
+    private static final long DURATION_US = 1000000;
+
+    /**
+     * Produces a frame every FRAME_US over the segment, plus one before its start, like the
+     * leading frames of an open GOP, and one past its end. Later segments finish first.
+     */
+    private static class FakeSource implements SegmentedDecoder.SegmentSource {
+        final FrameBufferPool pool = new FrameBufferPool();
+        final AtomicInteger outside = new AtomicInteger();
+
+        @Override
+        public void decode(GopSplitter.Segment segment, SegmentedDecoder.FrameOutput output)
+                throws IOException, InterruptedException {
+            long endUs = Math.min(segment.getEndUs(), DURATION_US);
+            Thread.sleep(5 * (10 - segment.getIndex()));
+            long firstUs = segment.getStartUs() - FRAME_US;
+            long lastUs = segment.getEndUs() == Long.MAX_VALUE ? endUs - FRAME_US : endUs;
+            for (long timeUs = firstUs; timeUs <= lastUs; timeUs += FRAME_US) {
+                if (timeUs < 0) {
+                    continue;
+                }
+                if (!segment.contains(timeUs)) {
+                    outside.incrementAndGet();
+                }
+                if (!output.onFrame(timeUs, pool.acquire(16))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Collects presentation times and releases the frames.
+    private static final class Collector implements ReorderBuffer.Sink<FrameBuffer> {
+        final List<Long> timesUs = Collections.synchronizedList(new ArrayList<Long>());
+
+        @Override
+        public void onFrame(long presentationTimeUs, FrameBuffer frame) {
+            timesUs.add(presentationTimeUs);
+            frame.release();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void deliversEveryFrameInOrder() throws Exception {
+        FakeSource source = new FakeSource();
+        Collector sink = new Collector();
+        SegmentedDecoder decoder = new SegmentedDecoder(source, 3, 8);
+
+        decoder.decode(segments(5), sink);
+
+        List<Long> expected = new ArrayList<>();
+        for (long timeUs = 0; timeUs < DURATION_US; timeUs += FRAME_US) {
+            expected.add(timeUs);
+        }
+        assertEquals(expected, sink.timesUs);
+        assertEquals(expected.size(), decoder.getFramesDecoded());
+    }
+
+    @Test(timeout = 10000)
+    public void dropsFramesOutsideTheirSegment() throws Exception {
+        FakeSource source = new FakeSource();
+        SegmentedDecoder decoder = new SegmentedDecoder(source, 2, 8);
+
+        decoder.decode(segments(4), new Collector());
+
+        assertTrue(source.outside.get() > 0);
+        assertEquals(source.outside.get(), decoder.getFramesDropped());
+    }
+
+    @Test(timeout = 10000)
+    public void propagatesSegmentFailure() throws Exception {
+        final IOException failure = new IOException("segment 2 is broken");
+        final FakeSource good = new FakeSource();
+        SegmentedDecoder.SegmentSource source = new SegmentedDecoder.SegmentSource() {
+            @Override
+            public void decode(GopSplitter.Segment segment,
+                    SegmentedDecoder.FrameOutput output)
+                    throws IOException, InterruptedException {
+                if (segment.getIndex() == 2) {
+                    throw failure;
+                }
+                good.decode(segment, output);
+            }
+        };
+        Collector sink = new Collector();
+        SegmentedDecoder decoder = new SegmentedDecoder(source, 3, 4);
+
+        try {
+            decoder.decode(segments(5), sink);
+            fail("Expected the segment failure");
+        } catch (IOException e) {
+            assertEquals(failure, e);
+        }
+        // Nothing past the broken segment reaches the sink.
+        for (long timeUs : sink.timesUs) {
+            assertTrue(timeUs < segments(5).get(2).getStartUs());
+        }
+    }
+
+    private static List<GopSplitter.Segment> segments(int count) {
+        long[] syncTimesUs = new long[(int) (DURATION_US / GOP_US)];
+        for (int i = 0; i < syncTimesUs.length; i++) {
+            syncTimesUs[i] = i * GOP_US;
+        }
+        return GopSplitter.split(syncTimesUs, DURATION_US, count);
+    }
+}
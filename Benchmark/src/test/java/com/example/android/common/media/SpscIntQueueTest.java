@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.media;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpscIntQueueTest {
+
+    @Test
+    public void emptyQueueReturnsEmpty() {
+        SpscIntQueue queue = new SpscIntQueue(4);
+        assertTrue(queue.isEmpty());
+        assertEquals(SpscIntQueue.EMPTY, queue.peek());
+        assertEquals(SpscIntQueue.EMPTY, queue.poll());
+    }
+
+    @Test
+    public void keepsFifoOrderAcrossWraparound() {
+        SpscIntQueue queue = new SpscIntQueue(4);
+        int next = 0;
+        int expected = 0;
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.offer(next++));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(expected, queue.peek());
+            assertEquals(expected++, queue.poll());
+            assertTrue(queue.offer(next++));
+            assertEquals(3, queue.size());
+        }
+    }
+
+    @Test
+    public void offerToFullQueueFails() {
+        SpscIntQueue queue = new SpscIntQueue(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(4, queue.size());
+        assertEquals(0, queue.poll());
+        assertTrue(queue.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, queue.poll());
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void clearDropsEverything() {
+        SpscIntQueue queue = new SpscIntQueue(4);
+        queue.offer(1);
+        queue.offer(2);
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertEquals(SpscIntQueue.EMPTY, queue.poll());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertEquals(0, queue.poll());
+    }
+
+    @Test
+    public void ensureCapacityKeepsQueuedElements() {
+        SpscIntQueue queue = new SpscIntQueue(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        queue.poll();
+        queue.poll();
+        assertTrue(queue.offer(4));
+        assertTrue(queue.offer(5));
+        queue.ensureCapacity(5);
+        assertEquals(8, queue.capacity());
+        for (int i = 6; i < 10; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(10));
+        for (int i = 2; i < 10; i++) {
+            assertEquals(i, queue.peek());
+            assertEquals(i, queue.poll());
+        }
+        assertTrue(queue.isEmpty());
+        // Positions past the growth keep wrapping around the new segment.
+        for (int i = 0; i < 100; i++) {
+            assertTrue(queue.offer(i));
+            assertEquals(i, queue.poll());
+        }
+    }
+
+    @Test
+    public void clearAfterGrowing() {
+        SpscIntQueue queue = new SpscIntQueue(2);
+        queue.offer(1);
+        queue.ensureCapacity(3);
+        queue.offer(2);
+        queue.ensureCapacity(8);
+        queue.offer(3);
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        for (int i = 0; i < 8; i++) {
+            assertTrue(queue.offer(i));
+        }
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i, queue.poll());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void oneProducerOneConsumer() throws Exception {
+        runProducerAndConsumer(false);
+    }
+
+    @Test(timeout = 10000)
+    public void producerGrowsWhileConsumerReads() throws Exception {
+        runProducerAndConsumer(true);
+    }
+
+    private static void runProducerAndConsumer(final boolean grow) throws Exception {
+        final SpscIntQueue queue = new SpscIntQueue(16);
+        final int count = 1000000;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    if (grow && i % 100000 == 0) {
+                        queue.ensureCapacity(2 * queue.capacity());
+                    }
+                    while (!queue.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int expected = 0;
+                while (expected < count) {
+                    int value = queue.poll();
+                    if (value == SpscIntQueue.EMPTY) {
+                        Thread.yield();
+                    } else if (value != expected++) {
+                        failure.set(new AssertionError(
+                                "Expected " + (expected - 1) + " but got " + value));
+                        return;
+                    }
+                }
+            }
+        });
+        producer.start();
+        consumer.start();
+        producer.join();
+        consumer.join();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common.media;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class YuvConverterTest {
+
+    // Odd dimensions, so the last chroma column and row cover a single luma pixel.
+    private static final int WIDTH = 7;
+    private static final int HEIGHT = 5;
+    private static final int CHROMA_WIDTH = (WIDTH + 1) / 2;
+    private static final int CHROMA_HEIGHT = (HEIGHT + 1) / 2;
+
+    // Sample values that differ per plane and position, so misplaced bytes show up.
+    private static byte luma(int x, int y) {
+        return (byte) (y * 16 + x);
+    }
+
+    private static byte cb(int x, int y) {
+        return (byte) (0x80 + y * 16 + x);
+    }
+
+    private static byte cr(int x, int y) {
+        return (byte) (0xc0 + y * 16 + x);
+    }
+
+    private static byte[] expectedNv21() {
+        byte[] nv21 = new byte[YuvConverter.nv21Size(WIDTH, HEIGHT)];
+        int i = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                nv21[i++] = luma(x, y);
+            }
+        }
+        for (int y = 0; y < CHROMA_HEIGHT; y++) {
+            for (int x = 0; x < CHROMA_WIDTH; x++) {
+                nv21[i++] = cr(x, y);
+                nv21[i++] = cb(x, y);
+            }
+        }
+        return nv21;
+    }
+
+    private static ByteBuffer lumaPlane(int rowStride) {
+        ByteBuffer plane = ByteBuffer.allocateDirect(rowStride * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                plane.put(y * rowStride + x, luma(x, y));
+            }
+        }
+        return plane;
+    }
+
+    private static ByteBuffer planarChroma(int rowStride, boolean blue) {
+        ByteBuffer plane = ByteBuffer.allocateDirect(rowStride * CHROMA_HEIGHT);
+        for (int y = 0; y < CHROMA_HEIGHT; y++) {
+            for (int x = 0; x < CHROMA_WIDTH; x++) {
+                plane.put(y * rowStride + x, blue ? cb(x, y) : cr(x, y));
+            }
+        }
+        return plane;
+    }
+
+    // Interleaved V,U chroma as decoders expose NV21: V starts at 0, U one byte later.
+    private static ByteBuffer nv21Chroma(int rowStride) {
+        ByteBuffer chroma = ByteBuffer.allocateDirect(rowStride * CHROMA_HEIGHT);
+        for (int y = 0; y < CHROMA_HEIGHT; y++) {
+            for (int x = 0; x < CHROMA_WIDTH; x++) {
+                chroma.put(y * rowStride + 2 * x, cr(x, y));
+                chroma.put(y * rowStride + 2 * x + 1, cb(x, y));
+            }
+        }
+        return chroma;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice();
+    }
+
+    private static byte[] contents(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.capacity()];
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.clear();
+        duplicate.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void packedPlanar() {
+        byte[] out = new byte[YuvConverter.nv21Size(WIDTH, HEIGHT)];
+        YuvConverter.yuv420ToNv21(lumaPlane(WIDTH), WIDTH,
+                planarChroma(CHROMA_WIDTH, true), planarChroma(CHROMA_WIDTH, false),
+                CHROMA_WIDTH, 1, WIDTH, HEIGHT, out);
+        assertArrayEquals(expectedNv21(), out);
+    }
+
+    @Test
+    public void paddedPlanar() {
+        ByteBuffer y = lumaPlane(16);
+        ByteBuffer u = planarChroma(8, true);
+        ByteBuffer v = planarChroma(8, false);
+        byte[] out = new byte[YuvConverter.nv21Size(WIDTH, HEIGHT)];
+        YuvConverter.yuv420ToNv21(y, 16, u, v, 8, 1, WIDTH, HEIGHT, out);
+        assertArrayEquals(expectedNv21(), out);
+        assertEquals(0, y.position());
+        assertEquals(0, u.position());
+        assertEquals(0, v.position());
+    }
+
+    @Test
+    public void aliasedNv21() {
+        int rowStride = 2 * CHROMA_WIDTH;
+        ByteBuffer chroma = nv21Chroma(rowStride);
+        byte[] before = contents(chroma);
+        // Like Image planes, each view ends at the last sample it holds.
+        int length = rowStride * CHROMA_HEIGHT - 1;
+        ByteBuffer v = slice(chroma, 0, length);
+        ByteBuffer u = slice(chroma, 1, length);
+        byte[] out = new byte[YuvConverter.nv21Size(WIDTH, HEIGHT)];
+        YuvConverter.yuv420ToNv21(lumaPlane(WIDTH), WIDTH, u, v, rowStride, 2,
+                WIDTH, HEIGHT, out);
+        assertArrayEquals(expectedNv21(), out);
+        // Converting only reads from the codec's memory.
+        assertArrayEquals(before, contents(chroma));
+    }
+
+    @Test
+    public void paddedAliasedNv21() {
+        int rowStride = 16;
+        ByteBuffer chroma = nv21Chroma(rowStride);
+        int length = rowStride * (CHROMA_HEIGHT - 1) + 2 * CHROMA_WIDTH - 1;
+        byte[] out = new byte[YuvConverter.nv21Size(WIDTH, HEIGHT)];
+        YuvConverter.yuv420ToNv21(lumaPlane(rowStride), rowStride,
+                slice(chroma, 1, length), slice(chroma, 0, length), rowStride, 2,
+                WIDTH, HEIGHT, out);
+        assertArrayEquals(expectedNv21(), out);
+    }
+
+    @Test
+    public void readOnlyNv21() {
+        int rowStride = 2 * CHROMA_WIDTH;
+        ByteBuffer chroma = nv21Chroma(rowStride).asReadOnlyBuffer();
+        int length = rowStride * CHROMA_HEIGHT - 1;
+        byte[] out = new byte[YuvConverter.nv21Size(WIDTH, HEIGHT)];
+        YuvConverter.yuv420ToNv21(lumaPlane(WIDTH).asReadOnlyBuffer(), WIDTH,
+                slice(chroma, 1, length), slice(chroma, 0, length), rowStride, 2,
+                WIDTH, HEIGHT, out);
+        assertArrayEquals(expectedNv21(), out);
+    }
+
+    @Test
+    public void separateSemiPlanarChroma() {
+        // U and V interleaved with pixel stride 2, but in buffers of their own.
+        int rowStride = 2 * CHROMA_WIDTH;
+        ByteBuffer u = ByteBuffer.allocateDirect(rowStride * CHROMA_HEIGHT);
+        ByteBuffer v = ByteBuffer.allocateDirect(rowStride * CHROMA_HEIGHT);
+        for (int y = 0; y < CHROMA_HEIGHT; y++) {
+            for (int x = 0; x < CHROMA_WIDTH; x++) {
+                u.put(y * rowStride + 2 * x, cb(x, y));
+                v.put(y * rowStride + 2 * x, cr(x, y));
+            }
+        }
+        byte[] out = new byte[YuvConverter.nv21Size(WIDTH, HEIGHT)];
+        YuvConverter.yuv420ToNv21(lumaPlane(WIDTH), WIDTH, u, v, rowStride, 2,
+                WIDTH, HEIGHT, out);
+        assertArrayEquals(expectedNv21(), out);
+    }
+
+    @Test
+    public void scaleToSameSizeCopies() {
+        byte[] out = new byte[YuvConverter.nv21Size(WIDTH, HEIGHT)];
+        YuvConverter.scaleYuv420ToNv21(lumaPlane(16), 16,
+                planarChroma(8, true), planarChroma(8, false), 8, 1,
+                WIDTH, HEIGHT, WIDTH, HEIGHT, out);
+        assertArrayEquals(expectedNv21(), out);
+    }
+
+    @Test
+    public void scaleAveragesCoveredSamples() {
+        ByteBuffer y = ByteBuffer.allocateDirect(4 * 2);
+        y.put(new byte[] {0, 2, 10, 20, 4, 6, 30, 40});
+        y.clear();
+        ByteBuffer u = ByteBuffer.allocateDirect(2);
+        u.put(new byte[] {8, 12});
+        u.clear();
+        ByteBuffer v = ByteBuffer.allocateDirect(2);
+        v.put(new byte[] {50, 70});
+        v.clear();
+        byte[] out = new byte[YuvConverter.nv21Size(2, 1)];
+        YuvConverter.scaleYuv420ToNv21(y, 4, u, v, 2, 1, 4, 2, 2, 1, out);
+        assertArrayEquals(new byte[] {3, 25, 60, 10}, out);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void destinationTooSmall() {
+        YuvConverter.yuv420ToNv21(lumaPlane(WIDTH), WIDTH,
+                planarChroma(CHROMA_WIDTH, true), planarChroma(CHROMA_WIDTH, false),
+                CHROMA_WIDTH, 1, WIDTH, HEIGHT, new byte[WIDTH * HEIGHT]);
+    }
+}